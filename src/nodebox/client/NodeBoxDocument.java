@@ -17,6 +17,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EventListener;
+import java.util.List;
 import java.util.Observable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,7 +25,7 @@ import java.util.logging.Logger;
 /**
  * A NodeBoxDocument manages a NodeLibrary.
  */
-public class NodeBoxDocument extends JFrame implements DirtyListener, WindowListener {
+public class NodeBoxDocument extends JFrame implements DirtyBatchListener, WindowListener {
 
     private final static String WINDOW_MODIFIED = "windowModified";
 
@@ -177,7 +178,10 @@ public class NodeBoxDocument extends JFrame implements DirtyListener, WindowList
     }
 
     public void setNodeLibrary(NodeLibrary nodeLibrary) {
+        if (this.nodeLibrary != null)
+            this.nodeLibrary.removeDirtyBatchListener(this);
         this.nodeLibrary = nodeLibrary;
+        nodeLibrary.addDirtyBatchListener(this);
         setActiveNetwork(nodeLibrary.getRootNode());
     }
 
@@ -186,12 +190,7 @@ public class NodeBoxDocument extends JFrame implements DirtyListener, WindowList
     }
 
     public void setActiveNetwork(Node activeNetwork) {
-        Node oldNetwork = this.activeNetwork;
-        if (oldNetwork != null)
-            oldNetwork.removeDirtyListener(this);
         this.activeNetwork = activeNetwork;
-        if (activeNetwork != null)
-            activeNetwork.addDirtyListener(this);
         fireActiveNetworkChanged();
         if (activeNetwork != null && !activeNetwork.isEmpty()) {
             // Set the active node to the rendered child if available.
@@ -506,8 +505,8 @@ public class NodeBoxDocument extends JFrame implements DirtyListener, WindowList
 
     //// Network events ////
 
-    public void nodeDirty(final Node node) {
-        if (node != activeNetwork) return;
+    public void nodesDirty(NodeLibrary source, List<Node> nodes) {
+        if (activeNetwork == null || !nodes.contains(activeNetwork)) return;
         requestActiveNetworkUpdate();
     }
 
@@ -539,10 +538,6 @@ public class NodeBoxDocument extends JFrame implements DirtyListener, WindowList
         //renderThread.render(activeNetwork);
     }
 
-    public void nodeUpdated(Node node, ProcessingContext context) {
-        // Just here to statisfy DirtyListener interface.
-    }
-
     //// Document Action classes ////
 
     public class OpenAction extends AbstractAction {
@@ -143,7 +143,7 @@ public class Viewer extends JComponent implements DirtyListener, MouseListener,
             onCurves.setFill(new nodebox.graphics.Color(0f, 0f, 1f));
             offCurves.setFill(new nodebox.graphics.Color(1f, 0f, 0f));
             IGeometry p = (IGeometry) outputValue;
-            for (nodebox.graphics.Point pt : p.getPoints()) {
+            for (nodebox.graphics.Point pt : p.copyPoints()) {
                 if (pt.isOnCurve()) {
                     onCurves.ellipse(pt.x, pt.y, POINT_SIZE, POINT_SIZE);
                 } else {
@@ -161,7 +161,7 @@ public class Viewer extends JComponent implements DirtyListener, MouseListener,
             // Create a canvas with a transparent background
             IGeometry p = (IGeometry) outputValue;
             int index = 0;
-            for (nodebox.graphics.Point pt : p.getPoints()) {
+            for (nodebox.graphics.Point pt : p.copyPoints()) {
                 if (pt.isOnCurve()) {
                     g2.setColor(Color.BLUE);
                 } else {
@@ -0,0 +1,123 @@
+package nodebox.graphics;
+
+/**
+ * Divides a vertical range into horizontal bands and keeps the items that overlap each band.
+ * <p/>
+ * Items are identified by their index and given as a range of y coordinates. An item is kept in every band that its
+ * range overlaps, so looking up the band of a y coordinate gives all items whose range contains it. Items whose
+ * largest y coordinate is smaller than their smallest are left out.
+ *
+ * @see PathIndex
+ * @see Geometry#contains(float, float)
+ */
+final class BandIndex {
+
+    private static final int MAX_BANDS = 4096;
+
+    private final float top;
+    private final float bandHeight;
+    private final int bandCount;
+    // The items of band i are items[starts[i]] up to items[starts[i + 1]].
+    private final int[] starts;
+    private final int[] items;
+
+    /**
+     * Create an index for the given items.
+     *
+     * @param minY   the smallest y coordinate of each item.
+     * @param maxY   the largest y coordinate of each item.
+     * @param count  the number of items.
+     * @param top    the smallest y coordinate of all items.
+     * @param bottom the largest y coordinate of all items.
+     */
+    public BandIndex(float[] minY, float[] maxY, int count, float top, float bottom) {
+        this.top = top;
+        float height = bottom - top;
+        if (height > 0) {
+            // Items that span many bands are stored many times. Use fewer bands if the items are tall,
+            // so the index stays within a few entries per item.
+            double spans = 0;
+            for (int i = 0; i < count; i++) {
+                if (maxY[i] >= minY[i]) spans += (maxY[i] - minY[i]) / height;
+            }
+            double bands = Math.min(count, MAX_BANDS);
+            if (spans * bands > 4.0 * count) {
+                bands = 4.0 * count / spans;
+            }
+            bandCount = Math.max(1, (int) bands);
+            bandHeight = height / bandCount;
+        } else {
+            bandCount = 1;
+            bandHeight = 0;
+        }
+        // Count the items of each band first, so they can be stored in one array.
+        starts = new int[bandCount + 1];
+        for (int i = 0; i < count; i++) {
+            if (maxY[i] < minY[i]) continue;
+            int last = band(maxY[i]);
+            for (int b = band(minY[i]); b <= last; b++) {
+                starts[b + 1]++;
+            }
+        }
+        for (int b = 0; b < bandCount; b++) {
+            starts[b + 1] += starts[b];
+        }
+        items = new int[starts[bandCount]];
+        int[] next = new int[bandCount];
+        System.arraycopy(starts, 0, next, 0, bandCount);
+        for (int i = 0; i < count; i++) {
+            if (maxY[i] < minY[i]) continue;
+            int last = band(maxY[i]);
+            for (int b = band(minY[i]); b <= last; b++) {
+                items[next[b]++] = i;
+            }
+        }
+    }
+
+    /**
+     * Returns the band for the given y coordinate.
+     * <p/>
+     * Coordinates outside of the range of the index return the first or last band.
+     *
+     * @param y the y coordinate.
+     * @return the band index.
+     */
+    public int band(float y) {
+        if (bandHeight == 0) return 0;
+        int b = (int) ((y - top) / bandHeight);
+        if (b < 0) return 0;
+        if (b >= bandCount) return bandCount - 1;
+        return b;
+    }
+
+    /**
+     * Returns the position of the first item of the band.
+     *
+     * @param band the band index.
+     * @return the position, to be used with item.
+     */
+    public int first(int band) {
+        return starts[band];
+    }
+
+    /**
+     * Returns the position after the last item of the band.
+     *
+     * @param band the band index.
+     * @return the position, to be used with item.
+     */
+    public int end(int band) {
+        return starts[band + 1];
+    }
+
+    /**
+     * Returns the item at the given position.
+     *
+     * @param position a position between first and end of a band.
+     * @return the item index.
+     */
+    public int item(int position) {
+        return items[position];
+    }
+
+}
@@ -118,6 +118,16 @@ public class Color implements Cloneable {
                 && Math.round(a * 255) == Math.round(other.a * 255);
     }
 
+    @Override
+    public int hashCode() {
+        // Use the same rounded values as equals, so equal colors have the same hash code.
+        int hash = (int) Math.round(r * 255);
+        hash = 31 * hash + (int) Math.round(g * 255);
+        hash = 31 * hash + (int) Math.round(b * 255);
+        hash = 31 * hash + (int) Math.round(a * 255);
+        return hash;
+    }
+
     /**
      * Parse a hexadecimal value and return a Color object.
      * <p/>
@@ -1,52 +1,202 @@
 package nodebox.graphics;
 
+import nodebox.util.Cancellation;
+
 import java.awt.*;
 import java.awt.geom.GeneralPath;
 import java.util.ArrayList;
 
+/**
+ * A list of points that form a line or curve.
+ * <p/>
+ * The points are stored in packed arrays of coordinates and point types, not as Point objects. Point objects are
+ * only created when calling getPoints. From then on, the returned points are used as the storage of the contour, so
+ * changes to them change the contour. Copies of the contour are stored packed again.
+ */
 public class Contour extends AbstractGeometry {
 
     private static final BasicStroke DEFAULT_STROKE = new BasicStroke(1f);
-    private static final int SEGMENT_ACCURACY = 20;
+    private static final int INITIAL_CAPACITY = 8;
 
+    // The x and y coordinates of each point, and the point types. Only the first pointCount points are used.
+    // Once the points were requested using getPoints, the points list is used instead.
+    private float[] coords;
+    private byte[] types;
+    private int pointCount;
     private ArrayList<Point> points;
     private boolean closed;
-    private transient ArrayList<Float> segmentLengths;
+    // The length of each segment, the length of the contour up to the end of each segment,
+    // and the index of the last point of each segment.
+    private transient float[] segmentLengths;
+    private transient float[] segmentEnds;
+    private transient int[] segmentPoints;
+    private transient int segmentCount;
     private transient float length = -1;
+    private transient Contour flattened;
+    // The smallest and largest x and y coordinates, or null if the contour has no points.
+    private transient float[] extent;
+    private transient Rect bounds;
+    // The path that contains this contour. It is told about changes, so it can clear its cached values.
+    // A contour that was added to more than one path does not know which paths still contain it.
+    private transient Path owner;
+    private transient boolean shared;
 
     public Contour() {
-        points = new ArrayList<Point>();
+        coords = new float[INITIAL_CAPACITY * 2];
+        types = new byte[INITIAL_CAPACITY];
+        pointCount = 0;
         closed = false;
     }
 
     public Contour(Contour other) {
-        points = new ArrayList<Point>(other.points.size());
-        for (Point p : other.points) {
-            points.add(p.clone());
+        int count = other.getPointCount();
+        int capacity = Math.max(count, INITIAL_CAPACITY);
+        coords = new float[capacity * 2];
+        types = new byte[capacity];
+        if (other.points == null) {
+            System.arraycopy(other.coords, 0, coords, 0, count * 2);
+            System.arraycopy(other.types, 0, types, 0, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                Point pt = other.points.get(i);
+                coords[i * 2] = pt.x;
+                coords[i * 2 + 1] = pt.y;
+                types[i] = (byte) pt.type;
+            }
         }
+        pointCount = count;
         closed = other.closed;
     }
 
     //// Point operations ////
 
     public int getPointCount() {
-        return points.size();
+        return points == null ? pointCount : points.size();
     }
 
-    public java.util.List<Point> getPoints() {
+    /**
+     * Get the points for this contour.
+     * <p/>
+     * This returns a live reference to the points of the contour. Changing the points will change the contour.
+     * The first call creates the Point objects. Use the other methods of the contour when possible, since they
+     * don't need them.
+     *
+     * @return a list of Points.
+     */
+    public synchronized java.util.List<Point> getPoints() {
+        if (points == null) {
+            // The packed arrays are kept, so other threads reading the contour at the same time still see valid data.
+            ArrayList<Point> newPoints = new ArrayList<Point>(pointCount);
+            for (int i = 0; i < pointCount; i++) {
+                newPoints.add(createPoint(i));
+            }
+            points = newPoints;
+            extent = null;
+            bounds = null;
+            if (owner != null) owner.pointsRequested();
+        }
         return points;
     }
 
+    /**
+     * Get a copy of the point at the given index.
+     * <p/>
+     * Unlike getPoints, this does not create the Point objects of the contour, so the contour and its path keep their
+     * cached values. Changing the returned point does not change the contour.
+     *
+     * @param index the index of the point.
+     * @return a new point.
+     */
+    public Point getPoint(int index) {
+        if (index < 0 || index >= getPointCount())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + getPointCount());
+        return createPoint(index);
+    }
+
+    public Point[] copyPoints() {
+        Point[] copies = new Point[getPointCount()];
+        copyPoints(copies, 0);
+        return copies;
+    }
+
+    /* package private */ int copyPoints(Point[] copies, int offset) {
+        int count = getPointCount();
+        for (int i = 0; i < count; i++) {
+            copies[offset + i] = createPoint(i);
+        }
+        return offset + count;
+    }
+
+    /**
+     * Tell the contour which path it was added to.
+     * <p/>
+     * If the contour is added to a second path, it can no longer tell which path to report changes to. Both paths
+     * then stop keeping cached values.
+     *
+     * @param path the path that contains this contour.
+     */
+    /* package private */ void setOwner(Path path) {
+        if (owner == path) return;
+        if (owner == null && !shared) {
+            owner = path;
+            if (points != null) path.pointsRequested();
+            return;
+        }
+        if (owner != null) owner.untrack();
+        owner = null;
+        shared = true;
+        path.untrack();
+    }
+
     public void addPoint(Point pt) {
-        points.add(pt.clone());
-        invalidate();
+        addPoint(pt.x, pt.y, pt.type);
     }
 
     public void addPoint(float x, float y) {
-        points.add(new Point(x, y));
+        addPoint(x, y, Point.LINE_TO);
+    }
+
+    private void addPoint(float x, float y, int type) {
+        if (points != null) {
+            Point pt = new Point(x, y);
+            pt.type = type;
+            points.add(pt);
+        } else {
+            if (pointCount == types.length) {
+                int capacity = types.length * 2;
+                float[] newCoords = new float[capacity * 2];
+                byte[] newTypes = new byte[capacity];
+                System.arraycopy(coords, 0, newCoords, 0, pointCount * 2);
+                System.arraycopy(types, 0, newTypes, 0, pointCount);
+                coords = newCoords;
+                types = newTypes;
+            }
+            coords[pointCount * 2] = x;
+            coords[pointCount * 2 + 1] = y;
+            types[pointCount] = (byte) type;
+            pointCount++;
+        }
         invalidate();
     }
 
+    /* package private */ float x(int index) {
+        return points == null ? coords[index * 2] : points.get(index).x;
+    }
+
+    /* package private */ float y(int index) {
+        return points == null ? coords[index * 2 + 1] : points.get(index).y;
+    }
+
+    /* package private */ int type(int index) {
+        return points == null ? types[index] : points.get(index).type;
+    }
+
+    private Point createPoint(int index) {
+        Point pt = new Point(x(index), y(index));
+        pt.type = type(index);
+        return pt;
+    }
+
     //// Close ////
 
     public boolean isClosed() {
@@ -66,23 +216,47 @@ public class Contour extends AbstractGeometry {
     //// Geometric queries ////
 
     public Rect getBounds() {
-        if (points.size() == 0) {
-            return new Rect();
+        Rect r = bounds;
+        if (r != null) return r;
+        float[] e = getExtent();
+        if (e == null) {
+            r = new Rect();
+        } else {
+            r = new Rect(e[0], e[1], e[2] - e[0], e[3] - e[1]);
         }
+        if (points == null) bounds = r;
+        return r;
+    }
+
+    /**
+     * Get the smallest and largest coordinates of the contour.
+     * <p/>
+     * The result is cached until the contour is invalidated, and should not be changed. Once the points were
+     * requested using getPoints, they can change at any time, so the result is not cached.
+     *
+     * @return an array with the minimum x, minimum y, maximum x and maximum y, or null if the contour is empty.
+     */
+    /* package private */ float[] getExtent() {
+        float[] e = extent;
+        if (e != null) return e;
+        int pointCount = getPointCount();
+        if (pointCount == 0) return null;
         float minX = Float.MAX_VALUE;
         float minY = Float.MAX_VALUE;
-        float maxX = Float.MIN_VALUE;
-        float maxY = Float.MIN_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
         float px, py;
-        for (Point p : points) {
-            px = p.getX();
-            py = p.getY();
+        for (int i = 0; i < pointCount; i++) {
+            px = x(i);
+            py = y(i);
             if (px < minX) minX = px;
             if (py < minY) minY = py;
             if (px > maxX) maxX = px;
             if (py > maxY) maxY = py;
         }
-        return new Rect(minX, minY, maxX - minX, maxY - minY);
+        e = new float[]{minX, minY, maxX, maxY};
+        if (points == null) extent = e;
+        return e;
     }
 
     /**
@@ -97,49 +271,59 @@ public class Contour extends AbstractGeometry {
 
     public void invalidate() {
         segmentLengths = null;
+        flattened = null;
+        extent = null;
+        bounds = null;
+        if (owner != null) owner.contourChanged();
     }
 
     public float updateSegmentLengths() {
-        java.util.List<Point> points = getPoints();
-        segmentLengths = new ArrayList<Float>();
+        int pointCount = getPointCount();
+        // There is at most one segment for each point, including the closing segment.
+        segmentLengths = new float[pointCount];
+        segmentEnds = new float[pointCount];
+        segmentPoints = new int[pointCount];
+        segmentCount = 0;
         float totalLength = 0;
 
         // We cannot form a line or curve with the first point.
         // Since the algorithm looks back at previous points, we
         // start looking from the first useful point, which is
         // the second (index of 1).
-        for (int pi = 1; pi < points.size(); pi++) {
-            Point pt = points.get(pi);
-            if (pt.isLineTo()) {
-                Point pt0 = points.get(pi - 1);
-                float length = Path.lineLength(pt0.x, pt0.y, pt.x, pt.y);
-                segmentLengths.add(length);
+        for (int pi = 1; pi < pointCount; pi++) {
+            int type = type(pi);
+            if (type == Point.LINE_TO) {
+                float length = Path.lineLength(x(pi - 1), y(pi - 1), x(pi), y(pi));
                 totalLength += length;
-            } else if (pt.isCurveTo()) {
-                Point pt0 = points.get(pi - 3);
-                Point c1 = points.get(pi - 2);
-                Point c2 = points.get(pi - 1);
-                float length = Path.curveLength(pt0.x, pt0.y,
-                        c1.x, c1.y,
-                        c2.x, c2.y,
-                        pt.x, pt.y, SEGMENT_ACCURACY);
-                segmentLengths.add(length);
+                addSegment(pi, length, totalLength);
+            } else if (type == Point.CURVE_TO) {
+                float length = CurveFlattener.length(x(pi - 3), y(pi - 3),
+                        x(pi - 2), y(pi - 2),
+                        x(pi - 1), y(pi - 1),
+                        x(pi), y(pi), CurveFlattener.DEFAULT_TOLERANCE);
                 totalLength += length;
+                addSegment(pi, length, totalLength);
             }
         }
         // If the path is closed, add the closing segment.
-        if (closed && !points.isEmpty()) {
-            Point pt0 = points.get(points.size() - 1);
-            Point pt1 = points.get(0);
-            float length = Path.lineLength(pt0.x, pt0.y, pt1.x, pt1.y);
-            segmentLengths.add(length);
+        if (closed && pointCount > 0) {
+            int last = pointCount - 1;
+            float length = Path.lineLength(x(last), y(last), x(0), y(0));
             totalLength += length;
+            addSegment(0, length, totalLength);
         }
 
         this.length = totalLength;
         return totalLength;
     }
 
+    private void addSegment(int pointIndex, float length, float end) {
+        segmentLengths[segmentCount] = length;
+        segmentEnds[segmentCount] = end;
+        segmentPoints[segmentCount] = pointIndex;
+        segmentCount++;
+    }
+
     /**
      * Calculate the length of the contour. This is not the number of segments, but rather the sum of all segment lengths.
      *
@@ -169,81 +353,54 @@ public class Contour extends AbstractGeometry {
             updateSegmentLengths();
 
         // Check if there is a path.
-        if (points.isEmpty())
+        if (getPointCount() == 0)
             throw new NodeBoxError("The path is empty.");
 
         // If the path has no length, return the position of the first point.
         if (length == 0)
-            return points.get(0).clone();
+            return createPoint(0);
 
         // Since t is relative, convert it to the absolute length.
         float absT = t * length;
-        // The resT is what remains of t after we traversed all segments.
-        float resT = t;
-
-        // Find the segment that contains t.
-        int segnum = -1;
-        for (Float seglength : segmentLengths) {
-            segnum++;
-            if (absT <= seglength || segnum == segmentLengths.size() - 1)
-                break;
-            absT -= seglength;
-            resT -= seglength / length;
-        }
-        resT /= (segmentLengths.get(segnum) / length);
+        return pointOnSegment(Path.indexForLength(segmentEnds, segmentCount, absT), t);
+    }
+
+    /**
+     * Returns coordinates for the point on the given segment.
+     *
+     * @param segnum the segment index
+     * @param t      relative coordinate of the point on the contour.
+     * @return coordinates for the point.
+     */
+    private Point pointOnSegment(int segnum, float t) {
+        // Convert t to the relative coordinate on the segment.
+        float segmentStart = segnum == 0 ? 0 : segmentEnds[segnum - 1];
+        float resT = (t - segmentStart / length) / (segmentLengths[segnum] / length);
 
         // Find the point index for the segment.
-        int pi = pointIndexForSegment(segnum + 1);
-        Point pt1 = points.get(pi);
+        int pi = segmentPoints[segnum];
+        float x1 = x(pi);
+        float y1 = y(pi);
+        int type = type(pi);
         // If the path is closed, the point index is set to zero.
         // Set the index to the last point to get the one-but-last point for pt0. 
         if (pi == 0) {
-            pi = points.size();
+            pi = getPointCount();
         }
 
-        if (pt1.isLineTo()) {
-            Point pt0 = points.get(pi - 1);
-            return Path.linePoint(resT, pt0.x, pt0.y, pt1.x, pt1.y);
-        } else if (pt1.isCurveTo()) {
-            Point pt0 = points.get(pi - 3);
-            Point c1 = points.get(pi - 2);
-            Point c2 = points.get(pi - 1);
+        if (type == Point.LINE_TO) {
+            return Path.linePoint(resT, x(pi - 1), y(pi - 1), x1, y1);
+        } else if (type == Point.CURVE_TO) {
             return Path.curvePoint(resT,
-                    pt0.x, pt0.y,
-                    c1.x, c1.y,
-                    c2.x, c2.y,
-                    pt1.x, pt1.y);
+                    x(pi - 3), y(pi - 3),
+                    x(pi - 2), y(pi - 2),
+                    x(pi - 1), y(pi - 1),
+                    x1, y1);
         } else {
             throw new AssertionError("Incorrect point.");
         }
     }
 
-    /**
-     * Calculate the point index for the segment number. Segments lie between points. The first point of the segment
-     * is returned. The point index will be a valid index, even if the segment number doesn't exist.
-     *
-     * @param segnum the segment index
-     * @return the index of the point.
-     */
-    private int pointIndexForSegment(int segnum) {
-        int pointIndex = 0;
-        for (Point pt : points) {
-            if (pt.isCurveTo() || pt.isLineTo()) {
-                if (segnum == 0) break;
-                segnum--;
-            }
-            pointIndex++;
-        }
-        int pointCount = points.size();
-        if (pointIndex < pointCount) {
-            return pointIndex;
-        } else if (closed) {
-            return 0;
-        } else {
-            return pointCount - 1;
-        }
-    }
-
     //// Geometric operations ////
 
     /**
@@ -254,7 +411,8 @@ public class Contour extends AbstractGeometry {
      */
     public Point[] makePoints(int amount) {
         // If the contour is empty, pointAt will fail. Return an empty array.
-        if (points.isEmpty()) return new Point[0];
+        if (getPointCount() == 0) return new Point[0];
+        float length = getLength();
         Point[] points = new Point[amount];
         float delta = 1;
         if (closed) {
@@ -270,8 +428,21 @@ public class Contour extends AbstractGeometry {
                 delta = 1f / (amount - 1f);
             }
         }
+        // The points are made in order, so the contour only needs to be walked once.
+        int segnum = 0;
         for (int i = 0; i < amount; i++) {
-            points[i] = pointAt(delta * i);
+            // Making a large number of points can take a while. Stop if the update was cancelled.
+            if ((i & 0xff) == 0xff) Cancellation.check();
+            if (length == 0) {
+                points[i] = createPoint(0);
+                continue;
+            }
+            float t = delta * i;
+            float absT = t * length;
+            while (segnum < segmentCount - 1 && absT > segmentEnds[segnum]) {
+                segnum++;
+            }
+            points[i] = pointOnSegment(segnum, t);
         }
         return points;
     }
@@ -312,7 +483,9 @@ public class Contour extends AbstractGeometry {
      */
     public Contour resampleByAmount(int amount) {
         Contour c = new Contour();
-        c.extend(makePoints(amount));
+        for (Point pt : makePoints(amount)) {
+            c.addPoint(pt.x, pt.y, pt.type);
+        }
         c.closed = closed;
         return c;
     }
@@ -339,12 +512,60 @@ public class Contour extends AbstractGeometry {
         }
     }
 
+    /**
+     * Flatten the contour, replacing all curves with lines.
+     */
     public void flatten() {
-        throw new UnsupportedOperationException();
+        Contour c = flattenedContour(CurveFlattener.DEFAULT_TOLERANCE);
+        coords = c.coords;
+        types = c.types;
+        pointCount = c.pointCount;
+        points = null;
+        invalidate();
     }
 
-    public IGeometry flattened() {
-        throw new UnsupportedOperationException();
+    /**
+     * Make a flattened copy of the contour, where all curves are replaced with lines.
+     *
+     * @return a flattened copy.
+     */
+    public Contour flattened() {
+        return flattened(CurveFlattener.DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Make a flattened copy of the contour, where all curves are replaced with lines.
+     * <p/>
+     * The lines lie within the given distance of the curves. The result for the default tolerance is cached until
+     * the contour is invalidated.
+     *
+     * @param tolerance the maximum distance between the lines and the curves.
+     * @return a flattened copy.
+     */
+    public Contour flattened(float tolerance) {
+        return flattenedContour(tolerance).clone();
+    }
+
+    private Contour flattenedContour(float tolerance) {
+        boolean cache = tolerance == CurveFlattener.DEFAULT_TOLERANCE;
+        Contour c = flattened;
+        if (cache && c != null) return c;
+        c = new Contour();
+        int pointCount = getPointCount();
+        for (int i = 0; i < pointCount; i++) {
+            int type = type(i);
+            if (i == 0 || type == Point.LINE_TO) {
+                c.addPoint(x(i), y(i));
+            } else if (type == Point.CURVE_TO) {
+                CurveFlattener.flatten(x(i - 3), y(i - 3),
+                        x(i - 2), y(i - 2),
+                        x(i - 1), y(i - 1),
+                        x(i), y(i), tolerance, c);
+            }
+        }
+        c.closed = closed;
+        if (cache) flattened = c;
+        return c;
     }
 
     //// Graphics ////
@@ -368,19 +589,15 @@ public class Contour extends AbstractGeometry {
     }
 
     /* package private */ void _extendPath(GeneralPath gp) {
-        if (points.size() == 0) return;
-        Point pt = points.get(0);
-        Point ctrl1, ctrl2;
-        gp.moveTo(pt.x, pt.y);
         int pointCount = getPointCount();
+        if (pointCount == 0) return;
+        gp.moveTo(x(0), y(0));
         for (int i = 1; i < pointCount; i++) {
-            pt = points.get(i);
-            if (pt.isLineTo()) {
-                gp.lineTo(pt.x, pt.y);
-            } else if (pt.isCurveTo()) {
-                ctrl1 = points.get(i - 2);
-                ctrl2 = points.get(i - 1);
-                gp.curveTo(ctrl1.x, ctrl1.y, ctrl2.x, ctrl2.y, pt.x, pt.y);
+            int type = type(i);
+            if (type == Point.LINE_TO) {
+                gp.lineTo(x(i), y(i));
+            } else if (type == Point.CURVE_TO) {
+                gp.curveTo(x(i - 2), y(i - 2), x(i - 1), y(i - 1), x(i), y(i));
             }
         }
         if (closed)
@@ -388,7 +605,11 @@ public class Contour extends AbstractGeometry {
     }
 
     public void transform(Transform t) {
-        t.map(getPoints());
+        if (points == null) {
+            t.getAffineTransform().transform(coords, 0, coords, 0, pointCount);
+        } else {
+            t.map(points);
+        }
         invalidate();
     }
 
@@ -403,4 +624,37 @@ public class Contour extends AbstractGeometry {
     public Contour clone() {
         return new Contour(this);
     }
+
+    /**
+     * Check if the other object is a contour with the same points, in the same order, and the same closed state.
+     *
+     * @param o the other object
+     * @return true if the contours are equal.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Contour)) return false;
+        Contour other = (Contour) o;
+        int count = getPointCount();
+        if (closed != other.closed || count != other.getPointCount()) return false;
+        for (int i = 0; i < count; i++) {
+            if (x(i) != other.x(i) || y(i) != other.y(i) || type(i) != other.type(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int count = getPointCount();
+        int hash = closed ? 1 : 0;
+        for (int i = 0; i < count; i++) {
+            // Adding zero turns -0 into 0, since the two are equal.
+            hash = 31 * hash + Float.floatToIntBits(x(i) + 0f);
+            hash = 31 * hash + Float.floatToIntBits(y(i) + 0f);
+            hash = 31 * hash + type(i);
+        }
+        return hash;
+    }
 }
@@ -0,0 +1,168 @@
+package nodebox.graphics;
+
+/**
+ * Measures and flattens cubic bezier curves.
+ * <p/>
+ * Curves are subdivided only as far as needed for the given tolerance. Small or straight curves need only one or a
+ * few parts, while long and strongly bent curves get as many as they need.
+ * <p/>
+ * When flattening, a part is replaced by a line once no point of it lies further than the tolerance from that line.
+ * <p/>
+ * The length of a curve lies between the length of the line between its end points and the length of the lines
+ * through its control points. If these differ less than the tolerance, the average is used. Otherwise the length is
+ * integrated using Gauss-Legendre quadrature, splitting the curve until the halves add up to the same length
+ * as the whole within the tolerance.
+ *
+ * @see Contour#getLength()
+ * @see Contour#flattened(float)
+ */
+final class CurveFlattener {
+
+    /**
+     * The default tolerance, in units of the coordinate space.
+     */
+    public static final float DEFAULT_TOLERANCE = 0.05f;
+
+    // Deeper subdivisions only happen for invalid coordinates, such as NaN or infinity.
+    private static final int MAX_DEPTH = 16;
+
+    // Abscissae and weights for 5-point Gauss-Legendre quadrature on the interval [-1, 1].
+    private static final double[] GAUSS_ABSCISSAE = {
+            0, -0.5384693101056831, 0.5384693101056831, -0.9061798459386640, 0.9061798459386640};
+    private static final double[] GAUSS_WEIGHTS = {
+            0.5688888888888889, 0.4786286704993665, 0.4786286704993665, 0.2369268850561891, 0.2369268850561891};
+
+    private CurveFlattener() {
+    }
+
+    /**
+     * Returns the length of the curve.
+     *
+     * @param x0        X start coordinate
+     * @param y0        Y start coordinate
+     * @param x1        X control point 1
+     * @param y1        Y control point 1
+     * @param x2        X control point 2
+     * @param y2        Y control point 2
+     * @param x3        X end coordinate
+     * @param y3        Y end coordinate
+     * @param tolerance the maximum error of the length.
+     * @return the length of the curve.
+     */
+    public static float length(float x0, float y0, float x1, float y1, float x2, float y2, float x3, float y3, float tolerance) {
+        if (tolerance <= 0) throw new IllegalArgumentException("Tolerance must be greater than zero.");
+        double chord = distance(x0, y0, x3, y3);
+        double polygon = distance(x0, y0, x1, y1) + distance(x1, y1, x2, y2) + distance(x2, y2, x3, y3);
+        // The error of the average is at most half the difference.
+        if (polygon - chord <= tolerance) {
+            return (float) ((chord + polygon) / 2);
+        }
+        // The derivative of the curve is 3 * (a * t^2 + b * t + c).
+        double ax = x3 - 3 * x2 + 3 * x1 - x0;
+        double ay = y3 - 3 * y2 + 3 * y1 - y0;
+        double bx = 2 * (x2 - 2 * x1 + x0);
+        double by = 2 * (y2 - 2 * y1 + y0);
+        double cx = x1 - x0;
+        double cy = y1 - y0;
+        double whole = integrate(ax, ay, bx, by, cx, cy, 0, 1);
+        return (float) integrate(ax, ay, bx, by, cx, cy, 0, 1, whole, tolerance, 0);
+    }
+
+    /**
+     * Adds lines that follow the curve to the given contour.
+     * <p/>
+     * The start point of the curve is not added; it should already be the last point of the contour.
+     *
+     * @param x0        X start coordinate
+     * @param y0        Y start coordinate
+     * @param x1        X control point 1
+     * @param y1        Y control point 1
+     * @param x2        X control point 2
+     * @param y2        Y control point 2
+     * @param x3        X end coordinate
+     * @param y3        Y end coordinate
+     * @param tolerance the maximum distance between the curve and the lines.
+     * @param contour   the contour to add the points to.
+     */
+    public static void flatten(float x0, float y0, float x1, float y1, float x2, float y2, float x3, float y3, float tolerance, Contour contour) {
+        flatten(x0, y0, x1, y1, x2, y2, x3, y3, limit(tolerance), 0, contour);
+    }
+
+    /**
+     * Convert the tolerance to the limit used in isFlat.
+     *
+     * @param tolerance the maximum distance between the curve and its lines.
+     * @return the limit.
+     */
+    private static double limit(float tolerance) {
+        if (tolerance <= 0) throw new IllegalArgumentException("Tolerance must be greater than zero.");
+        return 16.0 * tolerance * tolerance;
+    }
+
+    /**
+     * Check if the curve is flat enough to be replaced by a line.
+     * <p/>
+     * This compares the control points to the points at one and two thirds of the line. The distance between the
+     * curve and the line is at most 3/4 of the largest difference.
+     */
+    private static boolean isFlat(double x0, double y0, double x1, double y1, double x2, double y2, double x3, double y3, double limit) {
+        double ux = 3 * x1 - 2 * x0 - x3;
+        double uy = 3 * y1 - 2 * y0 - y3;
+        double vx = 3 * x2 - 2 * x3 - x0;
+        double vy = 3 * y2 - 2 * y3 - y0;
+        return Math.max(ux * ux, vx * vx) + Math.max(uy * uy, vy * vy) <= limit;
+    }
+
+    /**
+     * Integrate the speed of the curve between t0 and t1, splitting the interval until the error is small enough.
+     */
+    private static double integrate(double ax, double ay, double bx, double by, double cx, double cy, double t0, double t1, double whole, double tolerance, int depth) {
+        double tm = (t0 + t1) / 2;
+        double left = integrate(ax, ay, bx, by, cx, cy, t0, tm);
+        double right = integrate(ax, ay, bx, by, cx, cy, tm, t1);
+        if (depth >= MAX_DEPTH || Math.abs(left + right - whole) <= tolerance) {
+            return left + right;
+        }
+        // Each half may have half of the error.
+        return integrate(ax, ay, bx, by, cx, cy, t0, tm, left, tolerance / 2, depth + 1)
+                + integrate(ax, ay, bx, by, cx, cy, tm, t1, right, tolerance / 2, depth + 1);
+    }
+
+    /**
+     * Integrate the speed of the curve between t0 and t1 using Gauss-Legendre quadrature.
+     */
+    private static double integrate(double ax, double ay, double bx, double by, double cx, double cy, double t0, double t1) {
+        double halfWidth = (t1 - t0) / 2;
+        double center = (t0 + t1) / 2;
+        double sum = 0;
+        for (int i = 0; i < GAUSS_ABSCISSAE.length; i++) {
+            double t = center + halfWidth * GAUSS_ABSCISSAE[i];
+            double dx = (ax * t + bx) * t + cx;
+            double dy = (ay * t + by) * t + cy;
+            sum += GAUSS_WEIGHTS[i] * Math.sqrt(dx * dx + dy * dy);
+        }
+        return 3 * halfWidth * sum;
+    }
+
+    private static double distance(double x0, double y0, double x1, double y1) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static void flatten(double x0, double y0, double x1, double y1, double x2, double y2, double x3, double y3, double limit, int depth, Contour contour) {
+        if (depth >= MAX_DEPTH || isFlat(x0, y0, x1, y1, x2, y2, x3, y3, limit)) {
+            contour.addPoint((float) x3, (float) y3);
+            return;
+        }
+        double x01 = (x0 + x1) / 2, y01 = (y0 + y1) / 2;
+        double x12 = (x1 + x2) / 2, y12 = (y1 + y2) / 2;
+        double x23 = (x2 + x3) / 2, y23 = (y2 + y3) / 2;
+        double x012 = (x01 + x12) / 2, y012 = (y01 + y12) / 2;
+        double x123 = (x12 + x23) / 2, y123 = (y12 + y23) / 2;
+        double xm = (x012 + x123) / 2, ym = (y012 + y123) / 2;
+        flatten(x0, y0, x01, y01, x012, y012, xm, ym, limit, depth + 1, contour);
+        flatten(xm, ym, x123, y123, x23, y23, x3, y3, limit, depth + 1, contour);
+    }
+
+}
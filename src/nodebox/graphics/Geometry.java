@@ -9,8 +9,16 @@ public class Geometry extends AbstractGeometry implements Colorizable {
     private ArrayList<Path> paths;
     private Path currentPath;
     private boolean lengthDirty = true;
-    private ArrayList<Float> pathLengths;
+    // The length of the group up to the end of each path.
+    private float[] pathEnds;
     private float groupLength;
+    private Rect bounds;
+    // The paths report their changes, so the bounds and the path index are kept until a path changes.
+    // See Path#isCacheable.
+    private boolean livePoints;
+    private boolean tracked = true;
+    // The paths by their vertical extent, used to find the paths that can contain a point.
+    private BandIndex pathBands;
 
     public Geometry() {
         paths = new ArrayList<Path>();
@@ -20,7 +28,9 @@ public class Geometry extends AbstractGeometry implements Colorizable {
     public Geometry(Geometry other) {
         paths = new ArrayList<Path>(other.paths.size());
         for (Path path : other.paths) {
-            paths.add(path.clone());
+            Path clone = path.clone();
+            paths.add(clone);
+            clone.setOwner(this);
         }
         // TODO: We might want to refer to the latest Path object in the items.
         currentPath = null;
@@ -49,6 +59,7 @@ public class Geometry extends AbstractGeometry implements Colorizable {
      */
     public void add(Path path) {
         paths.add(path);
+        path.setOwner(this);
         currentPath = path;
         invalidate(false);
     }
@@ -80,7 +91,9 @@ public class Geometry extends AbstractGeometry implements Colorizable {
      */
     public void extend(Geometry g) {
         for (Path path : g.paths) {
-            paths.add(path.clone());
+            Path clone = path.clone();
+            paths.add(clone);
+            clone.setOwner(this);
         }
         invalidate(false);
     }
@@ -153,6 +166,15 @@ public class Geometry extends AbstractGeometry implements Colorizable {
         return points;
     }
 
+    public Point[] copyPoints() {
+        Point[] copies = new Point[getPointCount()];
+        int offset = 0;
+        for (Path path : paths) {
+            offset = path.copyPoints(copies, offset);
+        }
+        return copies;
+    }
+
     public void addPoint(Point pt) {
         ensureCurrentPath();
         currentPath.addPoint(pt);
@@ -189,6 +211,8 @@ public class Geometry extends AbstractGeometry implements Colorizable {
 
     private void invalidate(boolean recursive) {
         lengthDirty = true;
+        bounds = null;
+        pathBands = null;
         if (recursive) {
             for (Path path : paths) {
                 path.invalidate();
@@ -196,6 +220,34 @@ public class Geometry extends AbstractGeometry implements Colorizable {
         }
     }
 
+    /**
+     * Called by a path of this group when it or one of its contours changes.
+     * <p/>
+     * This only clears the bounds and the path index. The length is still kept until the group is invalidated.
+     */
+    /* package private */ void pathChanged() {
+        bounds = null;
+        pathBands = null;
+    }
+
+    /**
+     * Called by a path of this group when the points of one of its contours are requested using getPoints.
+     */
+    /* package private */ void pointsRequested() {
+        livePoints = true;
+        pathChanged();
+    }
+
+    /**
+     * Called by a path of this group when it no longer reports all changes.
+     *
+     * @see Path#untrack()
+     */
+    /* package private */ void untrack() {
+        tracked = false;
+        pathChanged();
+    }
+
     //// Geometric queries ////
 
     /**
@@ -204,8 +256,9 @@ public class Geometry extends AbstractGeometry implements Colorizable {
      * @return a bounding box that contains all elements in the group.
      */
     public Rect getBounds() {
+        Rect r = bounds;
+        if (r != null) return r;
         if (isEmpty()) return new Rect();
-        Rect r = null;
         for (Grob g : paths) {
             if (r == null) {
                 r = g.getBounds();
@@ -213,6 +266,7 @@ public class Geometry extends AbstractGeometry implements Colorizable {
                 r = r.united(g.getBounds());
             }
         }
+        if (tracked && !livePoints) bounds = r;
         return r;
     }
 
@@ -231,13 +285,11 @@ public class Geometry extends AbstractGeometry implements Colorizable {
     }
 
     private void updatePathLengths() {
-        pathLengths = new ArrayList<Float>(paths.size());
+        pathEnds = new float[paths.size()];
         groupLength = 0;
-        float length;
-        for (Path p : paths) {
-            length = p.getLength();
-            pathLengths.add(length);
-            groupLength += length;
+        for (int i = 0; i < paths.size(); i++) {
+            groupLength += paths.get(i).getLength();
+            pathEnds[i] = groupLength;
         }
         lengthDirty = false;
     }
@@ -256,44 +308,120 @@ public class Geometry extends AbstractGeometry implements Colorizable {
      */
     public Point pointAt(float t) {
         float length = getLength();
+        if (paths.isEmpty()) return new Point();
         // Since t is relative, convert it to the absolute length.
         float absT = t * length;
-        // The resT is what remains of t after we traversed all segments.
-        float resT = t;
-        // Find the contour that contains t.
-        float cLength;
-        Path currentPath = null;
-        for (Path p : paths) {
-            currentPath = p;
-            cLength = p.getLength();
-            if (absT <= cLength) break;
-            absT -= cLength;
-            resT -= cLength / length;
-        }
-        if (currentPath == null) return new Point();
-        resT /= (currentPath.getLength() / length);
-        return currentPath.pointAt(resT);
+        // Find the path that contains t.
+        int pi = Path.indexForLength(pathEnds, pathEnds.length, absT);
+        float pathStart = pi == 0 ? 0 : pathEnds[pi - 1];
+        Path p = paths.get(pi);
+        return p.pointAt((t - pathStart / length) / (p.getLength() / length));
     }
 
 
     //// Geometric queries ////
 
     public boolean contains(Point pt) {
-        for (Path p : paths) {
-            if (p.contains(pt)) {
+        return contains(pt.x, pt.y);
+    }
+
+    public boolean contains(float x, float y) {
+        BandIndex bands = getPathBands();
+        if (bands == null) {
+            for (Path p : paths) {
+                if (p.contains(x, y)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int band = bands.band(y);
+        for (int i = bands.first(band), end = bands.end(band); i < end; i++) {
+            if (paths.get(bands.item(i)).contains(x, y)) {
                 return true;
             }
         }
         return false;
     }
 
-    public boolean contains(float x, float y) {
+    /**
+     * Returns the paths by their vertical extent, creating the index if needed.
+     * <p/>
+     * Like the bounds, the index is not kept while the points can change.
+     *
+     * @return the index, or null if the group has no points.
+     */
+    private BandIndex getPathBands() {
+        BandIndex bands = pathBands;
+        if (bands != null) return bands;
+        int count = paths.size();
+        float[] minY = new float[count];
+        float[] maxY = new float[count];
+        float top = Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            float[] e = paths.get(i).getExtent();
+            if (e == null) {
+                // Empty paths contain nothing. Keep them out of the bands.
+                minY[i] = 1;
+                maxY[i] = 0;
+                continue;
+            }
+            minY[i] = e[1];
+            maxY[i] = e[3];
+            if (e[1] < top) top = e[1];
+            if (e[3] > bottom) bottom = e[3];
+        }
+        if (top > bottom) return null;
+        bands = new BandIndex(minY, maxY, count, top, bottom);
+        if (tracked && !livePoints) pathBands = bands;
+        return bands;
+    }
+
+    /**
+     * Returns the point of the group that lies closest to the given point.
+     * <p/>
+     * This includes control points. The returned point is a copy; changing it does not change the group.
+     *
+     * @param pt the point to compare with.
+     * @return a new point, or null if the group has no points.
+     */
+    public Point nearestPoint(Point pt) {
+        Point nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
         for (Path p : paths) {
-            if (p.contains(x, y)) {
-                return true;
+            float[] e = p.getExtent();
+            if (e == null) continue;
+            // Skip paths whose extent is further away than the nearest point so far.
+            double dx = Math.max(0, Math.max(e[0] - pt.x, pt.x - e[2]));
+            double dy = Math.max(0, Math.max(e[1] - pt.y, pt.y - e[3]));
+            if (dx * dx + dy * dy > nearestDistance) continue;
+            Point candidate = p.nearestPoint(pt);
+            dx = candidate.x - pt.x;
+            dy = candidate.y - pt.y;
+            double distance = dx * dx + dy * dy;
+            if (distance < nearestDistance) {
+                nearest = candidate;
+                nearestDistance = distance;
             }
         }
-        return false;
+        return nearest;
+    }
+
+    /**
+     * Returns the points of the group that lie within the rectangle.
+     * <p/>
+     * This includes control points. The returned points are copies; changing them does not change the group.
+     *
+     * @param r the rectangle.
+     * @return a list of new points, in the order of the paths.
+     */
+    public java.util.List<Point> pointsInRect(Rect r) {
+        ArrayList<Point> points = new ArrayList<Point>();
+        for (Path p : paths) {
+            points.addAll(p.pointsInRect(r));
+        }
+        return points;
     }
 
     public boolean contains(Rect r) {
@@ -375,11 +503,29 @@ public class Geometry extends AbstractGeometry implements Colorizable {
     }
 
     public void flatten() {
-        throw new UnsupportedOperationException();
+        for (Path path : paths) {
+            path.flatten();
+        }
+        invalidate(false);
     }
 
-    public IGeometry flattened() {
-        throw new UnsupportedOperationException();
+    public Geometry flattened() {
+        return flattened(CurveFlattener.DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Make a flattened copy of the geometry.
+     *
+     * @param tolerance the maximum distance between the lines of the copy and the original curves.
+     * @return a flattened copy.
+     * @see Contour#flattened(float)
+     */
+    public Geometry flattened(float tolerance) {
+        Geometry g = new Geometry();
+        for (Path path : paths) {
+            g.add(path.flattened(tolerance));
+        }
+        return g;
     }
 
     //// Object methods ////
@@ -388,6 +534,24 @@ public class Geometry extends AbstractGeometry implements Colorizable {
         return new Geometry(this);
     }
 
+    /**
+     * Check if the other object is a geometry with the same paths, in the same order.
+     *
+     * @param o the other object
+     * @return true if the geometries are equal.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Geometry)) return false;
+        return paths.equals(((Geometry) o).paths);
+    }
+
+    @Override
+    public int hashCode() {
+        return paths.hashCode();
+    }
+
     @Override
     public String toString() {
         return "<" + getClass().getSimpleName() + ">";
@@ -21,6 +21,16 @@ public interface IGeometry extends Grob {
      */
     public List<Point> getPoints();
 
+    /**
+     * Get copies of the points for this geometry.
+     * <p/>
+     * Changing the returned points does not change the original geometry. Use this method to read the points,
+     * since the geometry can then keep its cached values.
+     *
+     * @return an array of new Points.
+     */
+    public Point[] copyPoints();
+
     /**
      * Add the given point to the geometry. The point is cloned.
      *
@@ -21,7 +21,17 @@ public class Path extends AbstractGeometry implements Colorizable {
     private transient boolean lengthDirty = true;
     private transient java.awt.geom.GeneralPath awtPath;
     private transient Rect bounds;
-    private transient ArrayList<Float> contourLengths;
+    private transient PathIndex index;
+    // The contours report their changes, so the bounds and the index are kept until a contour changes.
+    // They are not kept once the points of a contour were requested using getPoints, since the points can then change
+    // at any time, or when a contour is shared with another path, since it then does not report to this path.
+    private transient boolean livePoints;
+    private transient boolean tracked = true;
+    // The group that contains this path, and whether the path was added to more than one group.
+    private transient Geometry owner;
+    private transient boolean shared;
+    // The length of the path up to the end of each contour.
+    private transient float[] contourEnds;
     private transient float pathLength = -1;
 
     public Path() {
@@ -133,6 +143,19 @@ public class Path extends AbstractGeometry implements Colorizable {
         return points;
     }
 
+    public Point[] copyPoints() {
+        Point[] copies = new Point[getPointCount()];
+        copyPoints(copies, 0);
+        return copies;
+    }
+
+    /* package private */ int copyPoints(Point[] copies, int offset) {
+        for (Contour c : contours) {
+            offset = c.copyPoints(copies, offset);
+        }
+        return offset;
+    }
+
     //// Primitives ////
 
     public void moveto(float x, float y) {
@@ -202,11 +225,74 @@ public class Path extends AbstractGeometry implements Colorizable {
     private void invalidate(boolean recursive) {
         pathDirty = true;
         lengthDirty = true;
+        bounds = null;
+        index = null;
         if (recursive) {
             for (Contour c : contours) {
                 c.invalidate();
             }
         }
+        if (owner != null) owner.pathChanged();
+    }
+
+    /**
+     * Called by a contour of this path when it changes.
+     * <p/>
+     * This only clears the bounds and the index. The length and the general path are still kept until the path is
+     * invalidated.
+     */
+    /* package private */ void contourChanged() {
+        bounds = null;
+        index = null;
+        if (owner != null) owner.pathChanged();
+    }
+
+    /**
+     * Called by a contour of this path when its points are requested using getPoints.
+     */
+    /* package private */ void pointsRequested() {
+        livePoints = true;
+        contourChanged();
+        if (owner != null) owner.pointsRequested();
+    }
+
+    /**
+     * Called by a contour of this path when it is added to another path.
+     */
+    /* package private */ void untrack() {
+        tracked = false;
+        bounds = null;
+        index = null;
+        if (owner != null) owner.untrack();
+    }
+
+    /**
+     * Check if the bounds and the index can be kept until the path changes.
+     *
+     * @return true if changes to the path and its contours are reported.
+     */
+    /* package private */ boolean isCacheable() {
+        return tracked && !livePoints;
+    }
+
+    /**
+     * Tell the path which group it was added to.
+     *
+     * @param g the group that contains this path.
+     * @see Contour#setOwner(Path)
+     */
+    /* package private */ void setOwner(Geometry g) {
+        if (owner == g) return;
+        if (owner == null && !shared) {
+            owner = g;
+            if (livePoints) g.pointsRequested();
+            if (!tracked) g.untrack();
+            return;
+        }
+        if (owner != null) owner.untrack();
+        owner = null;
+        shared = true;
+        g.untrack();
     }
 
     /**
@@ -335,6 +421,7 @@ public class Path extends AbstractGeometry implements Colorizable {
      */
     public void add(Contour c) {
         contours.add(c);
+        c.setOwner(this);
         currentContour = c;
         invalidate(false);
     }
@@ -355,7 +442,9 @@ public class Path extends AbstractGeometry implements Colorizable {
 
     public void extend(Path p) {
         for (Contour c : p.contours) {
-            contours.add(c.clone());
+            Contour clone = c.clone();
+            contours.add(clone);
+            clone.setOwner(this);
         }
         invalidate(false);
     }
@@ -590,13 +679,11 @@ public class Path extends AbstractGeometry implements Colorizable {
     }
 
     private void updateContourLengths() {
-        contourLengths = new ArrayList<Float>(contours.size());
+        contourEnds = new float[contours.size()];
         pathLength = 0;
-        float length;
-        for (Contour c : contours) {
-            length = c.getLength();
-            contourLengths.add(length);
-            pathLength += length;
+        for (int i = 0; i < contours.size(); i++) {
+            pathLength += contours.get(i).getLength();
+            contourEnds[i] = pathLength;
         }
         lengthDirty = false;
     }
@@ -606,13 +693,8 @@ public class Path extends AbstractGeometry implements Colorizable {
         float absT = t * getLength();
 
         // Find the contour that contains t.
-        float cLength;
-        for (Contour c : contours) {
-            cLength = c.getLength();
-            if (absT <= cLength) return c;
-            absT -= cLength;
-        }
-        return null;
+        if (contours.isEmpty() || absT > pathLength) return null;
+        return contours.get(indexForLength(contourEnds, contourEnds.length, absT));
     }
 
     /**
@@ -629,23 +711,38 @@ public class Path extends AbstractGeometry implements Colorizable {
      */
     public Point pointAt(float t) {
         float length = getLength();
+        if (contours.isEmpty()) return new Point();
         // Since t is relative, convert it to the absolute length.
         float absT = t * length;
-        // The resT is what remains of t after we traversed all segments.
-        float resT = t;
         // Find the contour that contains t.
-        float cLength;
-        Contour currentContour = null;
-        for (Contour c : contours) {
-            currentContour = c;
-            cLength = c.getLength();
-            if (absT <= cLength) break;
-            absT -= cLength;
-            resT -= cLength / length;
+        int ci = indexForLength(contourEnds, contourEnds.length, absT);
+        float contourStart = ci == 0 ? 0 : contourEnds[ci - 1];
+        Contour c = contours.get(ci);
+        return c.pointAt((t - contourStart / length) / (c.getLength() / length));
+    }
+
+    /**
+     * Find the part that contains the given length, using a binary search.
+     * <p/>
+     * The parts can be the segments of a contour, or the contours of a path.
+     *
+     * @param ends     the length up to the end of each part. These should be in ascending order.
+     * @param count    the number of parts.
+     * @param position the length to look for.
+     * @return the index of the first part that ends at or after the length, or the last part if there is none.
+     */
+    static int indexForLength(float[] ends, int count, float position) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        if (currentContour == null) return new Point();
-        resT /= (currentContour.getLength() / length);
-        return currentContour.pointAt(resT);
+        return low;
     }
 
     //// Geometric operations ////
@@ -709,20 +806,78 @@ public class Path extends AbstractGeometry implements Colorizable {
     //// Geometric queries ////
 
     public boolean contains(Point p) {
-        return getGeneralPath().contains(p.getPoint2D());
+        return contains(p.x, p.y);
     }
 
     public boolean contains(float x, float y) {
-        return getGeneralPath().contains(x, y);
+        return getIndex().contains(x, y);
     }
 
     public boolean contains(Rect r) {
+        // The path lies within the extent of its points, so it can only contain rectangles within that extent.
+        float[] e = getExtent();
+        if (e == null) return false;
+        double x = r.getX(), y = r.getY();
+        if (x < e[0] || y < e[1] || x + r.getWidth() > e[2] || y + r.getHeight() > e[3]) return false;
         return getGeneralPath().contains(r.getRectangle2D());
     }
 
+    /**
+     * Returns the point of the path that lies closest to the given point.
+     * <p/>
+     * This includes control points. The returned point is a copy; changing it does not change the path.
+     *
+     * @param pt the point to compare with.
+     * @return a new point, or null if the path has no points.
+     */
+    public Point nearestPoint(Point pt) {
+        PathIndex index = getIndex();
+        int i = index.nearestPoint(pt.x, pt.y);
+        return i < 0 ? null : index.getPoint(i);
+    }
+
+    /**
+     * Returns the points of the path that lie within the rectangle.
+     * <p/>
+     * This includes control points. The returned points are copies; changing them does not change the path.
+     *
+     * @param r the rectangle.
+     * @return a list of new points, in the order of the path.
+     */
+    public java.util.List<Point> pointsInRect(Rect r) {
+        PathIndex index = getIndex();
+        java.util.List<Integer> indices = index.pointsInRect(r);
+        ArrayList<Point> points = new ArrayList<Point>(indices.size());
+        for (int i : indices) {
+            points.add(index.getPoint(i));
+        }
+        return points;
+    }
+
+    /**
+     * Returns the spatial index of the path, creating it if needed.
+     * <p/>
+     * Like the bounds, the index is only kept if changes to the path are reported. Otherwise it is created for each
+     * query, since the points may have changed.
+     *
+     * @return the index.
+     */
+    private PathIndex getIndex() {
+        PathIndex i = index;
+        if (i == null) {
+            i = new PathIndex(this);
+            if (isCacheable()) index = i;
+        }
+        return i;
+    }
+
     //// Boolean operations ////
 
     public boolean intersects(Rect r) {
+        float[] e = getExtent();
+        if (e == null) return false;
+        double x = r.getX(), y = r.getY();
+        if (x > e[2] || y > e[3] || x + r.getWidth() < e[0] || y + r.getHeight() < e[1]) return false;
         return getGeneralPath().intersects(r.getRectangle2D());
     }
 
@@ -768,34 +923,47 @@ public class Path extends AbstractGeometry implements Colorizable {
     }
 
     public Rect getBounds() {
-        if (!pathDirty && bounds != null) return bounds;
-        if (contours.size() == 0) {
-            bounds = new Rect();
+        Rect r = bounds;
+        if (r != null) return r;
+        float[] e = getExtent();
+        if (e == null) {
+            r = new Rect();
         } else {
-            float minX = Float.MAX_VALUE;
-            float minY = Float.MAX_VALUE;
-            float maxX = -Float.MAX_VALUE;
-            float maxY = -Float.MAX_VALUE;
-            float px, py;
-            for (Contour c : contours) {
-                for (Point p : c.getPoints()) {
-                    px = p.getX();
-                    py = p.getY();
-                    if (px < minX) minX = px;
-                    if (py < minY) minY = py;
-                    if (px > maxX) maxX = px;
-                    if (py > maxY) maxY = py;
-                }
-            }
-            bounds = new Rect(minX, minY, maxX - minX, maxY - minY);
+            r = new Rect(e[0], e[1], e[2] - e[0], e[3] - e[1]);
+        }
+        if (isCacheable()) bounds = r;
+        return r;
+    }
+
+    /**
+     * Returns the smallest and largest x and y coordinates of the points, combined from the extents of the contours.
+     *
+     * @return an array with minX, minY, maxX and maxY, or null if the path has no points.
+     */
+    /* package private */ float[] getExtent() {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        boolean empty = true;
+        for (Contour c : contours) {
+            float[] e = c.getExtent();
+            if (e == null) continue;
+            empty = false;
+            if (e[0] < minX) minX = e[0];
+            if (e[1] < minY) minY = e[1];
+            if (e[2] > maxX) maxX = e[2];
+            if (e[3] > maxY) maxY = e[3];
         }
-        return bounds;
+        return empty ? null : new float[]{minX, minY, maxX, maxY};
     }
 
     //// Transformations ////
 
     public void transform(Transform t) {
-        t.map(getPoints());
+        for (Contour c : contours) {
+            c.transform(t);
+        }
         invalidate(true);
     }
 
@@ -805,7 +973,10 @@ public class Path extends AbstractGeometry implements Colorizable {
      * Flatten the geometry.
      */
     public void flatten() {
-        throw new UnsupportedOperationException("Not implemented.");
+        for (Contour c : contours) {
+            c.flatten();
+        }
+        invalidate(false);
     }
 
     /**
@@ -814,7 +985,22 @@ public class Path extends AbstractGeometry implements Colorizable {
      * @return a flattened copy.
      */
     public Path flattened() {
-        throw new UnsupportedOperationException("Not implemented.");
+        return flattened(CurveFlattener.DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Make a flattened copy of the geometry.
+     *
+     * @param tolerance the maximum distance between the lines of the copy and the original curves.
+     * @return a flattened copy.
+     * @see Contour#flattened(float)
+     */
+    public Path flattened(float tolerance) {
+        Path p = cloneAndClear();
+        for (Contour c : contours) {
+            p.add(c.flattened(tolerance));
+        }
+        return p;
     }
 
     //// Operations on the current context. ////
@@ -852,4 +1038,29 @@ public class Path extends AbstractGeometry implements Colorizable {
         return new Path(this, false);
     }
 
+    /**
+     * Check if the other object is a path with the same contours and the same fill, stroke and stroke width.
+     *
+     * @param o the other object
+     * @return true if the paths are equal.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Path)) return false;
+        Path other = (Path) o;
+        return strokeWidth == other.strokeWidth
+                && (fillColor == null ? other.fillColor == null : fillColor.equals(other.fillColor))
+                && (strokeColor == null ? other.strokeColor == null : strokeColor.equals(other.strokeColor))
+                && contours.equals(other.contours);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Float.floatToIntBits(strokeWidth + 0f);
+        hash = 31 * hash + (fillColor == null ? 0 : fillColor.hashCode());
+        hash = 31 * hash + (strokeColor == null ? 0 : strokeColor.hashCode());
+        return 31 * hash + contours.hashCode();
+    }
+
 }
@@ -0,0 +1,410 @@
+package nodebox.graphics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A spatial index over the segments and points of a path.
+ * <p/>
+ * The segments are kept in horizontal bands. To check if a point is inside of the path, only the segments in the
+ * band of the point are needed to count how many times the path winds around it. The segments are checked in the same
+ * way as by the GeneralPath of the path, using the non-zero winding rule, so points on the outline get the same
+ * result. As when filling, open contours are closed with a line.
+ * <p/>
+ * The points, including control points, are kept in a grid of cells, used to find the nearest point or the points
+ * within a rectangle.
+ * <p/>
+ * The index is a snapshot of the path. The path creates it when it is first queried and discards it when it changes.
+ *
+ * @see Path#contains(float, float)
+ * @see Path#nearestPoint(Point)
+ * @see Path#pointsInRect(Rect)
+ */
+final class PathIndex {
+
+    // Number of points in each cell of the grid, on average.
+    private static final int POINTS_PER_CELL = 4;
+    private static final int MAX_CELLS = 1024;
+
+    private final float left, top, right, bottom;
+
+    // Segments have eight coordinates each: a line uses the first four, a curve all eight.
+    private int segmentCount;
+    private float[] segments;
+    private boolean[] curves;
+    private float[] segmentMinX, segmentMaxX, segmentMinY, segmentMaxY;
+    private final BandIndex bands;
+
+    // The coordinates and types of all points, and a grid of cells with the points in them.
+    // The points of cell (column, row) are cellPoints[cellStarts[row * columns + column]] up to the next cell.
+    private final int pointCount;
+    private final float[] pointCoords;
+    private final int[] pointTypes;
+    private final int columns, rows;
+    private final float cellWidth, cellHeight;
+    private final int[] cellStarts;
+    private final int[] cellPoints;
+
+    public PathIndex(Path path) {
+        int count = 0;
+        for (Contour c : path.getContours()) {
+            count += c.getPointCount();
+        }
+        pointCount = count;
+        pointCoords = new float[count * 2];
+        pointTypes = new int[count];
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        int i = 0;
+        for (Contour c : path.getContours()) {
+            int n = c.getPointCount();
+            for (int j = 0; j < n; j++, i++) {
+                float x = c.x(j);
+                float y = c.y(j);
+                pointCoords[i * 2] = x;
+                pointCoords[i * 2 + 1] = y;
+                pointTypes[i] = c.type(j);
+                if (x < minX) minX = x;
+                if (y < minY) minY = y;
+                if (x > maxX) maxX = x;
+                if (y > maxY) maxY = y;
+            }
+        }
+        if (count == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        left = minX;
+        top = minY;
+        right = maxX;
+        bottom = maxY;
+
+        segments = new float[64];
+        curves = new boolean[8];
+        segmentMinX = new float[8];
+        segmentMaxX = new float[8];
+        segmentMinY = new float[8];
+        segmentMaxY = new float[8];
+        for (Contour c : path.getContours()) {
+            addSegments(c);
+        }
+        bands = new BandIndex(segmentMinY, segmentMaxY, segmentCount, top, bottom);
+
+        // Divide the bounds in cells that are roughly square.
+        int cells = Math.max(1, Math.min(count / POINTS_PER_CELL, MAX_CELLS * MAX_CELLS));
+        float width = right - left;
+        float height = bottom - top;
+        if (width > 0 && height > 0) {
+            int c = (int) Math.round(Math.sqrt(cells * width / height));
+            columns = Math.max(1, Math.min(c, MAX_CELLS));
+            rows = Math.max(1, Math.min(cells / columns, MAX_CELLS));
+        } else if (width > 0) {
+            columns = Math.min(cells, MAX_CELLS);
+            rows = 1;
+        } else if (height > 0) {
+            columns = 1;
+            rows = Math.min(cells, MAX_CELLS);
+        } else {
+            columns = 1;
+            rows = 1;
+        }
+        cellWidth = width / columns;
+        cellHeight = height / rows;
+        cellStarts = new int[columns * rows + 1];
+        int[] pointCells = new int[count];
+        for (i = 0; i < count; i++) {
+            int cell = row(pointCoords[i * 2 + 1]) * columns + column(pointCoords[i * 2]);
+            pointCells[i] = cell;
+            cellStarts[cell + 1]++;
+        }
+        for (int cell = 0; cell < columns * rows; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        cellPoints = new int[count];
+        int[] next = new int[columns * rows];
+        System.arraycopy(cellStarts, 0, next, 0, next.length);
+        for (i = 0; i < count; i++) {
+            cellPoints[next[pointCells[i]]++] = i;
+        }
+    }
+
+    /**
+     * Add the segments of the contour, in the same way as Contour._extendPath.
+     *
+     * @param c the contour.
+     */
+    private void addSegments(Contour c) {
+        int n = c.getPointCount();
+        if (n == 0) return;
+        float startX = c.x(0);
+        float startY = c.y(0);
+        float x = startX;
+        float y = startY;
+        for (int i = 1; i < n; i++) {
+            int type = c.type(i);
+            if (type == Point.LINE_TO) {
+                addLine(x, y, c.x(i), c.y(i));
+            } else if (type == Point.CURVE_TO) {
+                addCurve(x, y, c.x(i - 2), c.y(i - 2), c.x(i - 1), c.y(i - 1), c.x(i), c.y(i));
+            } else {
+                continue;
+            }
+            x = c.x(i);
+            y = c.y(i);
+        }
+        // Filling closes the contour, even if it is open.
+        addLine(x, y, startX, startY);
+    }
+
+    private void addLine(float x0, float y0, float x1, float y1) {
+        int s = newSegment(false);
+        segments[s * 8] = x0;
+        segments[s * 8 + 1] = y0;
+        segments[s * 8 + 2] = x1;
+        segments[s * 8 + 3] = y1;
+        segmentMinX[s] = Math.min(x0, x1);
+        segmentMaxX[s] = Math.max(x0, x1);
+        segmentMinY[s] = Math.min(y0, y1);
+        segmentMaxY[s] = Math.max(y0, y1);
+    }
+
+    private void addCurve(float x0, float y0, float x1, float y1, float x2, float y2, float x3, float y3) {
+        int s = newSegment(true);
+        int o = s * 8;
+        segments[o] = x0;
+        segments[o + 1] = y0;
+        segments[o + 2] = x1;
+        segments[o + 3] = y1;
+        segments[o + 4] = x2;
+        segments[o + 5] = y2;
+        segments[o + 6] = x3;
+        segments[o + 7] = y3;
+        // The curve lies within the box of its control points.
+        segmentMinX[s] = Math.min(Math.min(x0, x1), Math.min(x2, x3));
+        segmentMaxX[s] = Math.max(Math.max(x0, x1), Math.max(x2, x3));
+        segmentMinY[s] = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+        segmentMaxY[s] = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+    }
+
+    private int newSegment(boolean curve) {
+        if (segmentCount == curves.length) {
+            int capacity = segmentCount * 2;
+            segments = grow(segments, capacity * 8);
+            boolean[] newCurves = new boolean[capacity];
+            System.arraycopy(curves, 0, newCurves, 0, segmentCount);
+            curves = newCurves;
+            segmentMinX = grow(segmentMinX, capacity);
+            segmentMaxX = grow(segmentMaxX, capacity);
+            segmentMinY = grow(segmentMinY, capacity);
+            segmentMaxY = grow(segmentMaxY, capacity);
+        }
+        curves[segmentCount] = curve;
+        return segmentCount++;
+    }
+
+    private static float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    //// Queries ////
+
+    /**
+     * Check if the point lies inside of the path, using the non-zero winding rule.
+     *
+     * @param x the x coordinate of the point.
+     * @param y the y coordinate of the point.
+     * @return true if the point lies inside of the path.
+     */
+    public boolean contains(float x, float y) {
+        if (!(x >= left && x <= right && y >= top && y <= bottom)) return false;
+        int band = bands.band(y);
+        int winding = 0;
+        for (int i = bands.first(band), end = bands.end(band); i < end; i++) {
+            winding += crossings(bands.item(i), x, y);
+        }
+        return winding != 0;
+    }
+
+    /**
+     * Count how many times the segment crosses the ray that goes from the point to the right.
+     * <p/>
+     * Crossings are counted positive if the segment goes down and negative if it goes up. The start point of a
+     * segment is included and its end point is not, so a ray through the point where two segments meet crosses
+     * only one of them.
+     */
+    private int crossings(int s, double px, double py) {
+        if (py < segmentMinY[s] || py > segmentMaxY[s] || px >= segmentMaxX[s]) return 0;
+        int o = s * 8;
+        double x0 = segments[o];
+        double y0 = segments[o + 1];
+        if (!curves[s]) {
+            double x1 = segments[o + 2];
+            double y1 = segments[o + 3];
+            int direction = direction(y0, y1, py);
+            if (direction == 0 || px < segmentMinX[s]) return direction;
+            double intersection = x0 + (py - y0) * (x1 - x0) / (y1 - y0);
+            return px < intersection ? direction : 0;
+        }
+        return curveCrossings(px, py, x0, y0, segments[o + 2], segments[o + 3], segments[o + 4], segments[o + 5],
+                segments[o + 6], segments[o + 7], 0);
+    }
+
+    private static int direction(double y0, double y1, double py) {
+        if (y0 <= py && py < y1) return 1;
+        if (y1 <= py && py < y0) return -1;
+        return 0;
+    }
+
+    /**
+     * Count the crossings of a curve by splitting it in halves until it lies completely to one side of the point.
+     * <p/>
+     * This is the same subdivision that GeneralPath uses, so points on or very close to the curve get the same result.
+     */
+    private static int curveCrossings(double px, double py, double x0, double y0, double x1, double y1,
+                                      double x2, double y2, double x3, double y3, int level) {
+        if (py < y0 && py < y1 && py < y2 && py < y3) return 0;
+        if (py >= y0 && py >= y1 && py >= y2 && py >= y3) return 0;
+        if (px >= x0 && px >= x1 && px >= x2 && px >= x3) return 0;
+        if (px < x0 && px < x1 && px < x2 && px < x3) {
+            if (py >= y0) {
+                if (py < y3) return 1;
+            } else if (py >= y3) {
+                return -1;
+            }
+            return 0;
+        }
+        // A double has 52 bits of precision, so more steps don't change the curve.
+        if (level > 52) {
+            int direction = direction(y0, y3, py);
+            if (direction == 0 || px < Math.min(x0, x3)) return direction;
+            if (px >= Math.max(x0, x3)) return 0;
+            return px < x0 + (py - y0) * (x3 - x0) / (y3 - y0) ? direction : 0;
+        }
+        double midX = (x1 + x2) / 2;
+        double midY = (y1 + y2) / 2;
+        x1 = (x0 + x1) / 2;
+        y1 = (y0 + y1) / 2;
+        x2 = (x2 + x3) / 2;
+        y2 = (y2 + y3) / 2;
+        double leftX = (x1 + midX) / 2;
+        double leftY = (y1 + midY) / 2;
+        double rightX = (midX + x2) / 2;
+        double rightY = (midY + y2) / 2;
+        midX = (leftX + rightX) / 2;
+        midY = (leftY + rightY) / 2;
+        if (Double.isNaN(midX) || Double.isNaN(midY)) return 0;
+        return curveCrossings(px, py, x0, y0, x1, y1, leftX, leftY, midX, midY, level + 1)
+                + curveCrossings(px, py, midX, midY, rightX, rightY, x2, y2, x3, y3, level + 1);
+    }
+
+    /**
+     * Returns the point that lies closest to the given coordinates.
+     * <p/>
+     * Points are numbered in the order of the contours of the path, starting at zero.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the index of the closest point, or -1 if the path has no points.
+     */
+    public int nearestPoint(float x, float y) {
+        if (pointCount == 0) return -1;
+        int column = column(x);
+        int row = row(y);
+        int nearest = -1;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int ring = 0; ; ring++) {
+            int firstColumn = column - ring, lastColumn = column + ring;
+            int firstRow = row - ring, lastRow = row + ring;
+            for (int r = Math.max(firstRow, 0); r <= Math.min(lastRow, rows - 1); r++) {
+                // Only the cells on the edge of the ring are new.
+                boolean edgeRow = r == firstRow || r == lastRow;
+                int step = edgeRow ? 1 : lastColumn - firstColumn;
+                for (int c = firstColumn; c <= lastColumn; c += Math.max(step, 1)) {
+                    if (c < 0 || c >= columns) continue;
+                    int cell = r * columns + c;
+                    for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                        int p = cellPoints[i];
+                        double dx = pointCoords[p * 2] - x;
+                        double dy = pointCoords[p * 2 + 1] - y;
+                        double distance = dx * dx + dy * dy;
+                        if (distance < nearestDistance || distance == nearestDistance && p < nearest) {
+                            nearest = p;
+                            nearestDistance = distance;
+                        }
+                    }
+                }
+            }
+            // Points that were not visited lie outside of the rings, at least this far away.
+            double reach = Double.MAX_VALUE;
+            if (firstColumn > 0) reach = Math.min(reach, x - (left + firstColumn * cellWidth));
+            if (lastColumn < columns - 1) reach = Math.min(reach, left + (lastColumn + 1) * cellWidth - x);
+            if (firstRow > 0) reach = Math.min(reach, y - (top + firstRow * cellHeight));
+            if (lastRow < rows - 1) reach = Math.min(reach, top + (lastRow + 1) * cellHeight - y);
+            if (reach == Double.MAX_VALUE || nearest >= 0 && nearestDistance < reach * reach) {
+                return nearest;
+            }
+        }
+    }
+
+    /**
+     * Returns the points that lie within the rectangle, including its edges.
+     *
+     * @param r the rectangle.
+     * @return the indices of the points, in ascending order.
+     */
+    public List<Integer> pointsInRect(Rect r) {
+        Rect rect = r.normalized();
+        float x0 = rect.getX();
+        float y0 = rect.getY();
+        float x1 = x0 + rect.getWidth();
+        float y1 = y0 + rect.getHeight();
+        ArrayList<Integer> indices = new ArrayList<Integer>();
+        if (pointCount == 0 || x1 < left || x0 > right || y1 < top || y0 > bottom) return indices;
+        int lastColumn = column(x1);
+        int lastRow = row(y1);
+        for (int row = row(y0); row <= lastRow; row++) {
+            for (int column = column(x0); column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                    int p = cellPoints[i];
+                    float x = pointCoords[p * 2];
+                    float y = pointCoords[p * 2 + 1];
+                    if (x >= x0 && x <= x1 && y >= y0 && y <= y1) {
+                        indices.add(p);
+                    }
+                }
+            }
+        }
+        Collections.sort(indices);
+        return indices;
+    }
+
+    /**
+     * Returns a copy of the point with the given index.
+     *
+     * @param index the index of the point.
+     * @return a new point.
+     */
+    public Point getPoint(int index) {
+        return new Point(pointCoords[index * 2], pointCoords[index * 2 + 1], pointTypes[index]);
+    }
+
+    private int column(float x) {
+        if (cellWidth <= 0) return 0;
+        int c = (int) ((x - left) / cellWidth);
+        if (c < 0) return 0;
+        if (c >= columns) return columns - 1;
+        return c;
+    }
+
+    private int row(float y) {
+        if (cellHeight <= 0) return 0;
+        int r = (int) ((y - top) / cellHeight);
+        if (r < 0) return 0;
+        if (r >= rows) return rows - 1;
+        return r;
+    }
+
+}
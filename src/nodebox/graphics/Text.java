@@ -25,6 +25,9 @@ public class Text extends AbstractGrob {
     private double lineHeight;
     private Align align = Align.CENTER;
     private Color fillColor = new Color();
+    // The bounds are cached, together with the transform they were calculated for.
+    private Rect bounds;
+    private AffineTransform boundsTransform;
 
     public Text(String text, Point pt) {
         this.text = text;
@@ -76,6 +79,7 @@ public class Text extends AbstractGrob {
 
     public void setText(String text) {
         this.text = text;
+        bounds = null;
     }
 
     public double getBaseLineX() {
@@ -84,6 +88,7 @@ public class Text extends AbstractGrob {
 
     public void setBaseLineX(double baseLineX) {
         this.baseLineX = baseLineX;
+        bounds = null;
     }
 
     public double getBaseLineY() {
@@ -92,6 +97,7 @@ public class Text extends AbstractGrob {
 
     public void setBaseLineY(double baseLineY) {
         this.baseLineY = baseLineY;
+        bounds = null;
     }
 
     public double getWidth() {
@@ -100,6 +106,7 @@ public class Text extends AbstractGrob {
 
     public void setWidth(double width) {
         this.width = width;
+        bounds = null;
     }
 
     public double getHeight() {
@@ -108,6 +115,7 @@ public class Text extends AbstractGrob {
 
     public void setHeight(double height) {
         this.height = height;
+        bounds = null;
     }
 
     public String getFontName() {
@@ -116,6 +124,7 @@ public class Text extends AbstractGrob {
 
     public void setFontName(String fontName) {
         this.fontName = fontName;
+        bounds = null;
     }
 
     public double getFontSize() {
@@ -124,6 +133,7 @@ public class Text extends AbstractGrob {
 
     public void setFontSize(double fontSize) {
         this.fontSize = fontSize;
+        bounds = null;
     }
 
     public Font getFont() {
@@ -136,6 +146,7 @@ public class Text extends AbstractGrob {
 
     public void setLineHeight(double lineHeight) {
         this.lineHeight = lineHeight;
+        bounds = null;
     }
 
     public Align getAlign() {
@@ -144,6 +155,7 @@ public class Text extends AbstractGrob {
 
     public void setAlign(Align align) {
         this.align = align;
+        bounds = null;
     }
 
     public Color getFillColor() {
@@ -231,8 +243,13 @@ public class Text extends AbstractGrob {
     }
 
     public Rect getBounds() {
-        // TODO: This is correct, but creating a full path just for measuring bounds is slow.
-        return getPath().getBounds();
+        // Creating a full path just for measuring bounds is slow, so the result is kept
+        // until the text, its layout or its transform changes.
+        AffineTransform t = getTransform().getAffineTransform();
+        if (bounds != null && t.equals(boundsTransform)) return bounds;
+        bounds = getPath().getBounds();
+        boundsTransform = new AffineTransform(t);
+        return bounds;
     }
 
     public Text clone() {
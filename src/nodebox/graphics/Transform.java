@@ -138,13 +138,13 @@ public class Transform implements Cloneable {
 
     public Path map(Path p) {
         Path newPath = new Path(p);
-        map(newPath.getPoints());
+        newPath.transform(this);
         return newPath;
     }
 
     public Geometry map(Geometry g) {
         Geometry newGeometry = new Geometry(g);
-        map(newGeometry.getPoints());
+        newGeometry.transform(this);
         return newGeometry;
     }
 
@@ -34,7 +34,7 @@ public class DisplayPointsHandle extends AbstractHandle {
     private void drawDots(GraphicsContext ctx, Path path, Path dots) {
         boolean displayPointNumbers = this.displayPointNumbers;
         int i = 0;
-        for (Point pt : path.getPoints()) {
+        for (Point pt : path.copyPoints()) {
             drawDot(dots, pt.x, pt.y);
             if (displayPointNumbers) {
                 Text t = ctx.text(String.valueOf(i), pt.x + 7, pt.y);
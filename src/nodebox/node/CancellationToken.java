@@ -0,0 +1,24 @@
+package nodebox.node;
+
+/**
+ * Signals a running update that it should stop.
+ * <p/>
+ * Set the token on the processing context before starting the update. Calling cancel() from any thread causes the
+ * update to throw a ProcessingCancelledError at the next check. A token cannot be reset; use a new token for every
+ * update.
+ *
+ * @see ProcessingContext#setCancellationToken(CancellationToken)
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,143 @@
+package nodebox.node;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stores compiled expressions by their source text.
+ * <p/>
+ * Nodes created from the same prototype often have the same expressions. A compiled expression does not depend on
+ * the node it is evaluated on, since names are resolved during evaluation. The compiled expression and its analysis
+ * can therefore be shared by all expressions in a library with the same source.
+ * <p/>
+ * Expressions that fail to compile are not stored. Each compiler mode keeps a limited number of entries; the least
+ * recently used entry is removed when the cache is full.
+ *
+ * @see NodeLibrary#getExpressionCache()
+ */
+class CompiledExpressionCache {
+
+    /**
+     * A compiled expression together with its analysis.
+     */
+    static class Entry {
+
+        private final Serializable compiled;
+        private final ExpressionAnalysis analysis;
+
+        Entry(Serializable compiled, ExpressionAnalysis analysis) {
+            this.compiled = compiled;
+            this.analysis = analysis;
+        }
+
+        Serializable getCompiled() {
+            return compiled;
+        }
+
+        ExpressionAnalysis getAnalysis() {
+            return analysis;
+        }
+    }
+
+    /**
+     * The default maximum number of entries for each compiler mode.
+     */
+    static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+    // Access to these maps is synchronized on the map.
+    private final Map<String, Entry> reflectiveEntries;
+    private final Map<String, Entry> bytecodeEntries;
+
+    CompiledExpressionCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Create a cache that keeps the given number of entries for each compiler mode.
+     *
+     * @param maximumSize the maximum number of entries for each mode.
+     */
+    CompiledExpressionCache(int maximumSize) {
+        reflectiveEntries = createEntries(maximumSize);
+        bytecodeEntries = createEntries(maximumSize);
+    }
+
+    private static Map<String, Entry> createEntries(final int maximumSize) {
+        return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Get the compiled expression for the given source.
+     *
+     * @param source the source of the expression
+     * @param mode   the compiler mode
+     * @return the entry, or null if the source was not compiled in this mode yet.
+     */
+    Entry get(String source, Expression.CompilerMode mode) {
+        Map<String, Entry> entries = entries(mode);
+        synchronized (entries) {
+            return entries.get(source);
+        }
+    }
+
+    /**
+     * Store a compiled expression.
+     * <p/>
+     * If another thread stored the same source in the meantime, that entry is kept and returned.
+     *
+     * @param source the source of the expression
+     * @param mode   the compiler mode
+     * @param entry  the compiled expression and its analysis
+     * @return the entry that is stored in the cache.
+     */
+    Entry put(String source, Expression.CompilerMode mode, Entry entry) {
+        Map<String, Entry> entries = entries(mode);
+        synchronized (entries) {
+            Entry existing = entries.get(source);
+            if (existing != null) return existing;
+            entries.put(source, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Get the number of compiled expressions in the cache.
+     *
+     * @return the number of entries in all modes.
+     */
+    int size() {
+        int size;
+        synchronized (reflectiveEntries) {
+            size = reflectiveEntries.size();
+        }
+        synchronized (bytecodeEntries) {
+            size += bytecodeEntries.size();
+        }
+        return size;
+    }
+
+    /**
+     * Remove all compiled expressions.
+     * <p/>
+     * Expressions that are already compiled keep using their compiled expression.
+     */
+    void clear() {
+        synchronized (reflectiveEntries) {
+            reflectiveEntries.clear();
+        }
+        synchronized (bytecodeEntries) {
+            bytecodeEntries.clear();
+        }
+    }
+
+    private Map<String, Entry> entries(Expression.CompilerMode mode) {
+        return mode == Expression.CompilerMode.BYTECODE ? bytecodeEntries : reflectiveEntries;
+    }
+
+}
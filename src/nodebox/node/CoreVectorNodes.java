@@ -0,0 +1,238 @@
+package nodebox.node;
+
+import nodebox.graphics.*;
+
+import java.util.Random;
+
+/**
+ * Java implementations of the filter nodes in the corevector library.
+ * <p/>
+ * The corevector library defines these nodes in Python. The Python code does its work point by point through
+ * Java objects, which is slow. The methods in this class give the same output, and are used instead of the Python
+ * code if the library of the node has native code enabled.
+ * <p/>
+ * Calculations are done in the same precision as the Python code, which uses doubles for floating point values.
+ * Random numbers are generated in the same way as the Python random module in Jython, so seeded nodes produce the
+ * same output.
+ *
+ * @see NativeCode
+ * @see NodeLibrary#setNativeCodeEnabled(boolean)
+ */
+public class CoreVectorNodes {
+
+    public static Object copy(final Node node, ProcessingContext context) {
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        int copies = Math.max(node.asInt("copies"), 0);
+        final String order = node.asString("order");
+        // The values are added up for each copy, like the Python code does.
+        final double[] tx = new double[copies];
+        final double[] ty = new double[copies];
+        final double[] r = new double[copies];
+        final double[] sx = new double[copies];
+        final double[] sy = new double[copies];
+        double dtx = node.asFloat("tx");
+        double dty = node.asFloat("ty");
+        double dr = node.asFloat("r");
+        double dsx = node.asFloat("sx") / 100.0;
+        double dsy = node.asFloat("sy") / 100.0;
+        double ctx = 0, cty = 0, cr = 0, csx = 1, csy = 1;
+        for (int i = 0; i < copies; i++) {
+            tx[i] = ctx;
+            ty[i] = cty;
+            r[i] = cr;
+            sx[i] = csx;
+            sy[i] = csy;
+            ctx += dtx;
+            cty += dty;
+            cr += dr;
+            csx += dsx;
+            csy += dsy;
+        }
+        if (node.asInt("stamp") == 0) {
+            Geometry g = new Geometry();
+            for (int i = 0; i < copies; i++) {
+                g.extend(orderedTransform(order, tx[i], ty[i], r[i], sx[i], sy[i]).map(shape));
+            }
+            return g;
+        }
+        Stamper stamper = new Stamper(node, new StampExpression(node, "expr"));
+        return stamper.stampGeometry(context, copies, new Stamper.Copier() {
+            public Object copy(int index, Node copyNode, ProcessingContext copyContext) {
+                Geometry copyShape = (Geometry) copyNode.getPortValue("shape");
+                if (copyShape == null) return null;
+                return orderedTransform(order, tx[index], ty[index], r[index], sx[index], sy[index]).map(copyShape);
+            }
+        });
+    }
+
+    public static Object place(Node node, ProcessingContext context) {
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        Geometry template = (Geometry) node.getPortValue("template");
+        if (template == null) return shape.clone();
+        final Point[] points = template.copyPoints();
+        if (node.asInt("stamp") == 0) {
+            Geometry g = new Geometry();
+            for (Point point : points) {
+                g.extend(translated(point).map(shape));
+            }
+            return g;
+        }
+        Stamper stamper = new Stamper(node, new StampExpression(node, "expr"));
+        return stamper.stampGeometry(context, points.length, new Stamper.Copier() {
+            public Object copy(int index, Node copyNode, ProcessingContext copyContext) {
+                Geometry copyShape = (Geometry) copyNode.getPortValue("shape");
+                if (copyShape == null) return null;
+                return translated(points[index]).map(copyShape);
+            }
+        });
+    }
+
+    public static Object wiggle(Node node, ProcessingContext context) {
+        PythonRandom random = new PythonRandom(node.asInt("seed"));
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        Geometry newShape = shape.clone();
+        double wx = node.asFloat("wx");
+        double wy = node.asFloat("wy");
+        for (Point point : newShape.getPoints()) {
+            double dx = (random.uniform(0, 1) - 0.5) * wx * 2;
+            double dy = (random.uniform(0, 1) - 0.5) * wy * 2;
+            point.x = (float) (point.x + dx);
+            point.y = (float) (point.y + dy);
+        }
+        return newShape;
+    }
+
+    public static Object scatter(Node node, ProcessingContext context) {
+        PythonRandom random = new PythonRandom(node.asInt("seed"));
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        Rect bounds = shape.getBounds();
+        double bx = bounds.getX();
+        double by = bounds.getY();
+        double bw = bounds.getWidth();
+        double bh = bounds.getHeight();
+        int amount = node.asInt("amount");
+        Path p = new Path();
+        for (int i = 0; i < amount; i++) {
+            int tries = 100;
+            Point pt = null;
+            while (tries > 0) {
+                pt = new Point((float) (bx + random.uniform(0, 1) * bw), (float) (by + random.uniform(0, 1) * bh));
+                if (shape.contains(pt))
+                    break;
+                tries--;
+            }
+            if (tries > 0)
+                p.moveto(pt.x, pt.y);
+        }
+        return p.asGeometry();
+    }
+
+    public static Object merge(Node node, ProcessingContext context) {
+        Geometry g = new Geometry();
+        for (Object shape : node.getPortValues("shapes")) {
+            g.extend((Geometry) shape);
+        }
+        return g;
+    }
+
+    public static Object resample(Node node, ProcessingContext context) {
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        if (node.asString("method").equals("length")) {
+            return shape.resampleByLength(node.asFloat("length"));
+        } else {
+            return shape.resampleByAmount(node.asInt("points"), node.asInt("perContour") != 0);
+        }
+    }
+
+    public static Object transform(Node node, ProcessingContext context) {
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        Transform t = orderedTransform(node.asString("order"), node.asFloat("tx"), node.asFloat("ty"),
+                node.asFloat("r"), node.asFloat("sx") / 100.0, node.asFloat("sy") / 100.0);
+        // Transform.map clones and transforms the geometry.
+        return t.map(shape);
+    }
+
+    public static Object color(Node node, ProcessingContext context) {
+        Geometry shape = (Geometry) node.getPortValue("shape");
+        if (shape == null) return null;
+        Geometry newShape = shape.clone();
+        float strokeWidth = node.asFloat("strokeWidth");
+        for (Path path : newShape.getPaths()) {
+            path.setFillColor(node.asColor("fill"));
+            if (strokeWidth > 0) {
+                path.setStrokeColor(node.asColor("stroke"));
+                path.setStrokeWidth(strokeWidth);
+            } else {
+                path.setStrokeColor(null);
+            }
+        }
+        return newShape;
+    }
+
+    /**
+     * Create a transform from the translate, rotate and scale values.
+     *
+     * @param order the order of the operations. Each letter describes an operation: t, r or s.
+     * @param tx    the horizontal translation
+     * @param ty    the vertical translation
+     * @param r     the rotation in degrees
+     * @param sx    the horizontal scale factor
+     * @param sy    the vertical scale factor
+     * @return a new transform.
+     */
+    private static Transform orderedTransform(String order, double tx, double ty, double r, double sx, double sy) {
+        Transform t = new Transform();
+        for (int i = 0; i < order.length(); i++) {
+            char op = order.charAt(i);
+            if (op == 't') {
+                t.translate(tx, ty);
+            } else if (op == 'r') {
+                t.rotate(r);
+            } else if (op == 's') {
+                t.scale(sx, sy);
+            }
+        }
+        return t;
+    }
+
+    private static Transform translated(Point point) {
+        Transform t = new Transform();
+        t.translate(point.x, point.y);
+        return t;
+    }
+
+    /**
+     * Generates the same random numbers as the Python random module in Jython, which uses java.util.Random.
+     */
+    private static class PythonRandom {
+
+        private final Random random;
+
+        private PythonRandom(int seed) {
+            random = new Random(seed);
+        }
+
+        /**
+         * Get a random number between 0.0 and 1.0, with 53 bits of precision.
+         *
+         * @return a random double.
+         */
+        private double random() {
+            long a = random.nextInt() >>> 5;
+            long b = random.nextInt() >>> 6;
+            return (a * 67108864.0 + b) * (1.0 / 9007199254740992.0);
+        }
+
+        private double uniform(double a, double b) {
+            return a + (b - a) * random();
+        }
+
+    }
+
+}
@@ -5,6 +5,12 @@ import java.util.*;
 /**
  * Nodes can have only one depency, but can have multiple dependents.
  * <p/>
+ * Each node gets a dense integer id when it is first seen. Edges are stored as arrays of ids in both directions,
+ * in the order they were added. The sets returned by getDependents and getDependencies are read-only views on these
+ * arrays, so looking them up does not allocate.
+ * <p/>
+ * The topological order of the graph is cached. It is only recomputed after edges or nodes are added or removed.
+ * <p/>
  * TODO: Implement WeakReferences.
  *
  * @param <T> The type of nodes to store.
@@ -12,82 +18,117 @@ import java.util.*;
  */
 public class DependencyGraph<T, I> {
 
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int[] EMPTY_IDS = new int[0];
+
+    /**
+     * Maps every node that was ever seen to its id.
+     */
+    private HashMap<T, Integer> ids = new HashMap<T, Integer>();
+
+    /**
+     * All nodes that were ever seen, indexed by their id.
+     */
+    private ArrayList<T> nodesById = new ArrayList<T>();
+
+    /**
+     * Marks the nodes that are part of the graph.
+     * Nodes that only have information attached to them are not part of the graph.
+     */
+    private boolean[] inGraph = new boolean[INITIAL_CAPACITY];
+
     /**
-     * The list of all nodes in the graph
+     * The number of nodes in the graph.
      */
-    private Set<T> nodes = new HashSet<T>();
+    private int nodeCount = 0;
 
     /**
      * All edges, keyed by the output (or destination), and going downstream,
      * to the input (or origin).
      */
-    private HashMap<T, Set<T>> downstreams = new HashMap<T, Set<T>>();
+    private int[][] downstreams = new int[INITIAL_CAPACITY][];
+    private int[] downstreamCounts = new int[INITIAL_CAPACITY];
 
     /**
      * All edges, keyed by the input (or origin), and going upstream,
      * to the output (or destination).
      */
-    private HashMap<T, Set<T>> upstreams = new HashMap<T, Set<T>>();
+    private int[][] upstreams = new int[INITIAL_CAPACITY][];
+    private int[] upstreamCounts = new int[INITIAL_CAPACITY];
 
     /**
-     * Extra information attached to a node in the graph.
+     * Extra information attached to a node in the graph, indexed by id.
      */
-    private HashMap<T, I> nodeInfo = new HashMap<T, I>();
+    private Object[] nodeInfo = new Object[INITIAL_CAPACITY];
 
     /**
-     * Colors are used for the cycle detector
+     * Read-only views on the dependents and dependencies of each node. Created on demand.
      */
-    private enum Color {
-        WHITE, GRAY, BLACK
-    }
+    private Object[] dependentSets = new Object[INITIAL_CAPACITY];
+    private Object[] dependencySets = new Object[INITIAL_CAPACITY];
 
     /**
-     * Marks are used for the cycle detector.
+     * The ids of all nodes in topological order, or null if the order needs to be recomputed.
      */
-    private Map<T, Color> marks;
+    private int[] topologicalOrder;
+
+    /**
+     * Incremented every time the edges change, so iterators can detect concurrent modification.
+     */
+    private int modCount = 0;
+
+    /**
+     * Incremented every time the nodes, edges or info change.
+     */
+    private int version = 0;
+
+    /**
+     * Scratch space for the reachability check.
+     */
+    private int[] visitMarks = new int[INITIAL_CAPACITY];
+    private int visitEpoch = 0;
+    private int[] visitStack = new int[INITIAL_CAPACITY];
+
+    /**
+     * In bulk load mode, cycles are only checked at the end of the load.
+     */
+    private boolean bulkLoading = false;
+
+    /**
+     * The dependencies added during bulk load, stored as pairs of dependency and dependent.
+     */
+    private List<T> bulkDependencies;
+    private List<T> bulkDependents;
 
 
     public void addNode(T node) {
-        nodes.add(node);
+        addToGraph(idFor(node));
     }
 
     /**
      * Create a dependency between two nodes.
+     * <p/>
+     * Adding the dependency would cause a cycle if the dependency can already be reached from the dependent.
+     * Only this part of the graph is checked. In bulk load mode, cycles are checked at the end of the load.
      *
      * @param dependency the upstream (output) node that the dependent node relies on
      * @param dependent  the downstream (input) node that is dependent on the dependency
      * @throws IllegalArgumentException if adding this dependency would create a cycle.
+     * @see #beginBulkLoad()
      */
     public void addDependency(T dependency, T dependent) throws IllegalArgumentException {
         if (dependency.equals(dependent)) {
             throw new IllegalArgumentException("The dependency '" + dependency + "' refers to itself.");
         }
-        nodes.add(dependency);
-        nodes.add(dependent);
-
-        Set<T> dependencies = upstreams.get(dependent);
-        if (dependencies == null) {
-            dependencies = new HashSet<T>();
-            upstreams.put(dependent, dependencies);
-        }
-        dependencies.add(dependency);
-
-        Set<T> dependents = downstreams.get(dependency);
-        if (dependents == null) {
-            dependents = new HashSet<T>();
-            downstreams.put(dependency, dependents);
-        }
-        dependents.add(dependent);
-
-        // Check for cycles and remove the dependency if cycles were found.
-        if (hasCycles()) {
-            upstreams.remove(dependent);
-            dependents.remove(dependent);
-            if (dependents.size() == 0) {
-                downstreams.remove(dependency);
-            }
+        int dependencyId = idFor(dependency);
+        int dependentId = idFor(dependent);
+        if (bulkLoading) {
+            bulkDependencies.add(dependency);
+            bulkDependents.add(dependent);
+        } else if (isReachable(dependentId, dependencyId)) {
             throw new IllegalArgumentException("Adding a dependency from '" + dependent + "' to '" + dependency + "' would cause a cyclic dependency.");
         }
+        addEdge(dependencyId, dependentId);
     }
 
     /**
@@ -106,13 +147,13 @@ public class DependencyGraph<T, I> {
     }
 
     public boolean removeDependency(T dependency, T dependent) {
-        Set<T> dependencies = upstreams.get(dependent);
-        Set<T> dependents = downstreams.get(dependency);
-        boolean removedSomething = false;
-        if (dependencies != null)
-            removedSomething = dependencies.remove(dependency);
-        if (dependents != null)
-            removedSomething = dependents.remove(dependent) | removedSomething;
+        Integer dependencyId = ids.get(dependency);
+        Integer dependentId = ids.get(dependent);
+        if (dependencyId == null || dependentId == null) return false;
+        boolean removedSomething = removeId(upstreams, upstreamCounts, dependentId, dependencyId);
+        removedSomething = removeId(downstreams, downstreamCounts, dependencyId, dependentId) | removedSomething;
+        if (removedSomething)
+            edgesChanged();
         return removedSomething;
     }
 
@@ -124,8 +165,10 @@ public class DependencyGraph<T, I> {
      * @return true if the dependent relies on the value of the dependency.
      */
     public boolean hasDependency(T dependency, T dependent) {
-        Set<T> dependencies = upstreams.get(dependent);
-        return dependencies != null && dependencies.contains(dependency);
+        Integer dependencyId = ids.get(dependency);
+        Integer dependentId = ids.get(dependent);
+        if (dependencyId == null || dependentId == null) return false;
+        return indexOf(upstreams[dependentId], upstreamCounts[dependentId], dependencyId) >= 0;
     }
 
     //// Dependency info ////
@@ -139,8 +182,10 @@ public class DependencyGraph<T, I> {
      * @param node the downstream (input) node
      * @return the information, or null if no info is available.
      */
+    @SuppressWarnings("unchecked")
     public I getInfo(T node) {
-        return nodeInfo.get(node);
+        Integer id = ids.get(node);
+        return id == null ? null : (I) nodeInfo[id];
     }
 
     /**
@@ -150,7 +195,8 @@ public class DependencyGraph<T, I> {
      * @param info the extra information.
      */
     public void setInfo(T node, I info) {
-        nodeInfo.put(node, info);
+        nodeInfo[idFor(node)] = info;
+        version++;
     }
 
     /**
@@ -159,160 +205,488 @@ public class DependencyGraph<T, I> {
      * @param node the downstream (input) node
      */
     public void removeInfo(T node) {
-        nodeInfo.remove(node);
+        Integer id = ids.get(node);
+        if (id != null) {
+            nodeInfo[id] = null;
+            version++;
+        }
     }
 
+    @SuppressWarnings("unchecked")
     public Set<I> getInfos() {
-        Set<I> infos = new HashSet<I>(nodeInfo.size());
-        infos.addAll(nodeInfo.values());
+        Set<I> infos = new HashSet<I>();
+        for (int id = 0; id < nodesById.size(); id++) {
+            if (nodeInfo[id] != null)
+                infos.add((I) nodeInfo[id]);
+        }
         return infos;
     }
 
     //// Utility methods ////
 
     public List<T> getTopNodes() {
-        if (nodes.isEmpty()) return null;
+        if (nodeCount == 0) return null;
         List<T> topNodes = new ArrayList<T>();
         // For all of the nodes, check if they have no dependencies.
-        for (T node : nodes) {
-            if (!upstreams.containsKey(node))
-                topNodes.add(node);
+        for (int id = 0; id < nodesById.size(); id++) {
+            if (inGraph[id] && upstreamCounts[id] == 0)
+                topNodes.add(nodesById.get(id));
         }
         return topNodes;
     }
 
+    /**
+     * Get all nodes that directly depend on the given node.
+     *
+     * @param node the node
+     * @return a read-only view on the dependents of the node.
+     */
+    @SuppressWarnings("unchecked")
     public Set<T> getDependents(T node) {
-        Set<T> dependents = downstreams.get(node);
+        Integer id = ids.get(node);
+        if (id == null) return Collections.emptySet();
+        Set<T> dependents = (Set<T>) dependentSets[id];
         if (dependents == null) {
-            return new HashSet<T>(0);
-        } else {
-            return dependents;
+            dependents = new NodeSet(id, true);
+            dependentSets[id] = dependents;
         }
-
-//        Set<Parameter> set = new HashSet<Parameter>(dependents.size());
-//        for (WeakReference<Parameter> ref : dependents) {
-//            Parameter p = ref.get();
-//            if (p != null)
-//                set.add(p);
-//        }
-//        return set;
-
+        return dependents;
     }
 
+    /**
+     * Get all nodes the given node directly depends on.
+     *
+     * @param node the node
+     * @return a read-only view on the dependencies of the node.
+     */
+    @SuppressWarnings("unchecked")
     public Set<T> getDependencies(T node) {
-        Set<T> dependencies = upstreams.get(node);
+        Integer id = ids.get(node);
+        if (id == null) return Collections.emptySet();
+        Set<T> dependencies = (Set<T>) dependencySets[id];
         if (dependencies == null) {
-            return new HashSet<T>(0);
-        } else {
-            return dependencies;
+            dependencies = new NodeSet(id, false);
+            dependencySets[id] = dependencies;
         }
-
-//        Set<Parameter> set = new HashSet<Parameter>(dependencies.size());
-//        for (WeakReference<Parameter> ref : dependencies) {
-//            Parameter p = ref.get();
-//            if (p != null)
-//                set.add(p);
-//        }
-//        return set;
-
+        return dependencies;
     }
 
     public boolean removeDependencies(T dependent) {
-        Set<T> dependencies = upstreams.get(dependent);
-        if (dependencies == null) return false;
-        for (T dependency : dependencies) {
-            Set<T> dependents = downstreams.get(dependency);
-            dependents.remove(dependent);
+        Integer dependentId = ids.get(dependent);
+        if (dependentId == null || upstreamCounts[dependentId] == 0) return false;
+        int[] dependencyIds = upstreams[dependentId];
+        for (int i = 0; i < upstreamCounts[dependentId]; i++) {
+            removeId(downstreams, downstreamCounts, dependencyIds[i], dependentId);
         }
-        upstreams.remove(dependent);
+        upstreamCounts[dependentId] = 0;
+        edgesChanged();
         // TODO: Check removeInfo(dependent);
         return true;
     }
 
     public boolean removeDependents(T dependency) {
-        Set<T> dependents = downstreams.get(dependency);
-        if (dependents == null) return false;
-        for (T dependent : dependents) {
-            Set<T> dependencies = upstreams.get(dependent);
-            dependencies.remove(dependency);
+        Integer dependencyId = ids.get(dependency);
+        if (dependencyId == null || downstreamCounts[dependencyId] == 0) return false;
+        int[] dependentIds = downstreams[dependencyId];
+        for (int i = 0; i < downstreamCounts[dependencyId]; i++) {
+            removeId(upstreams, upstreamCounts, dependentIds[i], dependencyId);
             // TODO: Check removeInfo(dependent);
         }
-        downstreams.remove(dependency);
+        downstreamCounts[dependencyId] = 0;
+        edgesChanged();
         return true;
     }
 
+    /**
+     * Get all nodes in the graph in topological order: every node comes after all of its dependencies.
+     * <p/>
+     * The order is cached until the graph changes.
+     *
+     * @return a read-only list of all nodes.
+     */
+    public List<T> getTopologicalOrder() {
+        final int[] order = getTopologicalIds();
+        return new AbstractList<T>() {
+            public T get(int index) {
+                return nodesById.get(order[index]);
+            }
+
+            public int size() {
+                return order.length;
+            }
+        };
+    }
+
+    /**
+     * Iterate over all nodes in the graph. The top nodes come first, then the nodes that depend on them, and so on.
+     * Every node is returned once, after all of its dependencies.
+     *
+     * @return an iterator over all nodes.
+     */
     public Iterator<T> getBreadthFirstIterator() {
         return new GraphIterator(this);
     }
 
+    //// Bulk loading ////
+
     /**
-     * Find cycles in a Directed Acyclic Graph structure.
+     * Start adding a large number of dependencies.
      * <p/>
-     * hasCycles gets invoked each time a new dependency is established.
+     * Until endBulkLoad is called, addDependency does not check for cycles. This avoids walking the graph for
+     * every new dependency, e.g. when loading a library.
      *
-     * @return true if this graph contains cycles.
+     * @see #endBulkLoad()
      */
-    private boolean hasCycles() {
-        // The cycle detector stores its state in the marks map.
-        // This map is nulled at the end of the method.
-        marks = new HashMap<T, Color>(nodes.size());
-        for (T node : nodes) {
-            marks.put(node, Color.WHITE);
+    public void beginBulkLoad() {
+        if (bulkLoading)
+            throw new IllegalStateException("The graph is already in bulk load mode.");
+        bulkLoading = true;
+        bulkDependencies = new ArrayList<T>();
+        bulkDependents = new ArrayList<T>();
+    }
+
+    /**
+     * Stop bulk load mode and check the graph for cycles.
+     * <p/>
+     * The graph is checked once. If it contains cycles, the dependencies added during the bulk load are added
+     * again in their original order, as if bulk load mode was never used. Dependencies that would cause a cycle
+     * are removed, and their dependents are returned.
+     *
+     * @return the dependents whose dependencies caused a cycle. This list is empty if no cycles were found.
+     */
+    public List<T> endBulkLoad() {
+        if (!bulkLoading)
+            throw new IllegalStateException("The graph is not in bulk load mode.");
+        bulkLoading = false;
+        List<T> addedDependencies = bulkDependencies;
+        List<T> addedDependents = bulkDependents;
+        bulkDependencies = null;
+        bulkDependents = null;
+        List<T> rejectedDependents = new ArrayList<T>();
+        if (!hasCycles()) return rejectedDependents;
+        // Dependencies that were removed during the bulk load are skipped.
+        List<T> dependencies = new ArrayList<T>();
+        List<T> dependents = new ArrayList<T>();
+        for (int i = 0; i < addedDependencies.size(); i++) {
+            T dependency = addedDependencies.get(i);
+            T dependent = addedDependents.get(i);
+            if (hasDependency(dependency, dependent)) {
+                dependencies.add(dependency);
+                dependents.add(dependent);
+            }
         }
-        for (T node : nodes) {
-            if (marks.get(node) == Color.WHITE) {
-                if (visit(node)) {
-                    marks = null;
-                    return true;
-                }
+        for (int i = 0; i < dependencies.size(); i++) {
+            removeDependency(dependencies.get(i), dependents.get(i));
+        }
+        for (int i = 0; i < dependencies.size(); i++) {
+            int dependencyId = ids.get(dependencies.get(i));
+            int dependentId = ids.get(dependents.get(i));
+            if (isReachable(dependentId, dependencyId)) {
+                T dependent = dependents.get(i);
+                if (!rejectedDependents.contains(dependent))
+                    rejectedDependents.add(dependent);
+            } else {
+                addEdge(dependencyId, dependentId);
             }
         }
-        marks = null;
-        return false;
+        return rejectedDependents;
+    }
+
+    public boolean isBulkLoading() {
+        return bulkLoading;
+    }
+
+    /**
+     * Get the version of the graph. The version changes whenever nodes, edges or information are added or removed.
+     * <p/>
+     * Use this to check if structures derived from the graph are still valid.
+     *
+     * @return the current version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    //// Internal graph structure ////
+
+    /**
+     * Get the id of the given node, assigning a new id if the node was not seen before.
+     *
+     * @param node the node
+     * @return the id of the node.
+     */
+    private int idFor(T node) {
+        Integer id = ids.get(node);
+        if (id != null) return id;
+        int newId = nodesById.size();
+        ensureCapacity(newId + 1);
+        ids.put(node, newId);
+        nodesById.add(node);
+        return newId;
+    }
+
+    private void addToGraph(int id) {
+        if (inGraph[id]) return;
+        inGraph[id] = true;
+        nodeCount++;
+        topologicalOrder = null;
+        version++;
+    }
+
+    private void addEdge(int dependencyId, int dependentId) {
+        addToGraph(dependencyId);
+        addToGraph(dependentId);
+        if (indexOf(upstreams[dependentId], upstreamCounts[dependentId], dependencyId) >= 0) return;
+        addId(upstreams, upstreamCounts, dependentId, dependencyId);
+        addId(downstreams, downstreamCounts, dependencyId, dependentId);
+        edgesChanged();
+    }
+
+    private void edgesChanged() {
+        modCount++;
+        topologicalOrder = null;
+        version++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= inGraph.length) return;
+        int newCapacity = Math.max(capacity, inGraph.length * 2);
+        inGraph = copyOf(inGraph, newCapacity);
+        downstreams = copyOf(downstreams, newCapacity);
+        downstreamCounts = copyOf(downstreamCounts, newCapacity);
+        upstreams = copyOf(upstreams, newCapacity);
+        upstreamCounts = copyOf(upstreamCounts, newCapacity);
+        nodeInfo = copyOf(nodeInfo, newCapacity);
+        dependentSets = copyOf(dependentSets, newCapacity);
+        dependencySets = copyOf(dependencySets, newCapacity);
+        visitMarks = copyOf(visitMarks, newCapacity);
+        visitStack = copyOf(visitStack, newCapacity);
+    }
+
+    private static void addId(int[][] edges, int[] counts, int from, int to) {
+        int[] targets = edges[from];
+        int count = counts[from];
+        if (targets == null) {
+            targets = new int[4];
+            edges[from] = targets;
+        } else if (count == targets.length) {
+            targets = copyOf(targets, count * 2);
+            edges[from] = targets;
+        }
+        targets[count] = to;
+        counts[from] = count + 1;
+    }
+
+    private static boolean removeId(int[][] edges, int[] counts, int from, int to) {
+        int[] targets = edges[from];
+        int count = counts[from];
+        int index = indexOf(targets, count, to);
+        if (index < 0) return false;
+        // Shift the remaining ids to keep the insertion order.
+        System.arraycopy(targets, index + 1, targets, index, count - index - 1);
+        counts[from] = count - 1;
+        return true;
     }
 
-    private boolean visit(T node) {
-        marks.put(node, Color.GRAY);
-        Set<T> outputNodes = downstreams.get(node);
-        if (outputNodes != null) {
-            for (T output : outputNodes) {
-                if (!marks.containsKey(output)) continue;
-                if (marks.get(output) == Color.GRAY) {
-                    return true;
-                } else if (marks.get(output) == Color.WHITE) {
-                    if (visit(output))
-                        return true;
-                } else {
-                    // Visiting black vertices is okay.
+    private static int indexOf(int[] targets, int count, int id) {
+        for (int i = 0; i < count; i++) {
+            if (targets[i] == id) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Check if the target node can be reached by following the dependents of the source node.
+     *
+     * @param sourceId the id of the node to start from
+     * @param targetId the id of the node to find
+     * @return true if the target is downstream of the source.
+     */
+    private boolean isReachable(int sourceId, int targetId) {
+        if (downstreamCounts[sourceId] == 0) return false;
+        // Using a new epoch clears all the visit marks at once.
+        int epoch = ++visitEpoch;
+        if (epoch == 0) {
+            Arrays.fill(visitMarks, 0);
+            epoch = visitEpoch = 1;
+        }
+        int stackSize = 0;
+        visitStack[stackSize++] = sourceId;
+        visitMarks[sourceId] = epoch;
+        while (stackSize > 0) {
+            int id = visitStack[--stackSize];
+            if (id == targetId) return true;
+            int[] targets = downstreams[id];
+            for (int i = 0; i < downstreamCounts[id]; i++) {
+                int target = targets[i];
+                if (visitMarks[target] != epoch) {
+                    visitMarks[target] = epoch;
+                    visitStack[stackSize++] = target;
                 }
             }
         }
-        marks.put(node, Color.BLACK);
         return false;
     }
 
-    public class GraphIterator implements Iterator {
-        Queue<T> q = new LinkedList<T>();
+    /**
+     * Get the ids of all nodes in topological order, using the cached order if it is still valid.
+     * <p/>
+     * Nodes are ordered breadth-first, starting from the top nodes. If the graph contains cycles, the nodes in
+     * the cycles and all nodes downstream of them are left out.
+     *
+     * @return the ordered ids.
+     */
+    private int[] getTopologicalIds() {
+        int[] order = topologicalOrder;
+        if (order != null) return order;
+        int size = nodesById.size();
+        int[] inDegrees = new int[size];
+        int[] queue = new int[nodeCount];
+        int head = 0, tail = 0;
+        for (int id = 0; id < size; id++) {
+            if (!inGraph[id]) continue;
+            inDegrees[id] = upstreamCounts[id];
+            if (inDegrees[id] == 0)
+                queue[tail++] = id;
+        }
+        while (head < tail) {
+            int id = queue[head++];
+            int[] targets = downstreams[id];
+            for (int i = 0; i < downstreamCounts[id]; i++) {
+                if (--inDegrees[targets[i]] == 0)
+                    queue[tail++] = targets[i];
+            }
+        }
+        order = tail == queue.length ? queue : copyOf(queue, tail);
+        topologicalOrder = order;
+        return order;
+    }
 
-        public GraphIterator(DependencyGraph<T, I> dg) {
-            for (T node : dg.getTopNodes()) {
-                q.add(node);
+    /**
+     * Find cycles in a Directed Acyclic Graph structure.
+     * <p/>
+     * The graph has cycles if the topological order doesn't contain all nodes.
+     * This is used to check the graph after a bulk load.
+     *
+     * @return true if this graph contains cycles.
+     */
+    private boolean hasCycles() {
+        return getTopologicalIds().length < nodeCount;
+    }
+
+    private static boolean[] copyOf(boolean[] original, int length) {
+        boolean[] copy = new boolean[length];
+        System.arraycopy(original, 0, copy, 0, Math.min(original.length, length));
+        return copy;
+    }
+
+    private static int[] copyOf(int[] original, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(original, 0, copy, 0, Math.min(original.length, length));
+        return copy;
+    }
+
+    private static int[][] copyOf(int[][] original, int length) {
+        int[][] copy = new int[length][];
+        System.arraycopy(original, 0, copy, 0, Math.min(original.length, length));
+        return copy;
+    }
+
+    private static Object[] copyOf(Object[] original, int length) {
+        Object[] copy = new Object[length];
+        System.arraycopy(original, 0, copy, 0, Math.min(original.length, length));
+        return copy;
+    }
+
+    //// Views and iterators ////
+
+    /**
+     * A read-only view on the dependents or dependencies of a node.
+     */
+    private class NodeSet extends AbstractSet<T> {
+
+        private final int id;
+        private final boolean dependents;
+
+        private NodeSet(int id, boolean dependents) {
+            this.id = id;
+            this.dependents = dependents;
+        }
+
+        @Override
+        public int size() {
+            return dependents ? downstreamCounts[id] : upstreamCounts[id];
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            Integer otherId = ids.get(o);
+            if (otherId == null) return false;
+            if (dependents) {
+                return indexOf(downstreams[id], downstreamCounts[id], otherId) >= 0;
+            } else {
+                return indexOf(upstreams[id], upstreamCounts[id], otherId) >= 0;
             }
         }
 
+        @Override
+        public Iterator<T> iterator() {
+            if (dependents) {
+                return new IdIterator(downstreams[id], downstreamCounts[id]);
+            } else {
+                return new IdIterator(upstreams[id], upstreamCounts[id]);
+            }
+        }
+    }
+
+    /**
+     * Iterates over an array of node ids. Throws a ConcurrentModificationException if the edges change.
+     */
+    private class IdIterator implements Iterator<T> {
+
+        private final int[] nodeIds;
+        private final int count;
+        private final int expectedModCount;
+        private int index = 0;
+
+        private IdIterator(int[] nodeIds, int count) {
+            this.nodeIds = nodeIds == null ? EMPTY_IDS : nodeIds;
+            this.count = count;
+            this.expectedModCount = modCount;
+        }
+
         public boolean hasNext() {
-            return q.size() > 0;
+            return index < count;
         }
 
         public T next() {
-            T node = q.remove();
-            Set<T> children = downstreams.get(node);
-            if (children != null) {
-                for (T child : children) {
-                    q.add(child);
-                }
-            }
-            return node;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (index >= count)
+                throw new NoSuchElementException();
+            return nodesById.get(nodeIds[index++]);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported.");
+        }
+    }
+
+    public class GraphIterator implements Iterator<T> {
+
+        private final Iterator<T> iterator;
+
+        public GraphIterator(DependencyGraph<T, I> dg) {
+            int[] order = dg.getTopologicalIds();
+            iterator = dg.new IdIterator(order, order.length);
+        }
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public T next() {
+            return iterator.next();
         }
 
         public void remove() {
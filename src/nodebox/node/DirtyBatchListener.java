@@ -0,0 +1,24 @@
+package nodebox.node;
+
+import java.util.EventListener;
+import java.util.List;
+
+/**
+ * A DirtyBatchListener responds to nodes in a library being marked dirty.
+ * <p/>
+ * Unlike the DirtyListener, which gets an event for a single node, this listener gets one event for every change,
+ * containing all the nodes that change marked dirty.
+ *
+ * @see NodeLibrary#addDirtyBatchListener(DirtyBatchListener)
+ */
+public interface DirtyBatchListener extends EventListener {
+
+    /**
+     * Invoked after a change marked one or more nodes dirty.
+     *
+     * @param source the library the nodes belong to
+     * @param nodes  the nodes that were marked dirty, in the order they were marked
+     */
+    public void nodesDirty(NodeLibrary source, List<Node> nodes);
+
+}
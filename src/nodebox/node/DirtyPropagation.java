@@ -0,0 +1,138 @@
+package nodebox.node;
+
+import java.util.*;
+
+/**
+ * Marks nodes and parameters dirty in a single iterative pass.
+ * <p/>
+ * Marking a node dirty also marks everything downstream of it dirty: connected nodes, the parent if the node is
+ * rendered, and parameters with expressions that refer to changed parameters. Instead of recursing, the propagation
+ * keeps a queue of nodes and parameters to visit. Items that are already dirty are skipped, so every item is visited
+ * once.
+ * <p/>
+ * The events are fired after the pass is finished. Each library fires a single event containing all of its dirty
+ * nodes. Dirty nodes that have their own dirty listeners fire a node dirty event, and nodes fire a parameter value
+ * event for each of their dirty parameters. No events are fired while the pass is running.
+ * <p/>
+ * Marking a node or parameter dirty while a propagation is running on the same thread adds it to the running
+ * propagation.
+ */
+final class DirtyPropagation {
+
+    private static final ThreadLocal<DirtyPropagation> currentPropagation = new ThreadLocal<DirtyPropagation>();
+
+    private final LinkedList<Object> queue = new LinkedList<Object>();
+    private final List<Node> dirtyNodes = new ArrayList<Node>();
+    private final List<Parameter> dirtyParameters = new ArrayList<Parameter>();
+
+    private DirtyPropagation() {
+    }
+
+    /**
+     * Mark the given node and everything downstream of it dirty.
+     *
+     * @param node the node to mark dirty
+     */
+    static void markDirty(Node node) {
+        propagate(node);
+    }
+
+    /**
+     * Mark the given parameter, its node and everything downstream of it dirty.
+     *
+     * @param parameter the parameter to mark dirty
+     */
+    static void markDirty(Parameter parameter) {
+        propagate(parameter);
+    }
+
+    /**
+     * Mark the given parameters, their nodes and everything downstream of them dirty.
+     * <p/>
+     * All parameters are marked in a single pass, so the dirty events are fired once.
+     *
+     * @param parameters the parameters to mark dirty
+     */
+    static void markDirty(Collection<Parameter> parameters) {
+        propagate(parameters);
+    }
+
+    private static void propagate(Object item) {
+        propagate(Collections.singletonList(item));
+    }
+
+    private static void propagate(Collection<?> items) {
+        DirtyPropagation propagation = currentPropagation.get();
+        if (propagation != null) {
+            propagation.queue.addAll(items);
+            return;
+        }
+        propagation = new DirtyPropagation();
+        currentPropagation.set(propagation);
+        try {
+            propagation.queue.addAll(items);
+            propagation.run();
+        } finally {
+            currentPropagation.remove();
+        }
+        // Listeners can mark other nodes dirty. This starts a new propagation.
+        propagation.fireEvents();
+    }
+
+    /**
+     * Add a node to the queue. This is called by nodes while they are marked dirty.
+     *
+     * @param node the node to visit.
+     */
+    void add(Node node) {
+        queue.add(node);
+    }
+
+    /**
+     * Add a parameter to the queue. This is called by parameters while they are marked dirty.
+     *
+     * @param parameter the parameter to visit.
+     */
+    void add(Parameter parameter) {
+        queue.add(parameter);
+    }
+
+    private void run() {
+        while (!queue.isEmpty()) {
+            Object item = queue.removeFirst();
+            if (item instanceof Node) {
+                Node node = (Node) item;
+                if (node.markDirty(this))
+                    dirtyNodes.add(node);
+            } else {
+                Parameter parameter = (Parameter) item;
+                if (parameter.markDirty(this))
+                    dirtyParameters.add(parameter);
+            }
+        }
+    }
+
+    private void fireEvents() {
+        for (Parameter parameter : dirtyParameters) {
+            parameter.getNode().fireParameterValueChanged(parameter);
+        }
+        if (dirtyNodes.isEmpty()) return;
+        Map<NodeLibrary, List<Node>> libraryNodes = new LinkedHashMap<NodeLibrary, List<Node>>();
+        for (Node node : dirtyNodes) {
+            if (node.hasDirtyListeners())
+                node.fireNodeDirty();
+            NodeLibrary library = node.getLibrary();
+            if (library == null) continue;
+            List<Node> nodes = libraryNodes.get(library);
+            if (nodes == null) {
+                nodes = new ArrayList<Node>();
+                libraryNodes.put(library, nodes);
+            }
+            nodes.add(node);
+        }
+        for (Map.Entry<NodeLibrary, List<Node>> entry : libraryNodes.entrySet()) {
+            entry.getKey().fireNodesDirty(Collections.unmodifiableList(entry.getValue()));
+        }
+    }
+
+}
@@ -9,12 +9,14 @@ public class Dispatcher {
     public static class Receiver {
         private Object object;
         private Method method;
+        private MethodInvoker invoker;
         private String signal;
         private Object sender;
 
         public Receiver(Object object, Method method, String signal, Object sender) {
             this.object = object;
             this.method = method;
+            this.invoker = MethodInvoker.forMethod(method);
             this.signal = signal;
             this.sender = sender;
         }
@@ -37,7 +39,7 @@ public class Dispatcher {
 
         public void send() {
             try {
-                method.invoke(object);
+                invoker.invoke(object, null, null);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,278 @@
+package nodebox.node;
+
+import java.util.*;
+
+/**
+ * A flat evaluation plan for the children of a network.
+ * <p/>
+ * The children are sorted so that every node comes after the nodes connected to its input ports. The order is the
+ * same as the order in which a recursive update visits the nodes: the input ports are followed in order, and the
+ * outputs of each connection in order. Each entry holds the connections of the node, so updating a node does not
+ * need to look up the connections in the child graph.
+ * <p/>
+ * Updating a node first collects its dirty upstream nodes, then updates them in one pass over the plan. Since all
+ * upstream nodes of a node come before it, every node is updated after its inputs. This avoids deep recursion on long
+ * chains of nodes.
+ * <p/>
+ * A schedule is built on demand by the network and rebuilt when the connections change.
+ *
+ * @see Node#getEvaluationSchedule()
+ */
+class EvaluationSchedule {
+
+    private static final Connection[] NO_CONNECTIONS = new Connection[0];
+    private static final int[] NO_INPUTS = new int[0];
+
+    private final DependencyGraph<Port, Connection> graph;
+    private final int graphVersion;
+    private final Entry[] entries;
+    private final Map<Node, Entry> entryMap;
+
+    /**
+     * Build a schedule for the children of the given network.
+     *
+     * @param network the network node
+     * @param graph   the child graph of the network, containing the connections between the children
+     */
+    EvaluationSchedule(Node network, DependencyGraph<Port, Connection> graph) {
+        this.graph = graph;
+        graphVersion = graph.getVersion();
+        List<Node> children = network.getChildren();
+        List<Node> order = new ArrayList<Node>(children.size());
+        Map<Node, List<Node>> upstreamMap = new HashMap<Node, List<Node>>();
+        Map<Node, List<Connection>> connectionMap = new HashMap<Node, List<Connection>>();
+        for (Node child : children) {
+            List<Node> upstreamNodes = new ArrayList<Node>();
+            List<Connection> connections = new ArrayList<Connection>();
+            for (Port port : child.getPorts()) {
+                Connection conn = graph.getInfo(port);
+                if (conn == null) continue;
+                connections.add(conn);
+                upstreamNodes.addAll(conn.getOutputNodes());
+            }
+            upstreamMap.put(child, upstreamNodes);
+            connectionMap.put(child, connections);
+        }
+        // Depth-first post-order, using an explicit stack.
+        Set<Node> visited = new HashSet<Node>();
+        LinkedList<Node> nodeStack = new LinkedList<Node>();
+        LinkedList<Iterator<Node>> upstreamStack = new LinkedList<Iterator<Node>>();
+        for (Node child : children) {
+            if (!visited.add(child)) continue;
+            nodeStack.addLast(child);
+            upstreamStack.addLast(upstreamMap.get(child).iterator());
+            while (!nodeStack.isEmpty()) {
+                Iterator<Node> it = upstreamStack.getLast();
+                if (it.hasNext()) {
+                    Node upstream = it.next();
+                    // Connections only exist between children of the same network.
+                    if (!upstreamMap.containsKey(upstream) || !visited.add(upstream)) continue;
+                    nodeStack.addLast(upstream);
+                    upstreamStack.addLast(upstreamMap.get(upstream).iterator());
+                } else {
+                    order.add(nodeStack.removeLast());
+                    upstreamStack.removeLast();
+                }
+            }
+        }
+        entries = new Entry[order.size()];
+        entryMap = new HashMap<Node, Entry>(order.size());
+        for (int i = 0; i < entries.length; i++) {
+            Node node = order.get(i);
+            List<Connection> connections = connectionMap.get(node);
+            Entry entry = new Entry(node, i, connections.isEmpty() ? NO_CONNECTIONS : connections.toArray(new Connection[connections.size()]));
+            entries[i] = entry;
+            entryMap.put(node, entry);
+        }
+        for (Entry entry : entries) {
+            List<Node> upstreamNodes = upstreamMap.get(entry.node);
+            if (upstreamNodes.isEmpty()) continue;
+            Set<Integer> inputs = new LinkedHashSet<Integer>();
+            for (Node upstream : upstreamNodes) {
+                Entry upstreamEntry = entryMap.get(upstream);
+                if (upstreamEntry != null)
+                    inputs.add(upstreamEntry.index);
+            }
+            entry.inputs = new int[inputs.size()];
+            int i = 0;
+            for (Integer input : inputs) {
+                entry.inputs[i++] = input;
+            }
+        }
+    }
+
+    /**
+     * Check if the schedule still matches the connections in the network.
+     *
+     * @param graph the current child graph of the network
+     * @return false if the schedule needs to be rebuilt.
+     */
+    boolean isValidFor(DependencyGraph<Port, Connection> graph) {
+        return this.graph == graph && graph.getVersion() == graphVersion;
+    }
+
+    /**
+     * Get the entry for the given node.
+     *
+     * @param node a child of the network.
+     * @return the entry, or null if the node was added after the schedule was built.
+     */
+    Entry getEntry(Node node) {
+        return entryMap.get(node);
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * Get all nodes upstream of the given entry, whether they are dirty or not.
+     *
+     * @param entry the entry whose upstream nodes to return.
+     * @return the upstream nodes, in schedule order.
+     */
+    List<Node> getUpstreamNodes(Entry entry) {
+        boolean[] upstream = new boolean[entry.index];
+        int[] stack = new int[entry.index];
+        int stackSize = 0;
+        for (int input : entry.inputs) {
+            if (!upstream[input]) {
+                upstream[input] = true;
+                stack[stackSize++] = input;
+            }
+        }
+        while (stackSize > 0) {
+            int index = stack[--stackSize];
+            for (int input : entries[index].inputs) {
+                if (!upstream[input]) {
+                    upstream[input] = true;
+                    stack[stackSize++] = input;
+                }
+            }
+        }
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < upstream.length; i++) {
+            if (upstream[i])
+                nodes.add(entries[i].node);
+        }
+        return nodes;
+    }
+
+    /**
+     * Update all dirty nodes upstream of the given entry.
+     * <p/>
+     * The entry itself is not updated. If one of the upstream nodes fails, the nodes downstream of it are marked
+     * as failed as well, and the error is thrown.
+     *
+     * @param entry the entry whose inputs need to be updated.
+     * @param ctx   the processing context
+     * @throws ProcessingError if one of the upstream nodes failed.
+     */
+    void updateUpstream(Entry entry, ProcessingContext ctx) throws ProcessingError {
+        // Most of the time, the inputs are already up-to-date.
+        boolean hasDirtyInputs = false;
+        for (int input : entry.inputs) {
+            if (entries[input].node.isDirty()) {
+                hasDirtyInputs = true;
+                break;
+            }
+        }
+        if (!hasDirtyInputs) return;
+
+        // Collect the dirty upstream nodes. Clean nodes only have clean nodes upstream, so we can stop there.
+        boolean[] needed = new boolean[entry.index];
+        int first = entry.index;
+        int[] stack = new int[entry.index];
+        int stackSize = 0;
+        for (int input : entry.inputs) {
+            if (!needed[input] && entries[input].node.isDirty()) {
+                needed[input] = true;
+                stack[stackSize++] = input;
+            }
+        }
+        while (stackSize > 0) {
+            int index = stack[--stackSize];
+            first = Math.min(first, index);
+            for (int input : entries[index].inputs) {
+                if (!needed[input] && entries[input].node.isDirty()) {
+                    needed[input] = true;
+                    stack[stackSize++] = input;
+                }
+            }
+        }
+
+        // Update the nodes in order. All upstream nodes of a node come before it.
+        for (int i = first; i < entry.index; i++) {
+            if (!needed[i]) continue;
+            try {
+                entries[i].node.update(ctx);
+            } catch (ProcessingCancelledError e) {
+                // The remaining nodes stay dirty.
+                throw e;
+            } catch (RuntimeException e) {
+                // This also catches ProcessingErrors.
+                markFailed(i, needed);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Mark all needed nodes that depend on the failed node as failed.
+     * <p/>
+     * This has the same effect as the error bubbling up through a recursive update: the nodes are marked clean and
+     * their output is cleared.
+     *
+     * @param failedIndex the index of the node that failed
+     * @param needed      the nodes that are part of this update
+     */
+    private void markFailed(int failedIndex, boolean[] needed) {
+        boolean[] failed = new boolean[needed.length];
+        failed[failedIndex] = true;
+        for (int i = failedIndex + 1; i < needed.length; i++) {
+            if (!needed[i]) continue;
+            for (int input : entries[i].inputs) {
+                if (failed[input]) {
+                    failed[i] = true;
+                    entries[i].node.dependencyFailed();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A node in the schedule, with its position and its connections.
+     */
+    static final class Entry {
+
+        private final Node node;
+        private final int index;
+        private final Connection[] connections;
+        private int[] inputs = NO_INPUTS;
+
+        private Entry(Node node, int index, Connection[] connections) {
+            this.node = node;
+            this.index = index;
+            this.connections = connections;
+        }
+
+        public Node getNode() {
+            return node;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Get the connections on the input ports of the node, in port order.
+         *
+         * @return the connections. Do not modify this array.
+         */
+        public Connection[] getConnections() {
+            return connections;
+        }
+    }
+
+}
@@ -21,23 +21,44 @@ package nodebox.node;
 import nodebox.graphics.Color;
 import org.mvel2.CompileException;
 import org.mvel2.MVEL;
+import org.mvel2.OptimizationFailure;
 import org.mvel2.ParserContext;
 import org.mvel2.UnresolveablePropertyException;
+import org.mvel2.compiler.CompiledExpression;
 import org.mvel2.compiler.ExpressionCompiler;
 import org.mvel2.integration.VariableResolver;
 import org.mvel2.integration.impl.BaseVariableResolverFactory;
+import org.mvel2.optimizers.OptimizationNotSupported;
 import org.mvel2.optimizers.OptimizerFactory;
+import org.mvel2.optimizers.impl.asm.ASMAccessorOptimizer;
+import org.mvel2.optimizers.impl.refl.ReflectiveAccessorOptimizer;
 
 import java.io.Serializable;
-import java.lang.ref.WeakReference;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Expression {
 
+    /**
+     * The ways an expression can be compiled.
+     */
+    public enum CompilerMode {
+        /**
+         * Properties and methods are accessed through reflection.
+         */
+        REFLECTIVE,
+        /**
+         * Properties and methods are accessed through JVM bytecode that is generated on the first evaluation.
+         * The first evaluation is slower, but later evaluations are faster.
+         */
+        BYTECODE
+    }
+
     static ParserContext parserContext = new ParserContext();
 
+    private static volatile CompilerMode defaultCompilerMode = CompilerMode.REFLECTIVE;
+
     static {
         // Initialize MVEL.
 
@@ -65,11 +86,44 @@ public class Expression {
         }
     }
 
+    /**
+     * The name of the frame value, which is available in every processing context.
+     */
+    private static final String FRAME_KEY = "FRAME";
+
     private Parameter parameter;
     private String expression = "";
     private transient Exception error;
-    private transient Serializable compiledExpression;
-    private Set<WeakReference<Parameter>> markedParameterReferences;
+    private transient volatile Serializable compiledExpression;
+    private transient volatile ExpressionAnalysis analysis;
+    private transient volatile ProxyResolverFactory resolverFactory;
+    /**
+     * The result of a constant expression, once it is evaluated.
+     */
+    private transient volatile Object constantValue;
+
+    /**
+     * Get the compiler mode used for libraries that don't set their own.
+     *
+     * @return the default compiler mode.
+     * @see NodeLibrary#getExpressionCompilerMode()
+     */
+    public static CompilerMode getDefaultCompilerMode() {
+        return defaultCompilerMode;
+    }
+
+    /**
+     * Set the compiler mode used for libraries that don't set their own.
+     * <p/>
+     * The mode is used for expressions compiled from now on. Expressions that are already compiled keep their mode.
+     *
+     * @param mode the default compiler mode.
+     */
+    public static void setDefaultCompilerMode(CompilerMode mode) {
+        if (mode == null)
+            throw new IllegalArgumentException("The compiler mode cannot be null.");
+        defaultCompilerMode = mode;
+    }
 
     public Expression(Parameter parameter, String expression) {
         assert parameter != null; // We need the current parameter for stamp expressions.
@@ -97,8 +151,9 @@ public class Expression {
     public void setExpression(String expression) {
         if (this.expression != null && this.expression.equals(expression)) return;
         this.expression = expression;
-        markedParameterReferences = null;
         compiledExpression = null;
+        analysis = null;
+        constantValue = null;
     }
 
     public boolean hasError() {
@@ -121,20 +176,44 @@ public class Expression {
     //// Values ////
 
     public int asInt() throws ExpressionError {
-        Object value = evaluate();
+        return asInt(new ProcessingContext());
+    }
+
+    /**
+     * Evaluate the expression and return the result as an integer.
+     * <p/>
+     * Floating-point results are truncated.
+     *
+     * @param context the context wherein evaluation happens.
+     * @return the result of the expression
+     * @throws ExpressionError if an error occurs whilst evaluating the expression.
+     */
+    public int asInt(ProcessingContext context) throws ExpressionError {
+        Object value = evaluate(context);
         if (value instanceof Number) {
-            return (Integer) value;
+            return ((Number) value).intValue();
         } else {
-            throw new IllegalArgumentException("Value \"" + value + "\" for expression \"" + expression + "\" is not an integer.");
+            throw new IllegalArgumentException("Value \"" + value + "\" for expression \"" + expression + "\" cannot be converted to int.");
         }
     }
 
     public double asFloat() throws ExpressionError {
-        Object value = evaluate();
+        return asFloat(new ProcessingContext());
+    }
+
+    /**
+     * Evaluate the expression and return the result as a floating-point value.
+     *
+     * @param context the context wherein evaluation happens.
+     * @return the result of the expression
+     * @throws ExpressionError if an error occurs whilst evaluating the expression.
+     */
+    public double asFloat(ProcessingContext context) throws ExpressionError {
+        Object value = evaluate(context);
         if (value instanceof Number) {
-            return (Double) value;
+            return ((Number) value).doubleValue();
         } else {
-            throw new IllegalArgumentException("Value \"" + value + "\" for expression \"" + expression + "\" is not a floating-point value.");
+            throw new IllegalArgumentException("Value \"" + value + "\" for expression \"" + expression + "\" cannot be converted to float.");
         }
     }
 
@@ -160,19 +239,64 @@ public class Expression {
 
     /**
      * Compile the expression.
+     * <p/>
+     * The expression is compiled using the compiler mode of the library, or the default compiler mode.
+     * The compiled expression is analyzed to find the parameters it refers to.
      *
      * @throws ExpressionError if the compilation fails.
      * @see #getError()
+     * @see #getDependencies()
+     * @see #getCompilerMode()
      */
     public void compile() throws ExpressionError {
-        ExpressionCompiler compiler = new ExpressionCompiler(expression);
-        try {
-            this.compiledExpression = compiler.compile(parserContext);
-            error = null;
-        } catch (Exception e) {
-            error = e;
-            throw new ExpressionError("Cannot compile expression '" + expression + "' on " + getParameter().getAbsolutePath(), e);
+        compile(getCompilerMode());
+    }
+
+    private void compile(CompilerMode mode) throws ExpressionError {
+        // Expressions with the same source in the same library share the compiled expression.
+        NodeLibrary library = parameter.getLibrary();
+        CompiledExpressionCache cache = library != null ? library.getExpressionCache() : null;
+        CompiledExpressionCache.Entry entry = cache != null ? cache.get(expression, mode) : null;
+        if (entry == null) {
+            ExpressionCompiler compiler = new ExpressionCompiler(expression);
+            try {
+                // The parser context is shared and changed during compilation, so only one expression can compile at once.
+                synchronized (parserContext) {
+                    CompiledExpression compiled = compiler.compile(parserContext);
+                    // The optimizer is set on the expression, since the default optimizer of MVEL is shared by all threads.
+                    if (mode == CompilerMode.BYTECODE) {
+                        compiled.setAccessorOptimizer(ASMAccessorOptimizer.class);
+                    } else {
+                        compiled.setAccessorOptimizer(ReflectiveAccessorOptimizer.class);
+                    }
+                    // The analysis walks the syntax tree, so it needs to happen before the expression can be evaluated.
+                    entry = new CompiledExpressionCache.Entry(compiled, new ExpressionAnalysis(compiled, expression, parserContext));
+                }
+            } catch (Exception e) {
+                error = e;
+                throw new ExpressionError("Cannot compile expression '" + expression + "' on " + getParameter().getAbsolutePath(), e);
+            }
+            if (cache != null)
+                entry = cache.put(expression, mode, entry);
         }
+        this.analysis = entry.getAnalysis();
+        this.compiledExpression = entry.getCompiled();
+        constantValue = null;
+        error = null;
+    }
+
+    /**
+     * Get the compiler mode for this expression.
+     * <p/>
+     * This is the mode of the library of the node, or the default mode if the library doesn't set one.
+     *
+     * @return the compiler mode.
+     */
+    public CompilerMode getCompilerMode() {
+        NodeLibrary library = parameter.getLibrary();
+        if (library != null && library.getExpressionCompilerMode() != null)
+            return library.getExpressionCompilerMode();
+        return defaultCompilerMode;
     }
 
     /**
@@ -201,67 +325,203 @@ public class Expression {
             throw new ExpressionError("Cannot compile expression '" + expression + "' on " + getParameter().getAbsolutePath(), getError());
         }
 
+        // Constant expressions are only evaluated once.
+        Object constant = constantValue;
+        if (constant != null) return constant;
+
         // If the expression was not compiled, compile it first.
         // This can throw an ExpressionError, which will be forwarded to the caller.
-        if (compiledExpression == null) {
+        Serializable compiled = compiledExpression;
+        if (compiled == null) {
             compile();
+            compiled = compiledExpression;
+        }
+        // Set up the state for the expression utilities class. The state is confined to this thread.
+        // The previous state is restored afterwards, in case this evaluation is nested in another one.
+        ExpressionHelper.EvaluationState state = ExpressionHelper.getEvaluationState();
+        ProcessingContext previousContext = state.context;
+        Parameter previousParameter = state.parameter;
+        state.context = context;
+        state.parameter = parameter;
+        // The resolver factory doesn't hold any state of the evaluation, so it is created once and shared by all threads.
+        ProxyResolverFactory prf = resolverFactory;
+        if (prf == null) {
+            prf = new ProxyResolverFactory(parameter.getNode());
+            resolverFactory = prf;
         }
-        // Set up state variables in the expression utilities class.
-        // TODO: This is not thread-safe.
-        ExpressionHelper.currentContext = context;
-        ExpressionHelper.currentParameter = parameter;
-        // Marked parameter references are used to find which parameters this expression references.
-        markedParameterReferences = new HashSet<WeakReference<Parameter>>();
-        ProxyResolverFactory prf = new ProxyResolverFactory(parameter.getNode(), context, markedParameterReferences);
         try {
+            Object result;
+            try {
+                result = MVEL.executeExpression(compiled, prf);
+            } catch (OptimizationFailure e) {
+                // The optimizer could not generate bytecode for the expression.
+                if (!isBytecodeCompiled(compiled)) throw e;
+                result = evaluateReflective(prf);
+            } catch (OptimizationNotSupported e) {
+                if (!isBytecodeCompiled(compiled)) throw e;
+                result = evaluateReflective(prf);
+            } catch (LinkageError e) {
+                // The generated bytecode could not be loaded.
+                if (!isBytecodeCompiled(compiled)) throw e;
+                result = evaluateReflective(prf);
+            }
             error = null;
-            return MVEL.executeExpression(compiledExpression, prf);
+            // Only immutable results are kept, since the same object is returned to every caller.
+            if (isImmutable(result) && isConstant())
+                constantValue = result;
+            return result;
         } catch (Exception e) {
             error = e;
             throw new ExpressionError("Cannot evaluate expression '" + expression + "' on " + getParameter().getAbsolutePath(), e);
+        } finally {
+            state.context = previousContext;
+            state.parameter = previousParameter;
         }
     }
 
+    private static boolean isImmutable(Object value) {
+        return value instanceof Number || value instanceof String || value instanceof Boolean;
+    }
+
+    /**
+     * Check if the expression is currently compiled to bytecode.
+     *
+     * @return true if the expression was compiled in bytecode mode and did not fall back to reflection.
+     */
+    /* package private */ boolean isBytecodeCompiled() {
+        Serializable compiled = compiledExpression;
+        return compiled != null && isBytecodeCompiled(compiled);
+    }
+
+    private static boolean isBytecodeCompiled(Serializable compiled) {
+        return ((CompiledExpression) compiled).getAccessorOptimizer() == ASMAccessorOptimizer.class;
+    }
+
+    /**
+     * Compile the expression using reflection and evaluate it.
+     * <p/>
+     * This is used when the optimizer fails to generate bytecode for the expression, or the generated bytecode can
+     * not be loaded. Generating bytecode does not work for all expressions, and not on all virtual machines. The
+     * expression keeps using reflection afterwards. Errors in the expression itself are not handled here.
+     *
+     * @param prf the resolver factory
+     * @return the result of the expression
+     * @throws ExpressionError if the expression cannot be compiled.
+     */
+    private Object evaluateReflective(ProxyResolverFactory prf) throws ExpressionError {
+        compile(CompilerMode.REFLECTIVE);
+        return MVEL.executeExpression(compiledExpression, prf);
+    }
+
+    /**
+     * Check the expression for errors without evaluating it.
+     * <p/>
+     * The expression is compiled, and every name it refers to should either be a parameter or node that is reachable
+     * from the node, or the frame. If this is not the case, the error is set and false is returned.
+     *
+     * @return false if the expression contains an error.
+     * @see #getError()
+     */
+    /* package private */ boolean check() {
+        ExpressionAnalysis analysis = getAnalysis();
+        if (analysis == null) return false;
+        for (String name : analysis.getContextNames(parameter.getNode())) {
+            if (!name.equals(FRAME_KEY)) {
+                error = new CompileException("could not access: " + name);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the expression calls the given function, for example "stamp".
+     * <p/>
+     * This is found without evaluating the expression, so calls in branches that are never taken are also found.
+     *
+     * @param name the name of the function.
+     * @return true if the expression calls the function.
+     */
+    /* package private */ boolean callsFunction(String name) {
+        ExpressionAnalysis analysis = getAnalysis();
+        return analysis != null && analysis.getFunctions().contains(name);
+    }
+
+    /**
+     * Check if the expression reads the current frame.
+     *
+     * @return true if the expression refers to FRAME.
+     */
+    /* package private */ boolean dependsOnFrame() {
+        ExpressionAnalysis analysis = getAnalysis();
+        return analysis != null && analysis.getContextNames(parameter.getNode()).contains(FRAME_KEY);
+    }
+
+    /**
+     * Check if the expression always returns the same value.
+     * <p/>
+     * This is the case if the expression only contains literals, operators and imported functions that return the
+     * same value for the same arguments, such as math.sin or random with a seed. Anything else, such as a parameter,
+     * a context value like FRAME, the stamp function or a method call on a Java class, can vary.
+     * Constant expressions are evaluated once.
+     *
+     * @return true if the expression is constant.
+     */
+    public boolean isConstant() {
+        ExpressionAnalysis analysis = getAnalysis();
+        return analysis != null && analysis.isConstant();
+    }
+
     /**
      * Returns all parameters this expression depends on
      * <p/>
-     * If the expression contains an error, this method will return an empty set.
+     * The dependencies are found by analyzing the expression, not by evaluating it. This means parameters used in
+     * all branches of the expression are returned.
+     * <p/>
+     * If the expression cannot be compiled, this method will return an empty set.
      *
      * @return a set of parameters
      */
     public Set<Parameter> getDependencies() {
-        if (markedParameterReferences == null) {
+        ExpressionAnalysis analysis = getAnalysis();
+        if (analysis == null) return new HashSet<Parameter>(0);
+        return analysis.getParameters(parameter.getNode());
+    }
+
+    /**
+     * Get the analysis of the expression, compiling the expression if needed.
+     *
+     * @return the analysis, or null if the expression cannot be compiled.
+     */
+    private ExpressionAnalysis getAnalysis() {
+        ExpressionAnalysis analysis = this.analysis;
+        if (analysis == null) {
             try {
-                evaluate();
-            } catch (ExpressionError expressionError) {
-                return new HashSet<Parameter>(0);
+                compile();
+            } catch (ExpressionError e) {
+                return null;
             }
+            analysis = this.analysis;
         }
-        HashSet<Parameter> dependencies = new HashSet<Parameter>(markedParameterReferences.size());
-        for (WeakReference<Parameter> ref : markedParameterReferences) {
-            Parameter p = ref.get();
-            if (p != null)
-                dependencies.add(p);
-        }
-        return dependencies;
+        return analysis;
     }
 
+    /**
+     * Resolves the names in the expression to parameters and nodes, or to values in the processing context.
+     * <p/>
+     * The factory is bound to the node of the expression. The processing context is the one of the evaluation that
+     * is currently running on this thread. Resolvers are created once for every name and reused afterwards.
+     */
     class ProxyResolverFactory extends BaseVariableResolverFactory {
 
         private Node node;
         private NodeAccessProxy proxy;
-        private ProcessingContext context;
+        private ConcurrentHashMap<String, VariableResolver> proxyResolvers = new ConcurrentHashMap<String, VariableResolver>();
+        private ConcurrentHashMap<String, VariableResolver> contextResolvers = new ConcurrentHashMap<String, VariableResolver>();
 
-        public ProxyResolverFactory(Node node, ProcessingContext context) {
+        public ProxyResolverFactory(Node node) {
             this.node = node;
-            proxy = new NodeAccessProxy(node);
-            this.context = context;
-        }
-
-        public ProxyResolverFactory(Node node, ProcessingContext context, Set<WeakReference<Parameter>> markedParameterReferences) {
-            this.node = node;
-            proxy = new NodeAccessProxy(node, markedParameterReferences);
-            this.context = context;
+            proxy = node.getAccessProxy();
         }
 
         public Node getNode() {
@@ -282,17 +542,22 @@ public class Expression {
 
         @Override
         public VariableResolver getVariableResolver(String name) {
-            if (variableResolvers == null) variableResolvers = new HashMap<String, VariableResolver>();
-            VariableResolver vr = variableResolvers.get(name);
-            if (vr != null) {
-                return vr;
-            } else if (proxy.containsKey(name)) {
-                vr = new ProxyResolver(proxy, proxy.get(name));
-                variableResolvers.put(name, vr);
+            // The proxy is checked every time, since parameters and nodes can be removed between evaluations.
+            if (proxy.containsKey(name)) {
+                VariableResolver vr = proxyResolvers.get(name);
+                if (vr == null) {
+                    vr = new ProxyResolver(proxy, name);
+                    proxyResolvers.put(name, vr);
+                }
                 return vr;
-            } else if (context.containsKey(name)) {
-                vr = new ProcessingContextResolver(context, name);
-                variableResolvers.put(name, vr);
+            }
+            ProcessingContext context = ExpressionHelper.getCurrentContext();
+            if (context != null && context.containsKey(name)) {
+                VariableResolver vr = contextResolvers.get(name);
+                if (vr == null) {
+                    vr = new ProcessingContextResolver(name);
+                    contextResolvers.put(name, vr);
+                }
                 return vr;
             } else if (nextFactory != null) {
                 return nextFactory.getVariableResolver(name);
@@ -301,21 +566,23 @@ public class Expression {
         }
 
         public boolean isResolveable(String name) {
-            return (variableResolvers != null && variableResolvers.containsKey(name))
-                    || (proxy.containsKey(name))
-                    || (context.containsKey(name))
+            if (proxy.containsKey(name)) return true;
+            ProcessingContext context = ExpressionHelper.getCurrentContext();
+            return (context != null && context.containsKey(name))
                     || (nextFactory != null && nextFactory.isResolveable(name));
         }
 
         public boolean isTarget(String name) {
-            return variableResolvers != null && variableResolvers.containsKey(name);
+            return proxyResolvers.containsKey(name) || contextResolvers.containsKey(name);
         }
 
         @Override
         public Set<String> getKnownVariables() {
             Set<String> knownVariables = new HashSet<String>();
             knownVariables.addAll(proxy.keySet());
-            knownVariables.addAll(context.keySet());
+            ProcessingContext context = ExpressionHelper.getCurrentContext();
+            if (context != null)
+                knownVariables.addAll(context.keySet());
             return knownVariables;
         }
     }
@@ -323,11 +590,11 @@ public class Expression {
     class ProxyResolver implements VariableResolver {
 
         private NodeAccessProxy proxy;
-        private Object value;
+        private String name;
 
-        public ProxyResolver(NodeAccessProxy proxy, Object value) {
+        public ProxyResolver(NodeAccessProxy proxy, String name) {
             this.proxy = proxy;
-            this.value = value;
+            this.name = name;
         }
 
         public NodeAccessProxy getProxy() {
@@ -355,7 +622,8 @@ public class Expression {
         }
 
         public Object getValue() {
-            return value;
+            // The value is looked up every time, since the resolver is reused for later evaluations.
+            return proxy.get(name);
         }
 
         public void setValue(Object value) {
@@ -366,10 +634,8 @@ public class Expression {
     class ProcessingContextResolver implements VariableResolver {
 
         private String name;
-        private ProcessingContext context;
 
-        ProcessingContextResolver(ProcessingContext context, String name) {
-            this.context = context;
+        ProcessingContextResolver(String name) {
             this.name = name;
         }
 
@@ -390,7 +656,7 @@ public class Expression {
         }
 
         public Object getValue() {
-            return context.get(name);
+            return ExpressionHelper.getCurrentContext().get(name);
         }
 
         public void setValue(Object o) {
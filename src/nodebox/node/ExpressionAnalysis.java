@@ -0,0 +1,352 @@
+package nodebox.node;
+
+import org.mvel2.ParserContext;
+import org.mvel2.ast.ASTNode;
+import org.mvel2.ast.BinaryOperation;
+import org.mvel2.ast.LiteralNode;
+import org.mvel2.ast.Negation;
+import org.mvel2.ast.Substatement;
+import org.mvel2.ast.Union;
+import org.mvel2.compiler.CompiledExpression;
+import org.mvel2.util.ASTIterator;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Finds the names an expression refers to, without evaluating it.
+ * <p/>
+ * The analysis walks the compiled MVEL syntax tree. Operations and sub-statements are followed. MVEL keeps
+ * property chains, method calls and collections as source text in the tree, so the text of those nodes is
+ * scanned for names. Names are then resolved in the same way as the node access proxy resolves them during
+ * evaluation: parameters of the node, child nodes, sibling nodes, "parent" and "root". Names that are not
+ * found this way are looked up in the processing context during evaluation.
+ * <p/>
+ * The analysis only depends on the source of the expression. The names are resolved when the parameters are
+ * requested, since nodes and parameters can be added or removed after the expression was compiled.
+ * <p/>
+ * Because nothing is evaluated, all branches of the expression are analyzed, including those that a particular
+ * evaluation would skip.
+ *
+ * @see Expression#getDependencies()
+ */
+class ExpressionAnalysis {
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "true", "false", "null", "nil", "empty", "this", "new", "is", "instanceof", "contains",
+            "soundslike", "strsim", "convertable_to", "if", "else", "foreach", "for", "while", "do", "until",
+            "with", "return", "def", "function", "assert", "var", "import"));
+
+    /**
+     * Keywords that stand for a value.
+     */
+    private static final Set<String> VALUE_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "true", "false", "null", "nil", "empty"));
+
+    /**
+     * Imported functions that always return the same value for the same arguments. The random functions take the
+     * seed as their first argument. The functions of math are pure as well, except math.random.
+     */
+    private static final Set<String> PURE_FUNCTIONS = new HashSet<String>(Arrays.asList(
+            "random", "randint", "color", "int", "float"));
+
+    private final ParserContext parserContext;
+    private final List<String[]> references = new ArrayList<String[]>();
+    private final Set<String> functions = new LinkedHashSet<String>();
+    private boolean literal;
+    // False if the expression contains anything besides literals, operators, pure functions and math constants.
+    private boolean pure = true;
+
+    /**
+     * Analyze a compiled expression.
+     *
+     * @param compiled      the compiled expression
+     * @param source        the source of the expression. This is scanned if the tree contains unknown nodes.
+     * @param parserContext the parser context containing the imported functions
+     */
+    ExpressionAnalysis(Serializable compiled, String source, ParserContext parserContext) {
+        this.parserContext = parserContext;
+        if (compiled instanceof CompiledExpression) {
+            CompiledExpression compiledExpression = (CompiledExpression) compiled;
+            literal = compiledExpression.isLiteralOnly();
+            if (!analyzeInstructions(compiledExpression)) {
+                // Start over, using only the source text.
+                references.clear();
+                functions.clear();
+                pure = true;
+                scan(source);
+            }
+        } else {
+            scan(source);
+        }
+    }
+
+    /**
+     * Get the parameters the expression refers to.
+     * <p/>
+     * The names are resolved against the current structure of the network, so parameters and nodes that were added
+     * after the expression was compiled are found as well.
+     *
+     * @param node the node the expression is evaluated on.
+     * @return a set of parameters.
+     */
+    Set<Parameter> getParameters(Node node) {
+        Set<Parameter> parameters = new HashSet<Parameter>();
+        for (String[] chain : references) {
+            if (!isProxyKey(node, chain[0])) continue;
+            Parameter p = resolve(node, chain);
+            if (p != null)
+                parameters.add(p);
+        }
+        return parameters;
+    }
+
+    /**
+     * Get the names the expression looks up in the processing context, such as FRAME.
+     * <p/>
+     * These are the names that are not parameters or nodes accessible from the given node.
+     *
+     * @param node the node the expression is evaluated on.
+     * @return a set of names.
+     */
+    Set<String> getContextNames(Node node) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (String[] chain : references) {
+            if (!isProxyKey(node, chain[0]))
+                names.add(chain[0]);
+        }
+        return names;
+    }
+
+    /**
+     * Get the names of the imported functions the expression calls, such as stamp or math.sin.
+     *
+     * @return a set of function names.
+     */
+    Set<String> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Check if the compiler reduced the expression to a single value.
+     *
+     * @return true if the expression doesn't refer to anything.
+     */
+    boolean isLiteral() {
+        return literal;
+    }
+
+    /**
+     * Check if the expression always returns the same value.
+     * <p/>
+     * The expression may only contain literals, operators, constants of math such as math.PI, and calls to imported
+     * functions that return the same value for the same arguments. Anything else, such as a reference to a parameter
+     * or context value, a method call on a value or class, or creating an object, makes the expression vary.
+     *
+     * @return true if the expression is constant.
+     */
+    boolean isConstant() {
+        return literal || pure;
+    }
+
+    private static boolean isPureFunction(String function) {
+        if (PURE_FUNCTIONS.contains(function)) return true;
+        return function.startsWith("math.") && function.indexOf('.', 5) < 0 && !function.equals("math.random");
+    }
+
+    //// Syntax tree ////
+
+    /**
+     * Analyze the instructions of a compiled expression.
+     *
+     * @param compiled the compiled expression
+     * @return false if the tree contains nodes that could not be analyzed.
+     */
+    private boolean analyzeInstructions(CompiledExpression compiled) {
+        // The instructions of the compiled expression are only used for the analysis, before the expression is
+        // evaluated for the first time. The iterator is therefore not shared with other threads.
+        ASTIterator it = compiled.getInstructions();
+        it.reset();
+        try {
+            while (it.hasMoreNodes()) {
+                if (!analyzeNode(it.nextNode()))
+                    return false;
+            }
+        } finally {
+            it.reset();
+        }
+        return true;
+    }
+
+    private boolean analyzeNode(ASTNode n) {
+        if (n == null) return true;
+        if (n instanceof LiteralNode || n.isOperator()) return true;
+        if (n instanceof BinaryOperation) {
+            BinaryOperation op = (BinaryOperation) n;
+            return analyzeNode(op.getLeft()) && analyzeNode(op.getRight());
+        }
+        if (n instanceof Substatement) {
+            Object statement = ((Substatement) n).getStatement();
+            if (statement instanceof CompiledExpression)
+                return analyzeInstructions((CompiledExpression) statement);
+        }
+        // A union only keeps the part after the value it is applied to, e.g. "nextInt()" for "(a).nextInt()".
+        if (n instanceof Union) return false;
+        // Identifiers, property chains, method calls and collections are kept as source text.
+        String name = n.getName();
+        if (name == null || name.length() == 0) return false;
+        // Other nodes, such as object creation, keep only part of their source as text.
+        if (n.getClass() != ASTNode.class && !(n instanceof Negation))
+            pure = false;
+        scan(name);
+        return true;
+    }
+
+    //// Source scanning ////
+
+    /**
+     * Find all names in the given source text.
+     *
+     * @param source a part of the expression.
+     */
+    private void scan(String source) {
+        int length = source.length();
+        int i = 0;
+        char previous = 0;
+        while (i < length) {
+            char c = source.charAt(i);
+            if (c == '"' || c == '\'') {
+                // Skip string literals.
+                i++;
+                while (i < length && source.charAt(i) != c) {
+                    if (source.charAt(i) == '\\') i++;
+                    i++;
+                }
+                i++;
+                previous = c;
+            } else if (Character.isDigit(c)) {
+                // Skip numbers, including suffixes and exponents such as 1.5f or 2e10.
+                while (i < length && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '.'))
+                    i++;
+                previous = '0';
+            } else if (Character.isJavaIdentifierStart(c)) {
+                List<String> chain = new ArrayList<String>();
+                while (true) {
+                    int start = i;
+                    while (i < length && Character.isJavaIdentifierPart(source.charAt(i)))
+                        i++;
+                    chain.add(source.substring(start, i));
+                    if (i + 1 < length && source.charAt(i) == '.' && Character.isJavaIdentifierStart(source.charAt(i + 1))) {
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                int next = i;
+                while (next < length && Character.isWhitespace(source.charAt(next)))
+                    next++;
+                boolean call = next < length && source.charAt(next) == '(';
+                // A chain directly after a dot is a member of the value before it, e.g. the result of a call.
+                if (previous != '.') {
+                    addReference(chain, call);
+                } else {
+                    pure = false;
+                }
+                previous = 'a';
+            } else {
+                if (!Character.isWhitespace(c))
+                    previous = c;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Add a chain of names that was found in the source.
+     *
+     * @param chain the names, e.g. [number1, value] for "number1.value"
+     * @param call  true if the last name in the chain is called as a method.
+     */
+    private void addReference(List<String> chain, boolean call) {
+        String first = chain.get(0);
+        if (KEYWORDS.contains(first)) {
+            if (!VALUE_KEYWORDS.contains(first))
+                pure = false;
+            return;
+        }
+        if (parserContext.hasImport(first)) {
+            if (call) {
+                String function = join(chain);
+                functions.add(function);
+                if (!isPureFunction(function))
+                    pure = false;
+            } else if (!first.equals("math") || chain.size() != 2) {
+                pure = false;
+            }
+            return;
+        }
+        pure = false;
+        if (call) {
+            // The last name is a method on the value of the chain.
+            if (chain.size() == 1) return;
+            chain = chain.subList(0, chain.size() - 1);
+        }
+        references.add(chain.toArray(new String[chain.size()]));
+    }
+
+    private static String join(List<String> chain) {
+        StringBuffer sb = new StringBuffer(chain.get(0));
+        for (int i = 1; i < chain.size(); i++) {
+            sb.append('.').append(chain.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Resolve a chain of names the same way the node access proxy does.
+     *
+     * @param node  the node the expression is evaluated on.
+     * @param chain the names, e.g. [number1, value] for "number1.value"
+     * @return the parameter the chain refers to, or null if the chain does not end in a parameter.
+     * @see NodeAccessProxy#get(Object)
+     */
+    private static Parameter resolve(Node node, String[] chain) {
+        Node current = node;
+        for (String name : chain) {
+            if (name.equals("node")) {
+                // Properties of the node object are not parameters.
+                return null;
+            } else if (name.equals("parent")) {
+                if (!current.hasParent()) return null;
+                current = current.getParent();
+            } else if (name.equals("root")) {
+                if (current.hasParent())
+                    current = current.getParent();
+            } else if (current.hasParameter(name)) {
+                return current.getParameter(name);
+            } else if (current.contains(name)) {
+                current = current.getChild(name);
+            } else if (current.hasParent() && current.getParent().contains(name)) {
+                current = current.getParent().getChild(name);
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if the name is resolved by the node access proxy of the given node.
+     *
+     * @param node the node the expression is evaluated on.
+     * @param name the first name of a chain.
+     * @return true if the name refers to a parameter or node.
+     * @see NodeAccessProxy#keySet()
+     */
+    private static boolean isProxyKey(Node node, String name) {
+        if (name.equals("root") || name.equals("parent")) return true;
+        if (node.hasParameter(name) || node.contains(name)) return true;
+        return node.hasParent() && node.getParent().contains(name);
+    }
+
+}
@@ -11,11 +11,60 @@ import java.util.Random;
  */
 public class ExpressionHelper {
 
-    // TODO: Expression system is not thread-safe.
-    public static ProcessingContext currentContext;
-    public static Parameter currentParameter;
+    /**
+     * The evaluation state of the expression that is currently running on this thread.
+     * <p/>
+     * Each thread has its own state, so expressions can be evaluated on many threads at once.
+     */
+    private static final ThreadLocal<EvaluationState> currentState = new ThreadLocal<EvaluationState>() {
+        @Override
+        protected EvaluationState initialValue() {
+            return new EvaluationState();
+        }
+    };
+
+    /**
+     * Each thread has its own random generator, since the generator is re-seeded on every call.
+     */
+    private static final ThreadLocal<Random> randomGenerator = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * The processing context and parameter of the expression being evaluated.
+     * <p/>
+     * Expression.evaluate saves the current values before changing them and restores them afterwards,
+     * so evaluation is reentrant.
+     */
+    static class EvaluationState {
+        ProcessingContext context;
+        Parameter parameter;
+    }
+
+    /* package private */ static EvaluationState getEvaluationState() {
+        return currentState.get();
+    }
+
+    /**
+     * Get the processing context of the expression that is currently evaluated on this thread.
+     *
+     * @return the processing context, or null if no expression is being evaluated.
+     */
+    public static ProcessingContext getCurrentContext() {
+        return currentState.get().context;
+    }
 
-    public static Random randomGenerator = new Random();
+    /**
+     * Get the parameter of the expression that is currently evaluated on this thread.
+     *
+     * @return the parameter, or null if no expression is being evaluated.
+     */
+    public static Parameter getCurrentParameter() {
+        return currentState.get().parameter;
+    }
 
     public static double random(long seed, double... minmax) {
         switch (minmax.length) {
@@ -29,8 +78,9 @@ public class ExpressionHelper {
     }
 
     public static double random(long seed) {
-        randomGenerator.setSeed(seed * 100000000);
-        return randomGenerator.nextDouble();
+        Random r = randomGenerator.get();
+        r.setSeed(seed * 100000000);
+        return r.nextDouble();
     }
 
     public static double random(long seed, double max) {
@@ -42,9 +92,10 @@ public class ExpressionHelper {
     }
 
     public static int randint(long seed, int min, int max) {
-        randomGenerator.setSeed(seed * 100000000);
+        Random r = randomGenerator.get();
+        r.setSeed(seed * 100000000);
         // nextInt's specified value is exclusive, whereas we want to include it, so add 1.
-        return min + randomGenerator.nextInt(max - min + 1);
+        return min + r.nextInt(max - min + 1);
     }
 
     public static int toInt(double v) {
@@ -89,9 +140,10 @@ public class ExpressionHelper {
     }
 
     public static Object stamp(String key, Object defaultValue) {
-        if (currentContext == null) return defaultValue;
-        currentParameter.markStampExpression();
-        Object v = currentContext.get(key);
+        EvaluationState state = currentState.get();
+        if (state.context == null) return defaultValue;
+        Object v = state.context.get(key);
+        state.parameter.markStampExpression(key, v);
         return v != null ? v : defaultValue;
     }
 
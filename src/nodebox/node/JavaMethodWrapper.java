@@ -11,6 +11,7 @@ public class JavaMethodWrapper implements NodeCode {
     private Class methodClass;
     private String methodName;
     private Method method;
+    private MethodInvoker invoker;
 
     public JavaMethodWrapper(Class methodClass, String methodName) {
         this.methodClass = methodClass;
@@ -23,6 +24,7 @@ public class JavaMethodWrapper implements NodeCode {
         if (!Modifier.isStatic(this.method.getModifiers())) {
             throw new RuntimeException("The given method is not static.");
         }
+        this.invoker = MethodInvoker.forMethod(method);
     }
 
     public Class getMethodClass() {
@@ -39,16 +41,20 @@ public class JavaMethodWrapper implements NodeCode {
 
     public Object cook(Node node, ProcessingContext context) {
         try {
-            return method.invoke(null, node, context);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Illegal access exception", e);
+            return invoker.invoke(null, node, context);
         } catch (InvocationTargetException e) {
             throw new RuntimeException("Invocation target exception", e);
         }
     }
 
+    /**
+     * Returns the component identifier of the method, such as "java:nodebox.node.CoreVectorNodes.wiggle".
+     *
+     * @return the component identifier.
+     * @see NodeLibraryManager#getCode(String)
+     */
     public String getSource() {
-        return "// Source not available";
+        return TYPE_JAVA + ":" + methodClass.getName() + "." + methodName;
     }
 
     public String getType() {
@@ -0,0 +1,264 @@
+package nodebox.node;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls a method without going through reflection on every call.
+ * <p/>
+ * For public methods, a small class is generated that calls the method directly. The JIT compiler can then inline
+ * the method into the call. Methods that can not be called from generated code, such as private methods or methods
+ * with more than two or primitive arguments, are called using reflection.
+ * <p/>
+ * Invokers are created once for each method and shared.
+ *
+ * @see JavaMethodWrapper
+ * @see Dispatcher.Receiver
+ */
+public abstract class MethodInvoker {
+
+    private static final int MAX_ARGUMENTS = 2;
+    private static final String INVOKER_NAME = Type.getInternalName(MethodInvoker.class);
+    private static final String CALL_DESCRIPTOR = "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final ConcurrentHashMap<Method, MethodInvoker> invokers = new ConcurrentHashMap<Method, MethodInvoker>();
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    /**
+     * Get the invoker for the given method.
+     *
+     * @param method the method to call.
+     * @return the invoker.
+     * @throws IllegalArgumentException if the method takes more than two arguments.
+     */
+    public static MethodInvoker forMethod(Method method) throws IllegalArgumentException {
+        MethodInvoker invoker = invokers.get(method);
+        if (invoker != null) return invoker;
+        if (method.getParameterTypes().length > MAX_ARGUMENTS)
+            throw new IllegalArgumentException("Method " + method + " takes more than " + MAX_ARGUMENTS + " arguments.");
+        if (canGenerate(method)) {
+            try {
+                invoker = generate(method);
+            } catch (LinkageError e) {
+                // The generated class could not be loaded. Use reflection instead.
+            }
+        }
+        if (invoker == null)
+            invoker = new ReflectiveInvoker(method);
+        MethodInvoker existing = invokers.putIfAbsent(method, invoker);
+        return existing != null ? existing : invoker;
+    }
+
+    protected MethodInvoker() {
+    }
+
+    /**
+     * Call the method.
+     * <p/>
+     * Like Method.invoke, exceptions thrown by the method are wrapped in an InvocationTargetException.
+     *
+     * @param target the object to call the method on. This is ignored for static methods.
+     * @param arg1   the first argument. This is ignored if the method has no arguments.
+     * @param arg2   the second argument. This is ignored if the method has less than two arguments.
+     * @return the return value of the method, boxed if it is primitive. Null if the method returns void.
+     * @throws InvocationTargetException if the method throws an exception.
+     */
+    public final Object invoke(Object target, Object arg1, Object arg2) throws InvocationTargetException {
+        try {
+            return call(target, arg1, arg2);
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Call the method, without wrapping its exceptions.
+     *
+     * @param target the object to call the method on.
+     * @param arg1   the first argument.
+     * @param arg2   the second argument.
+     * @return the return value of the method.
+     * @throws Throwable the exception thrown by the method.
+     */
+    protected abstract Object call(Object target, Object arg1, Object arg2) throws Throwable;
+
+    //// Code generation ////
+
+    private static boolean canGenerate(Method method) {
+        if (!Modifier.isPublic(method.getModifiers())) return false;
+        if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) return false;
+        for (Class<?> c : method.getParameterTypes()) {
+            if (c.isPrimitive()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generate a subclass that calls the method directly.
+     *
+     * @param method the method to call.
+     * @return an instance of the generated class.
+     */
+    private static MethodInvoker generate(Method method) {
+        String className = INVOKER_NAME + "$Generated" + classCounter.incrementAndGet();
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, INVOKER_NAME, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, INVOKER_NAME, "<init>", "()V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PROTECTED, "call", CALL_DESCRIPTOR, null, new String[]{"java/lang/Throwable"});
+        mv.visitCode();
+        Class<?> declaringClass = method.getDeclaringClass();
+        String owner = Type.getInternalName(declaringClass);
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        if (!isStatic) {
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            // Local 0 is this, local 1 is the target, the arguments start at local 2.
+            mv.visitVarInsn(Opcodes.ALOAD, i + 2);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(parameterTypes[i]));
+        }
+        int opcode;
+        if (isStatic) {
+            opcode = Opcodes.INVOKESTATIC;
+        } else if (declaringClass.isInterface()) {
+            opcode = Opcodes.INVOKEINTERFACE;
+        } else {
+            opcode = Opcodes.INVOKEVIRTUAL;
+        }
+        mv.visitMethodInsn(opcode, owner, method.getName(), Type.getMethodDescriptor(method));
+        box(mv, method.getReturnType());
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        InvokerClassLoader loader = new InvokerClassLoader(declaringClass.getClassLoader());
+        Class<?> invokerClass = loader.define(className.replace('/', '.'), cw.toByteArray());
+        try {
+            return (MethodInvoker) invokerClass.getDeclaredConstructor().newInstance();
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        } catch (InstantiationException e) {
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Convert the return value on the stack to an object.
+     *
+     * @param mv         the method being generated.
+     * @param returnType the return type of the called method.
+     */
+    private static void box(MethodVisitor mv, Class<?> returnType) {
+        if (returnType == Void.TYPE) {
+            mv.visitInsn(Opcodes.ACONST_NULL);
+            return;
+        }
+        if (!returnType.isPrimitive()) return;
+        Class<?> boxType;
+        if (returnType == Boolean.TYPE) {
+            boxType = Boolean.class;
+        } else if (returnType == Byte.TYPE) {
+            boxType = Byte.class;
+        } else if (returnType == Character.TYPE) {
+            boxType = Character.class;
+        } else if (returnType == Short.TYPE) {
+            boxType = Short.class;
+        } else if (returnType == Integer.TYPE) {
+            boxType = Integer.class;
+        } else if (returnType == Long.TYPE) {
+            boxType = Long.class;
+        } else if (returnType == Float.TYPE) {
+            boxType = Float.class;
+        } else {
+            boxType = Double.class;
+        }
+        String boxName = Type.getInternalName(boxType);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, boxName, "valueOf", "(" + Type.getDescriptor(returnType) + ")L" + boxName + ";");
+    }
+
+    /**
+     * Loads generated invokers.
+     * <p/>
+     * Classes are looked up in the class loader of this class first, then in the class loader of the class that
+     * declares the method.
+     */
+    private static class InvokerClassLoader extends ClassLoader {
+
+        private final ClassLoader targetLoader;
+
+        private InvokerClassLoader(ClassLoader targetLoader) {
+            super(MethodInvoker.class.getClassLoader());
+            this.targetLoader = targetLoader;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (targetLoader == null) throw new ClassNotFoundException(name);
+            return targetLoader.loadClass(name);
+        }
+
+        private Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+
+    }
+
+    /**
+     * Calls methods that can not be called from generated code.
+     */
+    private static class ReflectiveInvoker extends MethodInvoker {
+
+        private final Method method;
+        private final int argumentCount;
+
+        private ReflectiveInvoker(Method method) {
+            this.method = method;
+            this.argumentCount = method.getParameterTypes().length;
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                // Call the method with the normal access checks.
+            }
+        }
+
+        @Override
+        protected Object call(Object target, Object arg1, Object arg2) throws Throwable {
+            try {
+                switch (argumentCount) {
+                    case 0:
+                        return method.invoke(target);
+                    case 1:
+                        return method.invoke(target, arg1);
+                    default:
+                        return method.invoke(target, arg1, arg2);
+                }
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+    }
+
+}
@@ -162,8 +162,16 @@ public class NDBXHandler extends DefaultHandler {
         // we need to have the fully created document first before setting expressions.
         // Expressions are evaluated once they are set so they can create dependencies on other
         // parameters.
-        for (Map.Entry<Parameter, String> entry : expressionMap.entrySet()) {
-            entry.getKey().setExpression(entry.getValue());
+        // The dependencies are checked for cycles once, after all expressions are set.
+        library.beginParameterBulkLoad();
+        try {
+            for (Map.Entry<Parameter, String> entry : expressionMap.entrySet()) {
+                entry.getKey().setExpression(entry.getValue());
+            }
+        } finally {
+            for (Parameter p : library.endParameterBulkLoad()) {
+                p.cyclicDependencyDetected(new IllegalArgumentException("The expression of parameter " + p.getAbsolutePath() + " would cause a cyclic dependency."));
+            }
         }
     }
 
@@ -406,7 +414,11 @@ public class NDBXHandler extends DefaultHandler {
         if (currentCodeType == CodeType.PYTHON) {
             return new PythonCode(source);
         } else if (currentCodeType == CodeType.JAVA) {
-            throw new SAXException("Support for Java code is not implemented yet.");
+            try {
+                return NodeLibraryManager.getCode(source.trim());
+            } catch (IllegalArgumentException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
         } else {
             throw new SAXException("Invalid code type.");
         }
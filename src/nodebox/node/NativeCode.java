@@ -0,0 +1,70 @@
+package nodebox.node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps Java implementations of nodes that are defined in Python in a library.
+ * <p/>
+ * The Java code is registered under the identifier of the prototype, such as "corevector.wiggle". It is used
+ * instead of the Python code for that prototype and all nodes that inherit from it, as long as they did not change
+ * the code. The Java code should give the same output as the Python code.
+ * <p/>
+ * The Java code is specified as a component identifier, such as "java:nodebox.node.CoreVectorNodes.wiggle".
+ *
+ * @see NodeLibrary#setNativeCodeEnabled(boolean)
+ * @see NodeLibraryManager#getCode(String)
+ */
+class NativeCode {
+
+    private static final Map<String, NodeCode> codes = new ConcurrentHashMap<String, NodeCode>();
+
+    static {
+        register("corevector.copy", "java:nodebox.node.CoreVectorNodes.copy");
+        register("corevector.place", "java:nodebox.node.CoreVectorNodes.place");
+        register("corevector.wiggle", "java:nodebox.node.CoreVectorNodes.wiggle");
+        register("corevector.scatter", "java:nodebox.node.CoreVectorNodes.scatter");
+        register("corevector.merge", "java:nodebox.node.CoreVectorNodes.merge");
+        register("corevector.resample", "java:nodebox.node.CoreVectorNodes.resample");
+        register("corevector.transform", "java:nodebox.node.CoreVectorNodes.transform");
+        register("corevector.color", "java:nodebox.node.CoreVectorNodes.color");
+    }
+
+    /**
+     * Register Java code for a prototype.
+     *
+     * @param prototypeIdentifier the identifier of the prototype, e.g. "corevector.wiggle"
+     * @param codeIdentifier      the component identifier of the Java method.
+     * @throws IllegalArgumentException if the Java method does not exist.
+     */
+    static void register(String prototypeIdentifier, String codeIdentifier) throws IllegalArgumentException {
+        codes.put(prototypeIdentifier, NodeLibraryManager.getCode(codeIdentifier));
+    }
+
+    /**
+     * Find the code to run for the given node.
+     * <p/>
+     * If the node inherits its code from a prototype that has Java code, the Java code is returned.
+     *
+     * @param node the node to cook.
+     * @param code the code of the node.
+     * @return the Java code, or the given code if there is no Java code for the node.
+     */
+    static NodeCode find(Node node, NodeCode code) {
+        if (!(code instanceof PythonCode)) return code;
+        for (Node n = node; n != null; n = n.getPrototype()) {
+            if (n.getLibrary() == null) continue;
+            NodeCode nativeCode = codes.get(n.getIdentifier());
+            if (nativeCode == null) continue;
+            // Only use the Java code if the node did not change the code of the prototype.
+            NodeCode prototypeCode = n.asCode("_code");
+            if (prototypeCode == code || prototypeCode.getSource().equals(code.getSource())) {
+                return nativeCode;
+            } else {
+                return code;
+            }
+        }
+        return code;
+    }
+
+}
@@ -20,6 +20,8 @@ package nodebox.node;
 
 import nodebox.graphics.Color;
 import nodebox.graphics.Point;
+import nodebox.util.Cancellable;
+import nodebox.util.Cancellation;
 import nodebox.handle.Handle;
 
 import javax.swing.event.EventListenerList;
@@ -108,6 +110,14 @@ public class Node implements NodeCode, NodeAttributeListener {
      */
     private transient boolean dirty = true;
 
+    /**
+     * Identifies the current output of this node. Downstream nodes use this in their cache key.
+     * The key only changes when the output of the node changes.
+     *
+     * @see NodeOutputCache
+     */
+    private transient Object outputKey;
+
     /**
      * A map of all parameters.
      */
@@ -129,6 +139,21 @@ public class Node implements NodeCode, NodeAttributeListener {
      */
     private Node renderedChild;
 
+    /**
+     * The evaluation schedule of the children of this node.
+     * This is created on demand, and rebuilt when the connections change.
+     */
+    private transient volatile EvaluationSchedule evaluationSchedule;
+    private transient volatile StampDependencies stampDependencies;
+    /**
+     * The node in the network this node was copied from, if this is a detached copy.
+     */
+    private transient Node detachedFrom;
+    /**
+     * The proxy that gives expressions access to this node. It is created on demand.
+     */
+    private transient volatile NodeAccessProxy accessProxy;
+
     /**
      * All child connections within this node.
      * <p/>
@@ -298,6 +323,7 @@ public class Node implements NodeCode, NodeAttributeListener {
             // We're on the child node, so we need to fire the child added event
             // on the parent with this child as the argument.
             parent.fireChildAdded(this);
+            updateFrameDependencies(true);
         }
     }
 
@@ -388,6 +414,8 @@ public class Node implements NodeCode, NodeAttributeListener {
         node.disconnect();
         node.parent = null;
         children.remove(node.getName());
+        node.updateFrameDependencies(false);
+        node.removeCachedOutputs();
         if (node == renderedChild) {
             setRenderedChild(null);
         }
@@ -789,6 +817,15 @@ public class Node implements NodeCode, NodeAttributeListener {
         listenerList.remove(DirtyListener.class, l);
     }
 
+    /**
+     * Check if this node has dirty listeners.
+     *
+     * @return true if a dirty listener was added to this node.
+     */
+    /* package private */ boolean hasDirtyListeners() {
+        return listenerList.getListenerCount(DirtyListener.class) > 0;
+    }
+
     /**
      * Invoked when the node is marked dirty.
      */
@@ -1062,6 +1099,55 @@ public class Node implements NodeCode, NodeAttributeListener {
         return false;
     }
 
+    /**
+     * Tell the library which parameters of this node and its children read the frame.
+     * <p/>
+     * Nodes that are removed from their network no longer need to be marked dirty when the frame changes.
+     *
+     * @param attached true if the node was added to a network, false if it was removed.
+     * @see NodeLibrary#frameChanged()
+     */
+    private void updateFrameDependencies(boolean attached) {
+        if (library == null) return;
+        for (Parameter p : parameters.values()) {
+            if (attached) {
+                p.updateFrameDependency();
+            } else {
+                library.setFrameDependent(p, false);
+            }
+        }
+        for (Node child : children.values()) {
+            child.updateFrameDependencies(attached);
+        }
+    }
+
+    /**
+     * Remove the outputs of this node and its children from the output cache of the library.
+     */
+    private void removeCachedOutputs() {
+        if (library == null) return;
+        library.getOutputCache().remove(this);
+        for (Node child : children.values()) {
+            child.removeCachedOutputs();
+        }
+    }
+
+    /**
+     * Get the proxy that gives expressions access to the parameters and nodes of this node.
+     * <p/>
+     * The proxy looks up parameters and nodes when they are accessed, so it can be shared by all expressions.
+     *
+     * @return the access proxy for this node.
+     */
+    /* package private */ NodeAccessProxy getAccessProxy() {
+        NodeAccessProxy proxy = accessProxy;
+        if (proxy == null) {
+            proxy = new NodeAccessProxy(this);
+            accessProxy = proxy;
+        }
+        return proxy;
+    }
+
     //// Connection shortcuts ////
 
     /**
@@ -1335,6 +1421,11 @@ public class Node implements NodeCode, NodeAttributeListener {
             throw new IllegalArgumentException("Port cannot be null.");
         if (port.getNode() != this)
             throw new IllegalArgumentException("This node does not own the given port.");
+        // Detached copies have the connections of the node they were copied from.
+        if (detachedFrom != null) {
+            Port originalPort = port.isInputPort() ? detachedFrom.getPort(port.getName()) : detachedFrom.getOutputPort();
+            return detachedFrom.isConnected(originalPort);
+        }
         // The port needs to be in a parent to be connected.
         if (parent == null) return false;
         if (parent.childGraph == null) return false;
@@ -1438,27 +1529,44 @@ public class Node implements NodeCode, NodeAttributeListener {
 
     //// Dirty handling ////
 
+    /**
+     * Mark this node and all nodes downstream of it as dirty.
+     * <p/>
+     * The nodes are marked in a single pass. The dirty events are fired once all nodes are marked.
+     */
     public void markDirty() {
         if (dirty)
             return;
+        DirtyPropagation.markDirty(this);
+    }
+
+    /**
+     * Set the dirty flag and add the nodes that depend on this node to the propagation.
+     *
+     * @param propagation the running dirty propagation
+     * @return false if the node was already dirty.
+     */
+    /* package private */ boolean markDirty(DirtyPropagation propagation) {
+        if (dirty)
+            return false;
         dirty = true;
         if (parent != null) {
             // Mark all downstream connections dirty.
             // These are stored in the child graph of the parent.
             if (parent.childGraph != null) {
                 for (Port p : parent.childGraph.getDependents(outputPort)) {
-                    p.getNode().markDirty();
+                    propagation.add(p.getNode());
                 }
             }
             if (!parent.dirty) {
                 // Only changes to the rendered node should make the parent dirty.
                 // TODO: Check for corner cases.
                 if (parent.getRenderedChild() == this) {
-                    parent.markDirty();
+                    propagation.add(parent);
                 }
             }
         }
-        fireNodeDirty();
+        return true;
     }
 
     public boolean isDirty() {
@@ -1467,10 +1575,15 @@ public class Node implements NodeCode, NodeAttributeListener {
 
     /**
      * Update all upstream nodes with stamp expressions.
+     * <p/>
+     * Only the nodes whose stamp expressions use values that changed in the processing context are updated.
+     *
      * @param ctx the processing context
      */
     public void stampExpressions(ProcessingContext ctx) {
-        stampDirty();
+        // This is called for every copy, so it is a good place to stop.
+        ctx.checkCancelled();
+        stampDirty(ctx);
         updateDependencies(ctx);
     }
 
@@ -1482,7 +1595,35 @@ public class Node implements NodeCode, NodeAttributeListener {
      * context.
      */
     public void stampDirty() {
-        stampDirty(false);
+        stampDirty(null);
+    }
+
+    /**
+     * Mark upstream nodes dirty if their stamp expressions use values that changed in the given processing context.
+     * <p/>
+     * Stamp expressions remember the values they read. If the processing context contains the same values, the node
+     * does not need to be evaluated again.
+     *
+     * @param ctx the processing context containing the new stamp values, or null to mark all stamped nodes dirty.
+     */
+    public void stampDirty(ProcessingContext ctx) {
+        if (parent == null || parent.childGraph == null) return;
+        EvaluationSchedule schedule = parent.getEvaluationSchedule();
+        if (schedule.getEntry(this) == null) {
+            // The schedule is outdated, e.g. because this node was just added.
+            stampDirty(false, ctx);
+            return;
+        }
+        int stampVersion = getLibrary().getStampVersion();
+        StampDependencies dependencies = stampDependencies;
+        if (dependencies == null || !dependencies.isValidFor(schedule, stampVersion)) {
+            dependencies = new StampDependencies(this, schedule, stampVersion);
+            stampDependencies = dependencies;
+        }
+        for (Parameter p : dependencies.getParameters()) {
+            if (ctx == null ? p.hasStampExpression() : p.isStampOutdated(ctx))
+                p.markDirty();
+        }
     }
 
     /**
@@ -1490,22 +1631,22 @@ public class Node implements NodeCode, NodeAttributeListener {
      * This method does the actual upstream marking.
      *
      * @param upstream if true, we're beyond the first node and can start marking parameters dirty.
+     * @param ctx      the processing context containing the new stamp values, or null to mark all stamped nodes.
      */
-    private void stampDirty(boolean upstream) {
+    private void stampDirty(boolean upstream, ProcessingContext ctx) {
         if (parent != null && parent.childGraph != null) {
             for (Port port : ports.values()) {
                 Connection conn = parent.childGraph.getInfo(port);
                 if (conn == null) continue;
                 for (Node n : conn.getOutputNodes()) {
-                    n.stampDirty(true);
+                    n.stampDirty(true, ctx);
                 }
             }
         }
         if (upstream) {
             for (Parameter p : parameters.values()) {
-                if (p.hasStampExpression())
+                if (ctx == null ? p.hasStampExpression() : p.isStampOutdated(ctx))
                     p.markDirty();
-
             }
         }
     }
@@ -1535,15 +1676,40 @@ public class Node implements NodeCode, NodeAttributeListener {
      */
     public void update(ProcessingContext ctx) throws ProcessingError {
         if (!dirty) return;
+        // Stop between nodes if the update was cancelled. The node stays dirty.
+        ctx.checkCancelled();
         // Update the dependencies.
         // This might cause an exception which we don't catch, instead letting it boil up.
         updateDependencies(ctx);
-        // All dependencies are up-to-date. Process the node.
+        // All dependencies are up-to-date. Look up the output in the cache.
+        NodeOutputCache cache = library.getOutputCache();
+        NodeOutputCache.Key cacheKey = null;
+        NodeOutputCache.Entry cacheEntry = null;
+        if (cache.isEnabled() && isCacheable()) {
+            cacheKey = createCacheKey(ctx);
+            cacheEntry = cache.get(cacheKey);
+        }
         ProcessingError pe = null;
-        try {
-            process(ctx);
-        } catch (ProcessingError e) {
-            pe = e;
+        if (cacheEntry != null) {
+            outputPort.setValue(cacheEntry.getValue());
+            outputKey = cacheEntry.getOutputKey();
+            error = null;
+        } else {
+            // Process the node.
+            ctx.checkCancelled();
+            Object previousValue = outputPort.getValue();
+            try {
+                process(ctx);
+            } catch (ProcessingError e) {
+                pe = e;
+            }
+            Object value = outputPort.getValue();
+            // If the output didn't change, keep the output key so downstream nodes can use their cached output.
+            boolean unchanged = pe == null && outputKey != null && previousValue != null && previousValue.equals(value);
+            if (!unchanged)
+                outputKey = cacheKey != null ? cacheKey : new Object();
+            if (pe == null && cacheKey != null)
+                cache.put(cacheKey, value, outputKey);
         }
         // Even if an error occurred the node is still marked as clean, and events are fired.
         // Only after these steps is the error thrown.
@@ -1572,8 +1738,7 @@ public class Node implements NodeCode, NodeAttributeListener {
             // If an error occurs while updating the ports, this node will fail as well.
             // The error is not saved in this node since it occurred on a dependency.
             // This makes it easier to track down the error.
-            dirty = false;
-            outputPort.setValue(null);
+            dependencyFailed();
             throw e;
         }
         // Update the parameters
@@ -1589,6 +1754,16 @@ public class Node implements NodeCode, NodeAttributeListener {
         }
     }
 
+    /**
+     * Called when one of the nodes this node depends on failed.
+     * <p/>
+     * The node is marked clean and its output is cleared, so it will not be processed until it is changed again.
+     */
+    /* package private */ void dependencyFailed() {
+        dirty = false;
+        outputPort.setValue(null);
+    }
+
     /**
      * Update the parameters of this node.
      * <p/>
@@ -1619,15 +1794,106 @@ public class Node implements NodeCode, NodeAttributeListener {
     private void updatePorts(ProcessingContext ctx) throws ProcessingError {
         // Update all upstream nodes.
         if (parent != null && parent.childGraph != null) {
-            for (Port port : ports.values()) {
-                Connection conn = parent.childGraph.getInfo(port);
-                if (conn == null) continue;
-                // Updating the connection sets the value of the corresponding input port.
-                conn.update(ctx);
+            // In parallel mode, independent upstream branches are brought up-to-date first.
+            // The connection updates below will then only set the values on the input ports.
+            if (ctx.isParallel())
+                ParallelUpdater.updateUpstream(this, ctx);
+            EvaluationSchedule schedule = parent.getEvaluationSchedule();
+            EvaluationSchedule.Entry entry = schedule.getEntry(this);
+            if (entry != null) {
+                // Bring the upstream nodes up-to-date in one pass over the schedule.
+                schedule.updateUpstream(entry, ctx);
+                for (Connection conn : entry.getConnections()) {
+                    // Updating the connection sets the value of the corresponding input port.
+                    conn.update(ctx);
+                }
+            } else {
+                // This node was added after the schedule was built, and is not connected.
+                for (Port port : ports.values()) {
+                    Connection conn = parent.childGraph.getInfo(port);
+                    if (conn == null) continue;
+                    conn.update(ctx);
+                }
             }
         }
     }
 
+    /**
+     * Get the evaluation schedule for the children of this node.
+     * <p/>
+     * The schedule is rebuilt if the connections between the children changed.
+     *
+     * @return the evaluation schedule.
+     */
+    /* package private */ EvaluationSchedule getEvaluationSchedule() {
+        EvaluationSchedule schedule = evaluationSchedule;
+        if (schedule == null || !schedule.isValidFor(childGraph)) {
+            schedule = new EvaluationSchedule(this, childGraph);
+            evaluationSchedule = schedule;
+        }
+        return schedule;
+    }
+
+    /**
+     * Create the key used to look up the output of this node in the output cache.
+     * <p/>
+     * The key contains the parameter values, the output keys of the upstream nodes and the values in the
+     * processing context. This method should be called after the dependencies are updated.
+     *
+     * @param ctx meta-information about the processing operation.
+     * @return the cache key.
+     */
+    private NodeOutputCache.Key createCacheKey(ProcessingContext ctx) {
+        ArrayList<Object> values = new ArrayList<Object>();
+        for (Parameter param : parameters.values()) {
+            values.add(param.getValue());
+        }
+        for (Port port : ports.values()) {
+            Connection conn = parent != null && parent.childGraph != null ? parent.childGraph.getInfo(port) : null;
+            if (conn != null) {
+                for (Node outputNode : conn.getOutputNodes()) {
+                    values.add(outputNode.outputKey);
+                }
+            } else if (port.getCardinality() == Port.Cardinality.SINGLE) {
+                values.add(port.getValue());
+            } else {
+                values.add(new ArrayList<Object>(port.getValues()));
+            }
+        }
+        // Nodes can use the context, e.g. to get the current frame or stamp values.
+        values.add(ctx.getValueSnapshot());
+        return new NodeOutputCache.Key(this, values.toArray());
+    }
+
+    /**
+     * Check if the output of this node can be stored in the output cache.
+     * <p/>
+     * This is only the case if the output depends solely on the inputs of the node. Nodes with children depend on
+     * their child nodes, and nodes with Python code can read files or generate random numbers. Code written in Java
+     * is not analyzed and is assumed to depend only on its inputs.
+     *
+     * @return true if the output of this node can be cached.
+     * @see NodeOutputCache
+     * @see PythonCode#isDeterministic()
+     */
+    public boolean isCacheable() {
+        if (hasChildren()) return false;
+        NodeCode code = getProcessingCode();
+        return !(code instanceof PythonCode) || ((PythonCode) code).isDeterministic();
+    }
+
+    /**
+     * Get the code that is run when this node is processed.
+     *
+     * @return the code of the node, or its Java implementation if native code is enabled.
+     */
+    private NodeCode getProcessingCode() {
+        NodeCode code = asCode("_code");
+        if (library != null && library.isNativeCodeEnabled())
+            code = NativeCode.find(this, code);
+        return code;
+    }
+
     /**
      * This method does the actual functionality of the node.
      *
@@ -1635,9 +1901,10 @@ public class Node implements NodeCode, NodeAttributeListener {
      * @throws nodebox.node.ProcessingError when an error happened during procesing.
      */
     public void process(ProcessingContext ctx) throws ProcessingError {
+        // Long loops in the node code can check for cancellation without access to the context.
+        Cancellable previousOperation = Cancellation.setCurrent(ctx);
         try {
-            NodeCode code = asCode("_code");
-            Object returnValue = code.cook(this, ctx);
+            Object returnValue = getProcessingCode().cook(this, ctx);
             // TODO: Adjust for cardinality
             outputPort.setValue(returnValue);
             error = null;
@@ -1645,10 +1912,17 @@ public class Node implements NodeCode, NodeAttributeListener {
             error = e;
             outputPort.setValue(null);
             throw e;
+        } catch (ProcessingCancelledError e) {
+            // The node is not in error, it just didn't finish.
+            throw e;
         } catch (Exception e) {
+            // Code in other languages, such as Python, wraps the cancellation in its own exceptions.
+            ctx.checkCancelled();
             error = e;
             outputPort.setValue(null);
             throw new ProcessingError(this, e);
+        } finally {
+            Cancellation.setCurrent(previousOperation);
         }
     }
 
@@ -1806,6 +2080,33 @@ public class Node implements NodeCode, NodeAttributeListener {
         return n;
     }
 
+    /**
+     * Create a detached copy of this node to evaluate stamped copies.
+     * <p/>
+     * The copy has the same parameter values and ports, but no expressions, parent or connections. Checking if a port
+     * is connected returns the state of the original port. The copy is not added to the library and doesn't fire
+     * events, so it can be evaluated on any thread.
+     *
+     * @return a detached copy of this node.
+     * @see Stamper
+     */
+    /* package private */ Node createDetachedCopy() {
+        Node n = new Node(library, name, dataClass);
+        // The copy is never marked dirty, since nothing listens to it.
+        n.dirty = true;
+        for (Parameter p : parameters.values()) {
+            Parameter copy = new Parameter(n, p.getName(), p.getType());
+            copy.setEvaluatedValue(p.getValue());
+            n.parameters.put(p.getName(), copy);
+        }
+        for (Port p : ports.values()) {
+            n.ports.put(p.getName(), p.clone(n));
+        }
+        n.prototype = prototype;
+        n.detachedFrom = this;
+        return n;
+    }
+
     /**
      * Copy this node and all its upstream connections.
      * Used with deferreds.
@@ -1,6 +1,5 @@
 package nodebox.node;
 
-import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
@@ -23,47 +22,9 @@ import java.util.Set;
 public class NodeAccessProxy implements Map {
 
     private Node node;
-    private Set<String> keySet;
-    private Set<WeakReference<Parameter>> markedParameterReferences;
 
     public NodeAccessProxy(Node node) {
         this.node = node;
-        updateKeys();
-    }
-
-    /**
-     * Initialize the proxy with a access marker that notes which parameters were accessed.
-     * This marker will be passed to recursive proxies.
-     *
-     * @param node                      the node
-     * @param markedParameterReferences a list of parameters that were marked.
-     */
-    public NodeAccessProxy(Node node, Set<WeakReference<Parameter>> markedParameterReferences) {
-        this(node);
-        this.markedParameterReferences = markedParameterReferences;
-    }
-
-    private void updateKeys() {
-        keySet = new HashSet<String>();
-        // keySet is created in reverse order; from global to local scope.
-        // 1. Add nodes
-        // 1.1 Add names of the sibling nodes (nodes in the same network as this node.)
-        if (node.hasParent()) {
-            for (Node n : node.getParent().getChildren()) {
-                keySet.add(n.getName());
-            }
-        }
-        // 1.2 Add its child nodes.
-        for (Node n : node.getChildren()) {
-            keySet.add(n.getName());
-        }
-        // 2. Add parameters
-        for (Parameter p : node.getParameters()) {
-            keySet.add(p.getName());
-        }
-        // 3. Add reserved words
-        keySet.add("root");
-        keySet.add("parent");
     }
 
     public Node getNode() {
@@ -71,17 +32,29 @@ public class NodeAccessProxy implements Map {
     }
 
     public int size() {
-        return keySet.size();
+        return keySet().size();
     }
 
     public boolean isEmpty() {
         return false;
     }
 
+    /**
+     * Check if the key refers to a parameter or node.
+     * <p/>
+     * The keys are looked up in the node every time, so the proxy doesn't need to be recreated when parameters or
+     * nodes are added or removed.
+     *
+     * @param key the key to search for
+     * @return true if the key is a parameter, child, sibling or reserved word.
+     */
     public boolean containsKey(Object key) {
         if (key == null) return false;
         if (!(key instanceof String)) return false;
-        return keySet.contains((String) key);
+        String k = (String) key;
+        if (k.equals("root") || k.equals("parent")) return true;
+        if (node.hasParameter(k) || node.contains(k)) return true;
+        return node.hasParent() && node.getParent().contains(k);
     }
 
     public boolean containsValue(Object value) {
@@ -110,13 +83,13 @@ public class NodeAccessProxy implements Map {
             return node;
         } else if (k.equals("parent")) {
             if (node.hasParent()) {
-                return new NodeAccessProxy(node.getParent(), markedParameterReferences);
+                return node.getParent().getAccessProxy();
             } else {
                 return null;
             }
         } else if (k.equals("root")) {
             if (node.hasParent()) {
-                return new NodeAccessProxy(node.getParent(), markedParameterReferences);
+                return node.getParent().getAccessProxy();
             } else {
                 // If the node does not have a parent, I am my own root node.
                 return this;
@@ -125,20 +98,18 @@ public class NodeAccessProxy implements Map {
 
         // Search the parameters
         if (node.hasParameter(k)) {
-            if (markedParameterReferences != null)
-                markedParameterReferences.add(new WeakReference<Parameter>(node.getParameter(k)));
             return node.getValue(k);
         }
 
         // Network searches
         // If this is a network, search its nodes first.
         if (node.contains(k)) {
-            return new NodeAccessProxy(node.getChild(k), markedParameterReferences);
+            return node.getChild(k).getAccessProxy();
         }
 
         // Check the siblings (nodes in this node's network).
         if (node.hasParent() && node.getParent().contains(k)) {
-            return new NodeAccessProxy(node.getParent().getChild(k), markedParameterReferences);
+            return node.getParent().getChild(k).getAccessProxy();
         }
 
         // Don't know what to return.
@@ -162,6 +133,26 @@ public class NodeAccessProxy implements Map {
     }
 
     public Set keySet() {
+        Set<String> keySet = new HashSet<String>();
+        // keySet is created in reverse order; from global to local scope.
+        // 1. Add nodes
+        // 1.1 Add names of the sibling nodes (nodes in the same network as this node.)
+        if (node.hasParent()) {
+            for (Node n : node.getParent().getChildren()) {
+                keySet.add(n.getName());
+            }
+        }
+        // 1.2 Add its child nodes.
+        for (Node n : node.getChildren()) {
+            keySet.add(n.getName());
+        }
+        // 2. Add parameters
+        for (Parameter p : node.getParameters()) {
+            keySet.add(p.getName());
+        }
+        // 3. Add reserved words
+        keySet.add("root");
+        keySet.add("parent");
         return keySet;
     }
 
@@ -3,12 +3,13 @@ package nodebox.node;
 import nodebox.util.FileUtils;
 import org.xml.sax.SAXException;
 
+import javax.swing.event.EventListenerList;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Node library stores a set of (possibly hierarchical) nodes.
@@ -32,6 +33,16 @@ public class NodeLibrary {
     private NodeCode code;
 
     private DependencyGraph<Parameter, Object> parameterGraph = new DependencyGraph<Parameter, Object>();
+    private NodeOutputCache outputCache = new NodeOutputCache();
+    private EventListenerList listenerList = new EventListenerList();
+    private AtomicInteger stampVersion = new AtomicInteger();
+    private Expression.CompilerMode expressionCompilerMode;
+    private CompiledExpressionCache expressionCache = new CompiledExpressionCache();
+    private boolean nativeCodeEnabled = true;
+    /**
+     * The parameters that read the current frame. Access to this map is synchronized on the map.
+     */
+    private final Map<Parameter, Boolean> frameParameters = new IdentityHashMap<Parameter, Boolean>();
 
 
     /**
@@ -274,6 +285,29 @@ public class NodeLibrary {
         parameterGraph.removeDependents(p);
     }
 
+    /**
+     * Start adding a large number of parameter dependencies, e.g. while loading a library.
+     * <p/>
+     * Cycles are not checked until endParameterBulkLoad is called.
+     *
+     * @see DependencyGraph#beginBulkLoad()
+     */
+    /* package private */ void beginParameterBulkLoad() {
+        parameterGraph.beginBulkLoad();
+    }
+
+    /**
+     * Check the parameter dependencies for cycles after a bulk load.
+     * <p/>
+     * Dependencies that would cause a cycle are removed.
+     *
+     * @return the parameters whose expressions caused a cycle.
+     * @see DependencyGraph#endBulkLoad()
+     */
+    /* package private */ List<Parameter> endParameterBulkLoad() {
+        return parameterGraph.endBulkLoad();
+    }
+
     /**
      * Get all parameters that rely on this parameter.
      * <p/>
@@ -284,7 +318,7 @@ public class NodeLibrary {
      * since parameters can be added and removed at will.
      *
      * @param p the parameter
-     * @return a list of parameters that depend on this parameter. This list can safely be modified.
+     * @return a set of parameters that depend on this parameter. This set is read-only.
      */
     public Set<Parameter> getParameterDependents(Parameter p) {
         return parameterGraph.getDependents(p);
@@ -297,12 +331,188 @@ public class NodeLibrary {
      * since parameters can be added and removed at will.
      *
      * @param p the parameter
-     * @return a list of parameters this parameter depends on. This list can safely be modified.
+     * @return a set of parameters this parameter depends on. This set is read-only.
      */
     public Set<Parameter> getParameterDependencies(Parameter p) {
         return parameterGraph.getDependencies(p);
     }
 
+    //// Events ////
+
+    /**
+     * Add a listener that gets notified once for every change that marks nodes in this library dirty.
+     *
+     * @param l the listener
+     */
+    public void addDirtyBatchListener(DirtyBatchListener l) {
+        listenerList.add(DirtyBatchListener.class, l);
+    }
+
+    /**
+     * Remove the dirty batch listener.
+     *
+     * @param l the listener
+     */
+    public void removeDirtyBatchListener(DirtyBatchListener l) {
+        listenerList.remove(DirtyBatchListener.class, l);
+    }
+
+    /**
+     * Invoked after a change marked nodes in this library dirty.
+     *
+     * @param nodes the dirty nodes
+     */
+    public void fireNodesDirty(List<Node> nodes) {
+        // Count backwards so listeners can remove themselves. See Node#fireNodeDirty.
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == DirtyBatchListener.class) {
+                ((DirtyBatchListener) listeners[i + 1]).nodesDirty(this, nodes);
+            }
+        }
+    }
+
+    //// Output cache ////
+
+    /**
+     * Get the cache that stores the outputs of nodes in this library.
+     * <p/>
+     * Nodes whose inputs did not change since a previous update reuse their previous output instead of cooking.
+     * The cache is disabled by default, since Java code in the library could depend on outside data.
+     *
+     * @return the output cache.
+     * @see NodeOutputCache#setEnabled(boolean)
+     */
+    public NodeOutputCache getOutputCache() {
+        return outputCache;
+    }
+
+    //// Stamp expressions ////
+
+    /**
+     * Called when a parameter starts using stamp expressions.
+     * <p/>
+     * Nodes keep a list of the stamped parameters upstream. This invalidates those lists.
+     */
+    /* package private */ void stampExpressionsChanged() {
+        stampVersion.incrementAndGet();
+    }
+
+    /* package private */ int getStampVersion() {
+        return stampVersion.get();
+    }
+
+    //// Expressions ////
+
+    /**
+     * Get the compiler mode for the expressions in this library.
+     *
+     * @return the compiler mode, or null if the library uses the default compiler mode.
+     * @see Expression#getDefaultCompilerMode()
+     */
+    public Expression.CompilerMode getExpressionCompilerMode() {
+        return expressionCompilerMode;
+    }
+
+    /**
+     * Set the compiler mode for the expressions in this library.
+     * <p/>
+     * The mode is used for expressions compiled from now on.
+     *
+     * @param mode the compiler mode, or null to use the default compiler mode.
+     */
+    public void setExpressionCompilerMode(Expression.CompilerMode mode) {
+        this.expressionCompilerMode = mode;
+    }
+
+    /**
+     * Get the cache that stores the compiled expressions of this library.
+     * <p/>
+     * Expressions in this library with the same source share their compiled expression.
+     *
+     * @return the compiled expression cache.
+     */
+    /* package private */ CompiledExpressionCache getExpressionCache() {
+        return expressionCache;
+    }
+
+    //// Native code ////
+
+    /**
+     * Check if nodes in this library use Java implementations of library code instead of the Python code.
+     *
+     * @return true if native code is used.
+     * @see NativeCode
+     */
+    public boolean isNativeCodeEnabled() {
+        return nativeCodeEnabled;
+    }
+
+    /**
+     * Set if nodes in this library use Java implementations of library code instead of the Python code.
+     * <p/>
+     * The Java implementations give the same output, so this only changes the speed. Nodes whose code was changed
+     * always use their own code.
+     * <p/>
+     * The output cache is cleared, since the cached outputs were made by the other code.
+     *
+     * @param enabled true to use native code.
+     */
+    public void setNativeCodeEnabled(boolean enabled) {
+        if (this.nativeCodeEnabled == enabled) return;
+        this.nativeCodeEnabled = enabled;
+        outputCache.clear();
+    }
+
+    //// Animation ////
+
+    /**
+     * Mark everything that depends on the current frame dirty.
+     * <p/>
+     * Call this method when the frame changes, before updating with a processing context for the new frame.
+     * <p/>
+     * Parameters with expressions that read FRAME, and nodes with Python code that can read the frame, are marked
+     * dirty. This also marks the parameters that depend on them and the nodes downstream, but nothing else.
+     * Code written in Java is not analyzed; nodes with Java code that reads the frame should be marked dirty
+     * separately.
+     */
+    public void frameChanged() {
+        List<Parameter> parameters;
+        synchronized (frameParameters) {
+            if (frameParameters.isEmpty()) return;
+            parameters = new ArrayList<Parameter>(frameParameters.keySet());
+        }
+        DirtyPropagation.markDirty(parameters);
+    }
+
+    /**
+     * Get the parameters that read the current frame.
+     *
+     * @return a list of parameters.
+     */
+    /* package private */ List<Parameter> getFrameDependentParameters() {
+        synchronized (frameParameters) {
+            return new ArrayList<Parameter>(frameParameters.keySet());
+        }
+    }
+
+    /**
+     * Set if the given parameter reads the current frame.
+     *
+     * @param parameter the parameter
+     * @param dependent true if the parameter reads the frame.
+     * @see Parameter#dependsOnFrame()
+     */
+    /* package private */ void setFrameDependent(Parameter parameter, boolean dependent) {
+        synchronized (frameParameters) {
+            if (dependent) {
+                frameParameters.put(parameter, Boolean.TRUE);
+            } else {
+                frameParameters.remove(parameter);
+            }
+        }
+    }
+
     //// Standard overrides ////
 
     @Override
@@ -0,0 +1,249 @@
+package nodebox.node;
+
+import nodebox.graphics.Color;
+import nodebox.graphics.Grob;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the output of nodes based on the content of their inputs.
+ * <p/>
+ * The cache key of a node consists of its parameter values, the output keys of its upstream nodes and the values
+ * in the processing context. If a node is updated with a key that is already in the cache, the stored output
+ * is reused instead of cooking the node again.
+ * <p/>
+ * The output key is what downstream nodes use in their own cache key. Normally this is the cache key of the node.
+ * However, if a node is cooked and its output equals the previous output, the node keeps its previous output key.
+ * Downstream nodes will then find their key unchanged, so they don't need to cook again. Geometry is compared by
+ * its contents for this.
+ * <p/>
+ * Nodes can change the values on their input ports in place, so the cache never hands out the value it stores.
+ * Graphic objects are cloned when they are stored and again each time they are returned. Numbers, strings, booleans
+ * and colors can't be changed and are returned as is. Outputs of any other type are not cached.
+ * <p/>
+ * The cache only works for nodes whose output depends solely on their inputs. Nodes with children are never cached,
+ * since their output depends on the child nodes. Nodes with Python code that reads files or generates random numbers
+ * are not cached either. Code written in Java is not analyzed, so libraries whose Java code depends on outside data
+ * should leave the cache disabled.
+ * <p/>
+ * Each library has its own cache. The cache is disabled by default. The cache does not keep nodes from being garbage
+ * collected, and the outputs of a node are removed when it is removed from its network. The cache is safe to use from
+ * multiple threads.
+ *
+ * @see NodeLibrary#getOutputCache()
+ * @see Node#isCacheable()
+ */
+public class NodeOutputCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private boolean enabled = false;
+    private int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private long hitCount;
+    private long missCount;
+    private LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > maximumSize;
+        }
+    };
+
+    //// Attributes ////
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the cache. Disabling the cache also clears it.
+     *
+     * @param enabled true if the cache should be used.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            entries.clear();
+    }
+
+    public synchronized int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Set the maximum number of outputs stored in the cache.
+     * When the cache is full, the least recently used output is removed.
+     *
+     * @param maximumSize the maximum number of entries.
+     */
+    public synchronized void setMaximumSize(int maximumSize) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException("The maximum size cannot be negative.");
+        this.maximumSize = maximumSize;
+        // Evict the eldest entries.
+        while (entries.size() > maximumSize) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+    }
+
+    //// Statistics ////
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of times a node output was found in the cache.
+     *
+     * @return the hit count.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of times a node had to be cooked because its output was not in the cache.
+     *
+     * @return the miss count.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Reset the hit and miss counters.
+     */
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    /**
+     * Remove all cached outputs.
+     * <p/>
+     * Use this when a node depends on outside data, such as a file, that has changed.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Remove the cached outputs of the given node.
+     * <p/>
+     * Outputs of nodes that were garbage collected are removed as well.
+     *
+     * @param node the node
+     */
+    public synchronized void remove(Node node) {
+        Iterator<Key> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            Node keyNode = it.next().getNode();
+            if (keyNode == null || keyNode == node)
+                it.remove();
+        }
+    }
+
+    //// Cache operations ////
+
+    /**
+     * Look up the entry for the given key. This updates the hit and miss counters.
+     *
+     * @param key the cache key
+     * @return the cached entry or null.
+     */
+    /* package private */ synchronized Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    /* package private */ synchronized void put(Key key, Object value, Object outputKey) {
+        if (!enabled || !isStorable(value)) return;
+        entries.put(key, new Entry(copyValue(value), outputKey));
+    }
+
+    /**
+     * Check if the value can be kept in the cache, either because it can't be changed or because it can be copied.
+     *
+     * @param value the output of a node
+     * @return true if the value can be cached.
+     */
+    private static boolean isStorable(Object value) {
+        return value == null || value instanceof Number || value instanceof String || value instanceof Boolean
+                || value instanceof Color || value instanceof Grob;
+    }
+
+    private static Object copyValue(Object value) {
+        return value instanceof Grob ? ((Grob) value).clone() : value;
+    }
+
+    /**
+     * The cache key of a node. Two keys are equal if they are for the same node and all the input values are equal.
+     * <p/>
+     * The key only keeps a weak reference to the node. Keys of nodes that were garbage collected are not equal to
+     * any other key.
+     */
+    /* package private */ static final class Key {
+
+        private final WeakReference<Node> node;
+        private final Object[] values;
+        private final int hash;
+
+        Key(Node node, Object[] values) {
+            this.node = new WeakReference<Node>(node);
+            this.values = values;
+            this.hash = 31 * System.identityHashCode(node) + Arrays.hashCode(values);
+        }
+
+        Node getNode() {
+            return node.get();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (hash != other.hash) return false;
+            Node n = node.get();
+            return n != null && n == other.node.get() && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /* package private */ static final class Entry {
+
+        private final Object value;
+        private final Object outputKey;
+
+        private Entry(Object value, Object outputKey) {
+            this.value = value;
+            this.outputKey = outputKey;
+        }
+
+        /**
+         * Get a copy of the cached value.
+         *
+         * @return a value that is not shared with other nodes.
+         */
+        public Object getValue() {
+            return copyValue(value);
+        }
+
+        public Object getOutputKey() {
+            return outputKey;
+        }
+    }
+
+}
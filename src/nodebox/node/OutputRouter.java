@@ -0,0 +1,125 @@
+package nodebox.node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Sends output to the processing context of the current thread.
+ * <p/>
+ * Nodes print to the standard output and error streams while they cook. Swapping System.out for every cook only
+ * works if one node cooks at a time, since the streams are shared by all threads. Instead, while any thread is
+ * cooking, the standard streams are replaced by streams that look up the processing context of the thread that
+ * writes to them. Output written by threads that are not cooking goes to the fallback stream, which is the stream
+ * that was replaced. When the last cook ends, the original streams are put back.
+ * <p/>
+ * Writes go to the streams of the processing context, which are synchronized. Output of contexts that share their
+ * streams, such as forked contexts, can be interleaved per write but is never lost.
+ *
+ * @see ProcessingContext#getOutputStream()
+ * @see ProcessingContext#getErrorStream()
+ */
+class OutputRouter extends OutputStream {
+
+    private static final ThreadLocal<ProcessingContext> currentContext = new ThreadLocal<ProcessingContext>();
+    // The number of threads that are cooking, and the streams that were replaced while they cook.
+    private static int cookingThreads;
+    private static PrintStream originalOut;
+    private static PrintStream originalErr;
+    private static PrintStream systemOut;
+    private static PrintStream systemErr;
+
+    private final boolean error;
+    private final OutputStream fallback;
+
+    /**
+     * Create a stream that writes to the output or error stream of the current processing context.
+     *
+     * @param error    true to write to the error stream, false to write to the output stream.
+     * @param fallback the stream that is used when the current thread is not cooking.
+     */
+    OutputRouter(boolean error, OutputStream fallback) {
+        this.error = error;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Route the output of the current thread to the given context.
+     * <p/>
+     * Call this before cooking, and restore the previous context afterwards in a finally block.
+     *
+     * @param context the processing context, or null to write to the fallback streams.
+     * @return the previous context of the current thread, or null.
+     */
+    static ProcessingContext setCurrentContext(ProcessingContext context) {
+        ProcessingContext previous = currentContext.get();
+        if (previous == null && context != null) {
+            installSystemStreams();
+        }
+        if (context == null) {
+            currentContext.remove();
+        } else {
+            currentContext.set(context);
+        }
+        if (previous != null && context == null) {
+            restoreSystemStreams();
+        }
+        return previous;
+    }
+
+    /**
+     * Get the processing context the output of the current thread is routed to.
+     *
+     * @return the processing context, or null if the thread is not cooking.
+     */
+    static ProcessingContext getCurrentContext() {
+        return currentContext.get();
+    }
+
+    /**
+     * Replace System.out and System.err by routing streams, if no other thread is cooking.
+     */
+    private static synchronized void installSystemStreams() {
+        if (cookingThreads++ > 0) return;
+        originalOut = System.out;
+        originalErr = System.err;
+        systemOut = new PrintStream(new OutputRouter(false, originalOut), true);
+        systemErr = new PrintStream(new OutputRouter(true, originalErr), true);
+        System.setOut(systemOut);
+        System.setErr(systemErr);
+    }
+
+    /**
+     * Put back the original System.out and System.err, if no other thread is cooking.
+     * <p/>
+     * Streams that were replaced by someone else in the meantime are left alone.
+     */
+    private static synchronized void restoreSystemStreams() {
+        if (--cookingThreads > 0) return;
+        if (System.out == systemOut) System.setOut(originalOut);
+        if (System.err == systemErr) System.setErr(originalErr);
+        originalOut = originalErr = systemOut = systemErr = null;
+    }
+
+    private OutputStream target() {
+        ProcessingContext context = currentContext.get();
+        if (context == null) return fallback;
+        return error ? context.getErrorStream() : context.getOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target().flush();
+    }
+
+}
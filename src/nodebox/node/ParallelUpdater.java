@@ -0,0 +1,255 @@
+package nodebox.node;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Updates the independent upstream branches of a node at the same time.
+ * <p/>
+ * The upstream nodes are grouped in branches. Two upstream nodes end up in the same branch if they share a dirty node
+ * somewhere upstream, either through a connection or through a parameter expression. Nodes within a branch are updated
+ * one after another, in the order of the ports and connection outputs. Branches never share dirty nodes, so they can
+ * be updated in parallel without locking. Each branch is updated with a forked processing context, so values that
+ * one branch puts in the context, such as the copy number, are not seen by the others.
+ * <p/>
+ * This class only brings the upstream nodes up-to-date. Setting the values on the input ports still happens on the
+ * calling thread, using the same code path as the serial update. The results are therefore identical.
+ */
+class ParallelUpdater {
+
+    private static ExecutorService sharedExecutor;
+
+    /**
+     * Get the executor service that is shared by all processing contexts in parallel mode.
+     * The number of threads equals the number of available processors.
+     *
+     * @return the shared executor service.
+     */
+    static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            sharedExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int counter = 0;
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nodebox-update-" + (++counter));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+
+    private ParallelUpdater() {
+    }
+
+    /**
+     * Update all upstream nodes of the given node, using the executor in the processing context.
+     * <p/>
+     * If an error occurs, the first error in connection order is thrown, after all branches finished.
+     *
+     * @param node the downstream node
+     * @param ctx  the processing context. The context should have an executor.
+     * @throws ProcessingError if one of the upstream nodes failed.
+     */
+    static void updateUpstream(Node node, ProcessingContext ctx) throws ProcessingError {
+        List<Node> upstreamNodes = getDirtyUpstreamNodes(node);
+        if (upstreamNodes.size() < 2) return;
+        List<List<Node>> branches = groupBranches(upstreamNodes);
+        if (branches.size() < 2) return;
+
+        ExecutorService executor = ctx.getExecutor();
+        List<BranchUpdate> updates = new ArrayList<BranchUpdate>(branches.size());
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>(branches.size());
+        for (List<Node> branch : branches) {
+            // Nodes like copy change the values of the context while they update, so each branch gets its own.
+            // Forking happens here, before any branch runs.
+            BranchUpdate update = new BranchUpdate(branch, ctx.fork());
+            updates.add(update);
+            tasks.add(new FutureTask<Object>(update, null));
+        }
+        // The calling thread takes the first branch itself.
+        for (int i = 1; i < tasks.size(); i++) {
+            executor.execute(tasks.get(i));
+        }
+        for (FutureTask<Object> task : tasks) {
+            // If no worker has picked up the task yet, run it on this thread. This avoids a deadlock when all
+            // worker threads are waiting on branches that are still queued. Running a task that has already
+            // started does nothing.
+            task.run();
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingError(node, "Interrupted while updating upstream nodes.", e);
+            } catch (ExecutionException e) {
+                // BranchUpdate catches all errors, so this should never happen.
+                throw new AssertionError(e.getCause());
+            }
+        }
+
+        // Throw the first error, in the same order as a serial update would encounter it.
+        Throwable firstError = null;
+        int firstErrorIndex = Integer.MAX_VALUE;
+        for (BranchUpdate update : updates) {
+            if (update.error == null) continue;
+            int errorIndex = upstreamNodes.indexOf(update.errorNode);
+            if (errorIndex < firstErrorIndex) {
+                firstError = update.error;
+                firstErrorIndex = errorIndex;
+            }
+        }
+        if (firstError instanceof RuntimeException) {
+            throw (RuntimeException) firstError;
+        } else if (firstError instanceof Error) {
+            throw (Error) firstError;
+        }
+    }
+
+    /**
+     * Get all dirty nodes directly connected to the input ports of the given node.
+     * The nodes are in the order of the ports and the outputs of each connection.
+     *
+     * @param node the downstream node
+     * @return a list of distinct upstream nodes.
+     */
+    private static List<Node> getDirtyUpstreamNodes(Node node) {
+        List<Node> upstreamNodes = new ArrayList<Node>();
+        Node parent = node.getParent();
+        if (parent == null) return upstreamNodes;
+        for (Port port : node.getPorts()) {
+            Connection conn = parent.getUpstreamConnection(port);
+            if (conn == null) continue;
+            for (Node outputNode : conn.getOutputNodes()) {
+                if (outputNode.isDirty() && !upstreamNodes.contains(outputNode))
+                    upstreamNodes.add(outputNode);
+            }
+        }
+        return upstreamNodes;
+    }
+
+    /**
+     * Group the given nodes into branches that do not share any dirty upstream nodes.
+     * <p/>
+     * The order of the nodes is retained: the branches are sorted by their first node, and the nodes within a branch
+     * keep their original order.
+     *
+     * @param upstreamNodes the nodes to group
+     * @return a list of branches.
+     */
+    private static List<List<Node>> groupBranches(List<Node> upstreamNodes) {
+        int size = upstreamNodes.size();
+        // Union-find over the upstream node indexes.
+        int[] roots = new int[size];
+        for (int i = 0; i < size; i++) {
+            roots[i] = i;
+        }
+        Map<Node, Integer> owners = new HashMap<Node, Integer>();
+        for (int i = 0; i < size; i++) {
+            LinkedList<Node> queue = new LinkedList<Node>();
+            Set<Node> visited = new HashSet<Node>();
+            queue.add(upstreamNodes.get(i));
+            while (!queue.isEmpty()) {
+                Node n = queue.removeFirst();
+                // Clean nodes are never updated, so branches can safely share them.
+                if (!n.isDirty() || !visited.add(n)) continue;
+                Integer owner = owners.get(n);
+                if (owner != null) {
+                    union(roots, owner, i);
+                    // The rest of this subgraph was already visited by the owner.
+                    continue;
+                }
+                owners.put(n, i);
+                addDependencies(n, queue);
+            }
+        }
+        Map<Integer, List<Node>> branchMap = new LinkedHashMap<Integer, List<Node>>();
+        for (int i = 0; i < size; i++) {
+            int root = find(roots, i);
+            List<Node> branch = branchMap.get(root);
+            if (branch == null) {
+                branch = new ArrayList<Node>();
+                branchMap.put(root, branch);
+            }
+            branch.add(upstreamNodes.get(i));
+        }
+        return new ArrayList<List<Node>>(branchMap.values());
+    }
+
+    /**
+     * Add all nodes the given node depends on to the queue.
+     * <p/>
+     * These are the nodes connected to its input ports, the nodes of parameters its expressions refer to, and the
+     * rendered child.
+     *
+     * @param n     the node
+     * @param queue the queue to add the dependencies to
+     */
+    private static void addDependencies(Node n, List<Node> queue) {
+        Node parent = n.getParent();
+        if (parent != null) {
+            for (Port port : n.getPorts()) {
+                Connection conn = parent.getUpstreamConnection(port);
+                if (conn == null) continue;
+                queue.addAll(conn.getOutputNodes());
+            }
+        }
+        for (Parameter p : n.getParameters()) {
+            if (!p.hasExpression()) continue;
+            for (Parameter dependency : p.getDependencies()) {
+                queue.add(dependency.getNode());
+            }
+        }
+        if (n.getRenderedChild() != null)
+            queue.add(n.getRenderedChild());
+    }
+
+    private static int find(int[] roots, int i) {
+        while (roots[i] != i) {
+            roots[i] = roots[roots[i]];
+            i = roots[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] roots, int a, int b) {
+        int rootA = find(roots, a);
+        int rootB = find(roots, b);
+        // Keep the lowest index as the root so branches stay in connection order.
+        if (rootA < rootB) {
+            roots[rootB] = rootA;
+        } else if (rootB < rootA) {
+            roots[rootA] = rootB;
+        }
+    }
+
+    /**
+     * Updates the nodes in a branch one after another, remembering the first error.
+     */
+    private static class BranchUpdate implements Runnable {
+
+        private final List<Node> nodes;
+        private final ProcessingContext ctx;
+        private Throwable error;
+        private Node errorNode;
+
+        private BranchUpdate(List<Node> nodes, ProcessingContext ctx) {
+            this.nodes = nodes;
+            this.ctx = ctx;
+        }
+
+        public void run() {
+            for (Node node : nodes) {
+                try {
+                    node.update(ctx);
+                } catch (Throwable t) {
+                    error = t;
+                    errorNode = node;
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -177,6 +177,15 @@ public class Parameter {
     private List<MenuItem> menuItems = new ArrayList<MenuItem>(0);
     private transient boolean dirty;
     private transient boolean hasStampExpression;
+    /**
+     * The stamp keys the expression read, with the values they had in the processing context.
+     * Access to this map is synchronized on the parameter.
+     */
+    private transient HashMap<String, Object> stampValues;
+    /**
+     * The constant expression whose value is stored in this parameter.
+     */
+    private transient Expression constantExpression;
 
     public Parameter(Node node, String name, Type type) {
         this.node = node;
@@ -281,7 +290,9 @@ public class Parameter {
         if (this.type == newType) return;
         // Try to migrate the value to the new type
         if (hasExpression()) {
-            // Do nothing. It is too hard to change expressions to return a value of the new type.
+            // It is too hard to change expressions to return a value of the new type.
+            // The value of a constant expression is converted to the new type on the next update.
+            constantExpression = null;
         } else {
             try {
                 value = parseValue(asString(), newType);
@@ -556,6 +567,8 @@ public class Parameter {
         } else {
             this.value = value;
         }
+        if (type == Type.CODE)
+            updateFrameDependency();
         markDirty();
     }
 
@@ -573,8 +586,25 @@ public class Parameter {
      */
     /* package private */ void markDirty() {
         if (dirty) return;
+        DirtyPropagation.markDirty(this);
+    }
+
+    /**
+     * Set the dirty flag and add the node and dependent parameters to the running dirty propagation.
+     * <p/>
+     * The propagation fires the value changed event after the pass is finished.
+     *
+     * @param propagation the running propagation
+     * @return true if the parameter was not dirty yet.
+     */
+    /* package private */ boolean markDirty(DirtyPropagation propagation) {
+        if (dirty) return false;
         dirty = true;
-        fireValueChanged();
+        propagation.add(getNode());
+        for (Parameter p : getDependents()) {
+            propagation.add(p);
+        }
+        return true;
     }
 
     //// Validation ////
@@ -619,12 +649,25 @@ public class Parameter {
             } else {
                 throw new AssertionError("Bounding set, but value is not integer or float. (type: " + this + " value: " + value + ")");
             }
-            if (minimumValue != null && floatValue < minimumValue) {
-                throw new IllegalArgumentException("Parameter " + getName() + ": value " + value + " is too small. (minimum=" + minimumValue + ")");
-            }
-            if (maximumValue != null && floatValue > maximumValue) {
-                throw new IllegalArgumentException("Parameter " + getName() + ": value " + value + " is too big. (maximum=" + maximumValue + ")");
-            }
+            validateBounds(floatValue, value);
+        }
+    }
+
+    /**
+     * Check if the value falls within the hard bounds of this parameter.
+     * <p/>
+     * The caller should check if the bounding method is HARD.
+     *
+     * @param floatValue the value to check
+     * @param value      the value as it is shown in the error message
+     * @throws IllegalArgumentException if the value is out of bounds.
+     */
+    private void validateBounds(float floatValue, Object value) throws IllegalArgumentException {
+        if (minimumValue != null && floatValue < minimumValue) {
+            throw new IllegalArgumentException("Parameter " + getName() + ": value " + value + " is too small. (minimum=" + minimumValue + ")");
+        }
+        if (maximumValue != null && floatValue > maximumValue) {
+            throw new IllegalArgumentException("Parameter " + getName() + ": value " + value + " is too big. (maximum=" + maximumValue + ")");
         }
     }
 
@@ -648,8 +691,9 @@ public class Parameter {
 
     public void clearExpression() {
         this.expression = null;
-        hasStampExpression = false;
+        clearStampValues();
         removeDependencies();
+        updateFrameDependency();
         markDirty();
     }
 
@@ -666,7 +710,6 @@ public class Parameter {
         // happen, we need to set "a" again to the same expression.
         // TODO: This is more of a temporary workaround than a final solution.
         // Ideally, the system should detect that the expression becomes valid because a new parameter was created.
-        // However, this means we can no longer use MVELs dependency detection.
         if (expression == null || expression.trim().length() == 0) {
             clearExpression();
             return true;
@@ -675,14 +718,12 @@ public class Parameter {
         removeDependencies();
         // Set the new expression.
         this.expression = new Expression(this, expression);
-        // Reset the stamp flag. It will be set by markStampExpression(), which will be called
-        // from the expression helper while evaluating the expression.
-        hasStampExpression = false;
-        // Evaluate the expression to see if it returns any errors.
-        try {
-            this.expression.evaluate();
-        } catch (ExpressionError ignored) {
-            // Note that we catch the error, but do not handle it.
+        clearStampValues();
+        // Check the expression for errors. The expression is compiled and analyzed, but not evaluated.
+        boolean valid = this.expression.check();
+        updateFrameDependency();
+        if (!valid) {
+            // Note that we do not throw the error.
             // We want to be able to work with errornous expressions, and only have the error
             // happen when the Node is updated, updating parameters and thus expressions.
             // We simply return false to indicate that the method has an error.
@@ -694,6 +735,12 @@ public class Parameter {
             markDirty();
             return false;
         }
+        // The stamp values are recorded by markStampExpression() when the expression is evaluated.
+        // Nodes that copy their upstream nodes need to know about the stamp expression before that.
+        if (this.expression.callsFunction("stamp")) {
+            hasStampExpression = true;
+            getLibrary().stampExpressionsChanged();
+        }
         // Setting an expession automatically enables it and marks the parameter as dirty.
         markDirty();
         try {
@@ -702,13 +749,25 @@ public class Parameter {
             // Whilst updating, we might catch a Connection error meaning you are connecting
             // e.g. the parameter to itself. If that happens, we clear out the expression and all of its
             // dependencies.
-            removeDependencies();
-            this.expression.setError(e);
+            cyclicDependencyDetected(e);
             return false;
         }
         return true;
     }
 
+    /**
+     * Clear out all dependencies of this parameter and set the error on the expression.
+     * <p/>
+     * This method gets called when the dependencies of the expression would cause a cycle.
+     *
+     * @param e the error that describes the cycle.
+     */
+    /* package private */ void cyclicDependencyDetected(IllegalArgumentException e) {
+        removeDependencies();
+        if (expression != null)
+            expression.setError(e);
+    }
+
     /**
      * Check if the parameter has an expression containing the stamp function.
      *
@@ -724,8 +783,83 @@ public class Parameter {
      * Do not call this method yourself. This method is only used by ExpressionUtils.stamp() to indicate
      * that the stamp expression was used.
      */
-    /* package private */ void markStampExpression() {
+    /* package private */ void markStampExpression(String key, Object value) {
+        boolean wasStamped = hasStampExpression;
+        synchronized (this) {
+            if (stampValues == null)
+                stampValues = new HashMap<String, Object>();
+            stampValues.put(key, value);
+        }
         this.hasStampExpression = true;
+        // Nodes that copy their upstream nodes keep a list of stamped parameters. Tell them it is outdated.
+        if (!wasStamped)
+            getLibrary().stampExpressionsChanged();
+    }
+
+    private void clearStampValues() {
+        hasStampExpression = false;
+        synchronized (this) {
+            stampValues = null;
+        }
+    }
+
+    /**
+     * Forget the stamp values used to evaluate the expression.
+     * <p/>
+     * The expression will be seen as outdated by the next stamp operation.
+     * This is used when the expression was evaluated for a copy, but the value was not stored in this parameter.
+     */
+    /* package private */ synchronized void invalidateStampValues() {
+        stampValues = null;
+    }
+
+    /**
+     * Check if the stamp values in the given context differ from the ones used when the expression was last evaluated.
+     *
+     * @param context the processing context containing the current stamp values.
+     * @return true if the expression needs to be evaluated again.
+     */
+    /* package private */ boolean isStampOutdated(ProcessingContext context) {
+        if (!hasStampExpression) return false;
+        synchronized (this) {
+            if (stampValues == null) return true;
+            for (Map.Entry<String, Object> entry : stampValues.entrySet()) {
+                Object current = context.get(entry.getKey());
+                Object used = entry.getValue();
+                if (current == null ? used != null : !current.equals(used))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    //// Frame dependency ////
+
+    /**
+     * Check if the value of this parameter depends on the current frame.
+     * <p/>
+     * This is the case for expressions that read FRAME, and for Python code that can read the frame. Parameters that
+     * depend on those parameters are not included. Code written in Java is not analyzed.
+     *
+     * @return true if this parameter reads the frame.
+     * @see NodeLibrary#frameChanged()
+     * @see PythonCode#readsFrame()
+     */
+    /* package private */ boolean dependsOnFrame() {
+        if (hasExpression())
+            return !expression.hasError() && expression.dependsOnFrame();
+        if (type == Type.CODE && value instanceof PythonCode)
+            return ((PythonCode) value).readsFrame();
+        return false;
+    }
+
+    /**
+     * Tell the library if this parameter reads the frame.
+     */
+    /* package private */ void updateFrameDependency() {
+        NodeLibrary library = getLibrary();
+        if (library != null)
+            library.setFrameDependent(this, dependsOnFrame());
     }
 
     //// Expression dependencies ////
@@ -806,7 +940,7 @@ public class Parameter {
      * This list contains all "live" parameters when you call it. Please don't hold on to this list for too long,
      * since parameters can be added and removed at will.
      *
-     * @return a list of parameters that depend on this parameter. This list can safely be modified.
+     * @return a set of parameters that depend on this parameter. This set is read-only.
      */
     public Set<Parameter> getDependents() {
         return getLibrary().getParameterDependents(this);
@@ -825,7 +959,7 @@ public class Parameter {
      * This list contains all "live" parameters when you call it. Please don't hold on to this list for too long,
      * since parameters can be added and removed at will.
      *
-     * @return a list of parameters this parameter depends on. This list can safely be modified.
+     * @return a set of parameters this parameter depends on. This set is read-only.
      */
     public Set<Parameter> getDependencies() {
         return getLibrary().getParameterDependencies(this);
@@ -880,6 +1014,9 @@ public class Parameter {
     public void removedEvent() {
         removeDependencies();
         removeDependents();
+        NodeLibrary library = getLibrary();
+        if (library != null)
+            library.setFrameDependent(this, false);
     }
 
     /**
@@ -897,19 +1034,80 @@ public class Parameter {
         // already updated it.
         dirty = false;
         if (hasExpression()) {
+            // The value of a constant expression doesn't change once it is evaluated.
+            if (constantExpression == expression) return;
             // Update all dependencies.
             for (Parameter p : getDependencies()) {
                 p.update(context);
             }
 
-            Object expressionValue = expression.evaluate(context);
-            expressionValue = convertToType(expressionValue);
-            validate(expressionValue);
-            value = expressionValue;
+            value = evaluateExpression(context);
+            constantExpression = expression.isConstant() ? expression : null;
             fireValueChanged();
         }
     }
 
+    /**
+     * Evaluate the expression without changing the value of this parameter.
+     * <p/>
+     * The dependencies of the expression are not updated.
+     *
+     * @param context the processing context
+     * @return the value of the expression, converted to the type of this parameter.
+     * @throws ExpressionError          if an error occurs in the expression.
+     * @throws IllegalArgumentException if the value is not valid for this parameter.
+     */
+    /* package private */ Object evaluateExpression(ProcessingContext context) throws ExpressionError {
+        return evaluateExpression(expression, context);
+    }
+
+    /**
+     * Evaluate the given expression as the expression of this parameter, without changing the value of this parameter.
+     * <p/>
+     * The expression should have the same source as the expression of this parameter. Evaluating a separate
+     * expression object keeps errors out of the expression of this parameter, so copies can be evaluated on
+     * different threads.
+     *
+     * @param expression the expression to evaluate
+     * @param context    the processing context
+     * @return the value of the expression, converted to the type of this parameter.
+     * @throws ExpressionError          if an error occurs in the expression.
+     * @throws IllegalArgumentException if the value is not valid for this parameter.
+     * @see Stamper
+     */
+    /* package private */ Object evaluateExpression(Expression expression, ProcessingContext context) throws ExpressionError {
+        // Numeric parameters use the typed entry points of the expression, which convert the result directly
+        // instead of going through the generic conversion and type validation.
+        if (type == Type.INT) {
+            int intValue = expression.asInt(context);
+            if (getBoundingMethod() == BoundingMethod.HARD)
+                validateBounds(intValue, intValue);
+            return intValue;
+        } else if (type == Type.FLOAT) {
+            float floatValue = (float) expression.asFloat(context);
+            if (getBoundingMethod() == BoundingMethod.HARD)
+                validateBounds(floatValue, floatValue);
+            return floatValue;
+        }
+        Object expressionValue = expression.evaluate(context);
+        expressionValue = convertToType(expressionValue);
+        validate(expressionValue);
+        return expressionValue;
+    }
+
+    /**
+     * Set the value without validation or events.
+     * <p/>
+     * This is only used for the detached nodes that evaluate stamped copies. These nodes are not part of a network,
+     * so nobody listens to them.
+     *
+     * @param value the new value
+     * @see Stamper
+     */
+    /* package private */ void setEvaluatedValue(Object value) {
+        this.value = value;
+    }
+
     /**
      * Convert the given value to the correct type for this parameter.
      * <p/>
@@ -0,0 +1,17 @@
+package nodebox.node;
+
+/**
+ * Thrown when an update is cancelled or runs past its deadline.
+ * <p/>
+ * Unlike a ProcessingError, this does not indicate a problem with a node. Nodes that were not finished when the update
+ * stopped stay dirty, so the next update processes them again.
+ *
+ * @see ProcessingContext#checkCancelled()
+ */
+public class ProcessingCancelledError extends RuntimeException {
+
+    public ProcessingCancelledError(String message) {
+        super(message);
+    }
+
+}
@@ -1,23 +1,34 @@
 package nodebox.node;
 
+import nodebox.util.Cancellable;
+
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * The processing context contains metadata about the processing operation.
  * <p/>
  * Note: the context is currently empty. Later on, we will add the frame number etc.
  */
-public class ProcessingContext {
+public class ProcessingContext implements Cancellable {
 
     private HashMap<String, Object> valueMap = new HashMap<String, Object>();
+    /**
+     * True if the value map is shared with a forked context. The map is copied before it is changed.
+     */
+    private volatile boolean valueMapShared;
     private ByteArrayOutputStream outputBytes;
     private ByteArrayOutputStream errorBytes;
     private PrintStream outputStream;
     private PrintStream errorStream;
+    private ExecutorService executor;
+    private CancellationToken cancellationToken;
+    private long deadline;
 
     private enum State {
         UPDATING, PROCESSED
@@ -37,9 +48,48 @@ public class ProcessingContext {
         errorStream = new PrintStream(errorBytes);
     }
 
+    /**
+     * Create a child context that shares the values and streams of the given context.
+     *
+     * @param parent the parent context
+     * @see #fork()
+     */
+    private ProcessingContext(ProcessingContext parent) {
+        valueMap = parent.valueMap;
+        valueMapShared = true;
+        parent.valueMapShared = true;
+        outputBytes = parent.outputBytes;
+        outputStream = parent.outputStream;
+        errorBytes = parent.errorBytes;
+        errorStream = parent.errorStream;
+        executor = parent.executor;
+        cancellationToken = parent.cancellationToken;
+        deadline = parent.deadline;
+    }
+
+    /**
+     * Create a lightweight child context.
+     * <p/>
+     * The child starts out with the same values as this context. The values are only copied when either context
+     * changes them, so changes to the child are not visible in this context, and vice versa.
+     * The child writes to the same output and error streams, and is cancelled together with this context.
+     * <p/>
+     * Forking a context that is not being changed is safe from multiple threads. This is used to give each stamped
+     * copy its own context.
+     *
+     * @return a new processing context.
+     */
+    public ProcessingContext fork() {
+        return new ProcessingContext(this);
+    }
+
     //// Map operations ////
 
     public void put(String key, Object value) {
+        if (valueMapShared) {
+            valueMap = new HashMap<String, Object>(valueMap);
+            valueMapShared = false;
+        }
         valueMap.put(key, value);
     }
 
@@ -55,6 +105,19 @@ public class ProcessingContext {
         return valueMap.keySet();
     }
 
+    /**
+     * Get the current values of this context.
+     * <p/>
+     * The map is not copied. Instead, this context copies its values the next time they are changed, just like a
+     * forked context does. The returned map therefore keeps the values at the time of the call.
+     *
+     * @return an unmodifiable map of values.
+     */
+    /* package private */ Map<String, Object> getValueSnapshot() {
+        valueMapShared = true;
+        return Collections.unmodifiableMap(valueMap);
+    }
+
     //// Map shortcuts ////
 
     public int getFrame() {
@@ -79,6 +142,105 @@ public class ProcessingContext {
         return errorBytes.toString();
     }
 
+    //// Parallel processing ////
+
+    /**
+     * Enable or disable parallel updating using the shared processing pool.
+     * <p/>
+     * In parallel mode, independent upstream branches of a node are updated at the same time.
+     * The result of the update is the same as in serial mode.
+     *
+     * @param parallel true if independent branches should be updated in parallel.
+     * @see #setExecutor(java.util.concurrent.ExecutorService)
+     */
+    public void setParallel(boolean parallel) {
+        executor = parallel ? ParallelUpdater.getSharedExecutor() : null;
+    }
+
+    /**
+     * Checks if independent upstream branches are updated in parallel.
+     *
+     * @return true if this context has an executor.
+     */
+    public boolean isParallel() {
+        return executor != null;
+    }
+
+    /**
+     * Set the executor used for updating independent branches. Set the executor to null to update serially.
+     *
+     * @param executor the executor service or null.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    //// Cancellation ////
+
+    /**
+     * Set the token used to cancel the update.
+     * <p/>
+     * The update checks the token before every node is processed, and in long loops such as creating copies.
+     *
+     * @param cancellationToken the token, or null if the update cannot be cancelled.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Set the time at which the update should stop.
+     *
+     * @param deadline the deadline in milliseconds, as returned by System.currentTimeMillis(), or 0 for no deadline.
+     * @see #setTimeLimit(long)
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set the deadline relative to the current time.
+     *
+     * @param milliseconds the time the update is allowed to take.
+     */
+    public void setTimeLimit(long milliseconds) {
+        setDeadline(System.currentTimeMillis() + milliseconds);
+    }
+
+    /**
+     * Check if the update was cancelled or has run past its deadline.
+     *
+     * @return true if the update should stop.
+     */
+    public boolean isCancelled() {
+        if (cancellationToken != null && cancellationToken.isCancelled()) return true;
+        return deadline != 0 && System.currentTimeMillis() > deadline;
+    }
+
+    /**
+     * Throw an error if the update was cancelled or has run past its deadline.
+     *
+     * @throws ProcessingCancelledError if the update should stop.
+     */
+    public void checkCancelled() throws ProcessingCancelledError {
+        if (cancellationToken != null && cancellationToken.isCancelled())
+            throw new ProcessingCancelledError("The update was cancelled.");
+        if (deadline != 0 && System.currentTimeMillis() > deadline)
+            throw new ProcessingCancelledError("The update ran past its deadline.");
+    }
+
     // TODO: These are no longer used. Check and remove.
     public void beginUpdating(Parameter parameter) {
         State state = updatedParameters.get(parameter);
@@ -1,11 +1,25 @@
 package nodebox.node;
 
+import nodebox.graphics.Color;
+import org.python.antlr.Visitor;
+import org.python.antlr.ast.Exec;
+import org.python.antlr.ast.Import;
+import org.python.antlr.ast.ImportFrom;
+import org.python.antlr.ast.Name;
+import org.python.antlr.ast.alias;
 import org.python.core.*;
-import org.python.util.PythonInterpreter;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Python source code is in this form:
@@ -22,42 +36,113 @@ import java.util.Locale;
  * <p/>
  * The cook method on this class executes the Python "cook" function with the self reference. It also sets a number
  * of global parameters based on the ProcessingContext.
+ * <p/>
+ * Compiling Python source generates Java classes, which is slow and takes up memory. Nodes created from the same
+ * prototype carry the same source, so the compiled code is shared by all PythonCode objects with the same source.
+ * Each PythonCode object still runs the compiled code in its own namespace.
  */
 public class PythonCode implements NodeCode {
 
     public static final String TYPE = "python";
+
+    /**
+     * The maximum number of compiled sources that are kept.
+     */
+    private static final int COMPILED_CODE_CACHE_SIZE = 256;
+
+    /**
+     * The compiled code for each source, with the most recently used source last.
+     * Access to this map is synchronized on the map.
+     */
+    private static final Map<String, PyCode> compiledCodeCache = new LinkedHashMap<String, PyCode>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PyCode> eldest) {
+            return size() > COMPILED_CODE_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The number of cooks in progress, and the Python output streams that were replaced while they run.
+     * Access to these fields is synchronized on the PythonCode class.
+     */
+    private static int runningCooks;
+    private static PySystemState routedState;
+    private static PyObject originalStdout, originalStderr;
+    private static PyObject routedStdout, routedStderr;
+
+    /**
+     * Global names that give access to the current frame, directly or by looking up other globals.
+     */
+    private static final Set<String> FRAME_NAMES = new HashSet<String>(Arrays.asList(
+            "FRAME", "context", "globals", "vars", "eval", "execfile", "__import__"));
+
+    /**
+     * Global names of functions that read outside data or run code that can not be analyzed.
+     */
+    private static final Set<String> SIDE_EFFECT_NAMES = new HashSet<String>(Arrays.asList(
+            "open", "file", "input", "raw_input", "reload", "eval", "execfile", "__import__"));
+
+    /**
+     * Modules that only contain functions whose result depends on their arguments.
+     * Submodules of these modules are included.
+     */
+    private static final List<String> DETERMINISTIC_MODULES = Arrays.asList(
+            "math", "nodebox.graphics", "nodebox.util.Geometry");
+
     private String source;
-    private PyDictionary namespace;
-    private PyFunction cookFunction;
+    private volatile PyFunction cookFunction;
+    private volatile CodeVisitor analysis;
 
     public PythonCode(String source) {
         this.source = source;
     }
 
-    private void preCook() {
-        // The namespace will remain bound to the interpreter.
-        // Changes to this dictionary will affect the namespace of the interpreter.
-        namespace = new PyDictionary();
-        PythonInterpreter interpreter = new PythonInterpreter(namespace);
+    /**
+     * Get the compiled code for the given source.
+     * <p/>
+     * The source is compiled the first time it is requested. Afterwards, the same compiled code is returned.
+     *
+     * @param source the Python source code.
+     * @return the compiled code.
+     */
+    /* package private */ static PyCode getCompiledCode(String source) {
+        synchronized (compiledCodeCache) {
+            PyCode code = compiledCodeCache.get(source);
+            if (code != null) return code;
+        }
+        // Compile outside of the lock, since this can take a while.
+        // If two threads compile the same source at once, the first one is kept.
+        PyCode code = Py.compile_flags(source, "<node code>", CompileMode.exec, new CompilerFlags());
+        synchronized (compiledCodeCache) {
+            PyCode existing = compiledCodeCache.get(source);
+            if (existing != null) return existing;
+            compiledCodeCache.put(source, code);
+        }
+        return code;
+    }
+
+    private synchronized void preCook() {
+        if (cookFunction != null) return;
+        // The interpreter normally initializes the Python system state.
+        PySystemState.initialize();
         // Immediately run the code to extract the cook(self) method.
-        interpreter.exec(source);
-        try {
-            cookFunction = (PyFunction) interpreter.get("cook");
-            if (cookFunction == null)
-                throw new RuntimeException("Source code does not contain a function \"cook(self)\".");
-        } catch (ClassCastException e) {
+        // The namespace contains the globals of the code.
+        PyDictionary namespace = new Namespace();
+        namespace.__setitem__("__name__", new PyString("__main__"));
+        Py.runCode(getCompiledCode(source), namespace, namespace);
+        PyObject cook = namespace.__finditem__("cook");
+        if (cook == null)
+            throw new RuntimeException("Source code does not contain a function \"cook(self)\".");
+        if (!(cook instanceof PyFunction))
             throw new RuntimeException("Attribute \"cook\" in source code is not a function.");
-        }
         // We cannot check if the function takes only one (required) argument.
         // If the function has more arguments, this will throw an error when cooking.
+        this.cookFunction = (PyFunction) cook;
     }
 
     public Object cook(Node node, ProcessingContext context) throws RuntimeException {
         if (cookFunction == null) preCook();
 
-        // Add globals into the function namespace.
-        namespace.put("context", context);
-        namespace.put("FRAME", context.getFrame());
         PyObject self;
         if (node == null) {
             self = Py.None;
@@ -65,27 +150,24 @@ public class PythonCode implements NodeCode {
             self = new SelfWrapper(node);
         }
 
-        // Reassign the output and error streams.
-        PrintStream oldOutStream = System.out;
-        PrintStream oldErrStream = System.err;
-        System.setOut(context.getOutputStream());
-        System.setErr(context.getErrorStream());
+        // Route the output of this thread to the context. Other threads can cook at the same time.
+        // This also sets the context and FRAME globals for this thread.
         PySystemState ss = Py.getSystemState();
-        PyObject oldStdout = ss.stdout;
-        PyObject oldStderr = ss.stderr;
-        ss.stdout = Py.java2py(context.getOutputStream());
-        ss.stderr = Py.java2py(context.getErrorStream());
+        installPythonStreams(ss);
+        PyObject stdout = ss.stdout;
+        PyObject stderr = ss.stderr;
+        ProcessingContext previousContext = OutputRouter.setCurrentContext(context);
 
         // Run the Python function.
         PyObject pyResult;
         try {
             pyResult = cookFunction.__call__(self);
         } finally {
-            // Reset the output streams.
-            System.setOut(oldOutStream);
-            System.setErr(oldErrStream);
-            ss.stdout = oldStdout;
-            ss.stderr = oldStderr;
+            // Python can buffer output; write it out while it is still routed to this context.
+            stdout.invoke("flush");
+            stderr.invoke("flush");
+            OutputRouter.setCurrentContext(previousContext);
+            restorePythonStreams();
         }
 
         // Unwrap the result.
@@ -96,6 +178,109 @@ public class PythonCode implements NodeCode {
         return result;
     }
 
+    /**
+     * Replace the Python output streams by streams that write to the processing context of the current thread.
+     * <p/>
+     * The streams are replaced when the first cook starts, and put back when the last cook ends. While they are
+     * replaced, output of threads that are not cooking goes to the original streams.
+     *
+     * @param ss the Python system state
+     */
+    private static synchronized void installPythonStreams(PySystemState ss) {
+        if (runningCooks++ > 0) return;
+        routedState = ss;
+        originalStdout = ss.stdout;
+        originalStderr = ss.stderr;
+        routedStdout = Py.java2py(new PrintStream(new OutputRouter(false, new PythonFileStream(originalStdout)), true));
+        routedStderr = Py.java2py(new PrintStream(new OutputRouter(true, new PythonFileStream(originalStderr)), true));
+        ss.stdout = routedStdout;
+        ss.stderr = routedStderr;
+    }
+
+    /**
+     * Put back the original Python output streams when the last cook ends.
+     * <p/>
+     * Streams that were replaced by someone else in the meantime, such as an interpreter, are left alone.
+     */
+    private static synchronized void restorePythonStreams() {
+        if (--runningCooks > 0) return;
+        if (isRouted(routedState.stdout, routedStdout)) routedState.stdout = originalStdout;
+        if (isRouted(routedState.stderr, routedStderr)) routedState.stderr = originalStderr;
+        routedState = null;
+        originalStdout = originalStderr = routedStdout = routedStderr = null;
+    }
+
+    private static boolean isRouted(PyObject file, PyObject routed) {
+        if (file == null) return false;
+        if (file == routed) return true;
+        // Jython can wrap a Java stream in a Python file object when it is first written to.
+        Object stream = routed.__tojava__(OutputStream.class);
+        return stream != Py.NoConversion && file.__tojava__(OutputStream.class) == stream;
+    }
+
+    /**
+     * Check if the code can read the current frame.
+     * <p/>
+     * The source is parsed and checked for names that give access to the frame, such as FRAME and context.
+     * Code that uses exec or imports the node package could reach the frame in other ways, and code that does not
+     * parse can not be checked. In these cases the code is assumed to read the frame.
+     *
+     * @return true if the code can read the frame.
+     * @see Parameter#dependsOnFrame()
+     */
+    /* package private */ boolean readsFrame() {
+        CodeVisitor a = getAnalysis();
+        if (!a.parsed || a.usesExec || a.importsNodePackage) return true;
+        for (String name : FRAME_NAMES) {
+            if (a.names.contains(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the result of the code only depends on the node and the processing context.
+     * <p/>
+     * The code is not deterministic if it imports modules other than math and the NodeBox graphics modules, for
+     * example to read files or generate random numbers, or if it uses functions that read outside data.
+     * Code that uses exec or does not parse is not deterministic either.
+     *
+     * @return true if running the code again with the same inputs gives the same result.
+     * @see Node#isCacheable()
+     */
+    /* package private */ boolean isDeterministic() {
+        CodeVisitor a = getAnalysis();
+        if (!a.parsed || a.usesExec) return false;
+        for (String name : SIDE_EFFECT_NAMES) {
+            if (a.names.contains(name)) return false;
+        }
+        for (String module : a.modules) {
+            if (!isDeterministicModule(module)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDeterministicModule(String module) {
+        for (String m : DETERMINISTIC_MODULES) {
+            if (module.equals(m) || module.startsWith(m + ".")) return true;
+        }
+        return false;
+    }
+
+    private CodeVisitor getAnalysis() {
+        CodeVisitor a = analysis;
+        if (a == null) {
+            a = new CodeVisitor();
+            try {
+                a.traverse(ParserFacade.parse(source, CompileMode.exec, "<node code>", new CompilerFlags()));
+                a.parsed = true;
+            } catch (Exception e) {
+                a.parsed = false;
+            }
+            analysis = a;
+        }
+        return a;
+    }
+
     public String getSource() {
         return source;
     }
@@ -104,6 +289,83 @@ public class PythonCode implements NodeCode {
         return TYPE;
     }
 
+    /**
+     * The globals of the code.
+     * <p/>
+     * The namespace is shared by all cooks of the code, which can run at the same time, for example for stamped
+     * copies. The "context" and "FRAME" globals are therefore not stored in the namespace, but looked up in the
+     * processing context of the thread that is cooking.
+     */
+    private static class Namespace extends PyDictionary {
+
+        @Override
+        public PyObject __finditem__(String key) {
+            PyObject value = contextGlobal(key);
+            return value != null ? value : super.__finditem__(key);
+        }
+
+        @Override
+        public PyObject __finditem__(PyObject key) {
+            PyObject value = key instanceof PyString ? contextGlobal(key.toString()) : null;
+            return value != null ? value : super.__finditem__(key);
+        }
+
+        private static PyObject contextGlobal(String key) {
+            boolean isContext = "context".equals(key);
+            if (!isContext && !"FRAME".equals(key)) return null;
+            ProcessingContext context = OutputRouter.getCurrentContext();
+            if (context == null) return null;
+            return isContext ? Py.java2py(context) : Py.java2py(context.getFrame());
+        }
+
+    }
+
+    /**
+     * Collects the names and imported modules in the syntax tree of the code.
+     */
+    private static class CodeVisitor extends Visitor {
+
+        private final Set<String> names = new HashSet<String>();
+        private final Set<String> modules = new HashSet<String>();
+        private boolean usesExec;
+        private boolean importsNodePackage;
+        private boolean parsed;
+
+        @Override
+        public Object visitName(Name node) throws Exception {
+            names.add(node.getInternalId());
+            return super.visitName(node);
+        }
+
+        @Override
+        public Object visitExec(Exec node) throws Exception {
+            usesExec = true;
+            return super.visitExec(node);
+        }
+
+        @Override
+        public Object visitImport(Import node) throws Exception {
+            for (alias a : node.getInternalNames()) {
+                addModule(a.getInternalName());
+            }
+            return super.visitImport(node);
+        }
+
+        @Override
+        public Object visitImportFrom(ImportFrom node) throws Exception {
+            addModule(node.getInternalModule());
+            return super.visitImportFrom(node);
+        }
+
+        private void addModule(String module) {
+            if (module == null) return;
+            modules.add(module);
+            if (module.equals("nodebox") || module.startsWith("nodebox.node"))
+                importsNodePackage = true;
+        }
+
+    }
+
     /**
      * The self wrapper allows easy access to parameter values from the node.
      * Instead of doing node.asString("someparameter"), you can use self.someparameter.
@@ -118,31 +380,40 @@ public class PythonCode implements NodeCode {
     public class SelfWrapper extends PyObject {
 
         private Node node;
+        private final PyObject pyNode;
+        private final HashMap<String, Attribute> attributes;
 
+        /**
+         * Create a wrapper for the given node.
+         * <p/>
+         * The value of a parameter or port is converted to a Python object the first time it is accessed. Later
+         * accesses during the same cook reuse the converted value. A new wrapper is created for each cook.
+         *
+         * @param node the node to wrap.
+         */
         public SelfWrapper(Node node) {
             this.node = node;
+            pyNode = Py.java2py(node);
+            attributes = new HashMap<String, Attribute>();
         }
 
         @Override
         public PyObject __findattr_ex__(String name) {
-            if ("node".equals(name)) return Py.java2py(node);
-            Parameter p = node.getParameter(name);
-            if (p == null) {
-                Port port = node.getPort(name);
-                if (port == null) {
+            if ("node".equals(name)) return pyNode;
+            Attribute attribute = attributes.get(name);
+            if (attribute == null) {
+                // Parameters take precedence over ports with the same name.
+                Parameter p = node.getParameter(name);
+                Port port = p == null ? node.getPort(name) : null;
+                if (p == null && port == null) {
                     // This will throw an error that we explicitly do not catch.
                     noParameterOrPortError(name);
                     throw new AssertionError("noParameterOrPortError method should have thrown an error.");
-                } else {
-                    if (port.getCardinality() == Port.Cardinality.SINGLE) {
-                        return Py.java2py(port.getValue());
-                    } else {
-                        return Py.java2py(port.getValues());
-                    }
                 }
-            } else {
-                return Py.java2py(p.getValue());
+                attribute = new Attribute(p, port);
+                attributes.put(name, attribute);
             }
+            return attribute.get();
         }
 
         /**
@@ -161,4 +432,79 @@ public class PythonCode implements NodeCode {
 
     }
 
+    /**
+     * The value of a parameter or port, converted to a Python object.
+     * <p/>
+     * Values can change during the cook, for example when a copy node evaluates its stamp expressions. The value is
+     * only converted again if it is a different object than the one that was converted before.
+     */
+    private static class Attribute {
+
+        private final Parameter parameter;
+        private final Port port;
+        private Object value;
+        private PyObject pyValue;
+
+        private Attribute(Parameter parameter, Port port) {
+            this.parameter = parameter;
+            this.port = port;
+            value = currentValue();
+            pyValue = Py.java2py(value);
+        }
+
+        private Object currentValue() {
+            if (parameter != null) {
+                return parameter.getValue();
+            } else if (port.getCardinality() == Port.Cardinality.SINGLE) {
+                return port.getValue();
+            } else {
+                return port.getValues();
+            }
+        }
+
+        private PyObject get() {
+            Object current = currentValue();
+            // Colors are cloned by the parameter every time, and ports without values return a new empty list
+            // every time, so these are compared by value.
+            if (current != value && !(current instanceof Color && current.equals(value))
+                    && !(current instanceof List && ((List) current).isEmpty() && current.equals(value))) {
+                value = current;
+                pyValue = Py.java2py(current);
+            }
+            return pyValue;
+        }
+
+    }
+
+    /**
+     * Writes to a Python file object, such as the original sys.stdout.
+     */
+    private static class PythonFileStream extends OutputStream {
+
+        private final PyObject file;
+
+        private PythonFileStream(PyObject file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null) return;
+            // Python strings are byte strings; each byte maps to one character.
+            file.invoke("write", new PyString(new String(b, off, len, "ISO-8859-1")));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (file != null)
+                file.invoke("flush");
+        }
+
+    }
+
 }
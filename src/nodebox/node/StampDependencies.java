@@ -0,0 +1,65 @@
+package nodebox.node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parameters with stamp expressions upstream of a node.
+ * <p/>
+ * Nodes like copy and place evaluate their upstream nodes once for every copy, with different stamp values in the
+ * processing context. Only the nodes that read one of those values need to be evaluated again. Instead of walking
+ * the upstream nodes for every copy, the node keeps this list of stamped parameters.
+ * <p/>
+ * The list is rebuilt when the connections in the network change, or when a parameter in the library starts using
+ * stamp expressions.
+ *
+ * @see Node#stampDirty(ProcessingContext)
+ */
+class StampDependencies {
+
+    private static final Parameter[] NO_PARAMETERS = new Parameter[0];
+
+    private final EvaluationSchedule schedule;
+    private final int stampVersion;
+    private final Parameter[] parameters;
+
+    /**
+     * Collect the stamped parameters upstream of the given node.
+     *
+     * @param node         the node that evaluates its upstream nodes with stamp values.
+     * @param schedule     the evaluation schedule of the parent network, or null if the node has no parent.
+     * @param stampVersion the stamp version of the library
+     */
+    StampDependencies(Node node, EvaluationSchedule schedule, int stampVersion) {
+        this.schedule = schedule;
+        this.stampVersion = stampVersion;
+        EvaluationSchedule.Entry entry = schedule == null ? null : schedule.getEntry(node);
+        if (entry == null) {
+            parameters = NO_PARAMETERS;
+            return;
+        }
+        List<Parameter> stampedParameters = new ArrayList<Parameter>();
+        for (Node upstream : schedule.getUpstreamNodes(entry)) {
+            for (Parameter p : upstream.getParameters()) {
+                if (p.hasStampExpression())
+                    stampedParameters.add(p);
+            }
+        }
+        parameters = stampedParameters.toArray(new Parameter[stampedParameters.size()]);
+    }
+
+    boolean isValidFor(EvaluationSchedule schedule, int stampVersion) {
+        return this.schedule == schedule && this.stampVersion == stampVersion;
+    }
+
+    /**
+     * Get the stamped parameters. Parameters whose expression changed afterwards can be in this list, so check
+     * them before use.
+     *
+     * @return the parameters. Do not modify this array.
+     */
+    Parameter[] getParameters() {
+        return parameters;
+    }
+
+}
@@ -33,6 +33,20 @@ public class StampExpression {
         expression = new Expression(parameter, expressionString);
     }
 
+    /**
+     * Create a copy of the given stamp expression with its own expression object.
+     * <p/>
+     * An expression remembers its last error, so copies are used to evaluate stamp expressions on different threads.
+     *
+     * @param other the stamp expression to copy.
+     */
+    /* package private */ StampExpression(StampExpression other) {
+        parameter = other.parameter;
+        stampKey = other.stampKey;
+        if (other.expression != null)
+            expression = new Expression(parameter, other.expression.getExpression());
+    }
+
     public Parameter getParameter() {
         return parameter;
     }
@@ -0,0 +1,432 @@
+package nodebox.node;
+
+import nodebox.graphics.Geometry;
+import nodebox.graphics.Path;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates the upstream nodes of a node once for every copy, with a different copy number for each copy.
+ * <p/>
+ * This is used by nodes like copy and place. For each copy, the copy number is stored in the processing context
+ * under the CNUM key, the stamp expression is evaluated, and the upstream nodes with stamp expressions are evaluated
+ * again. The copier then creates the copy from the input values of the node.
+ * <p/>
+ * If the processing context is in parallel mode, the copies are evaluated on the executor of the context. Every copy
+ * gets its own forked processing context. Each worker evaluates the stamped upstream nodes on detached copies of
+ * those nodes, using its own copies of their expressions, so the copies never change the nodes or expressions in the
+ * network. Upstream nodes without stamp expressions are
+ * updated once, before the copies are made, and are shared by all copies.
+ * <p/>
+ * Copies are evaluated in place, one after another, if the context is not parallel, or if one of the expressions
+ * refers to a stamped node. In this case the expression would see the values of the stamped node in the network
+ * instead of those of the copy.
+ * <p/>
+ * The results are always returned in copy order.
+ */
+public class Stamper {
+
+    public static final String COPY_NUMBER_KEY = "CNUM";
+
+    /**
+     * Creates a single copy.
+     */
+    public interface Copier {
+
+        /**
+         * Create the copy with the given index.
+         * <p/>
+         * In parallel mode, this method is called from multiple threads at the same time.
+         *
+         * @param index   the copy number
+         * @param node    the stamping node. Its input ports contain the values for this copy.
+         *                In parallel mode this is a detached copy of the node.
+         * @param context the processing context for this copy
+         * @return the copy
+         */
+        public Object copy(int index, Node node, ProcessingContext context);
+
+    }
+
+    private final Node node;
+    private final StampExpression stampExpression;
+
+    /**
+     * Create a stamper for the given node.
+     *
+     * @param node            the node that creates the copies.
+     * @param stampExpression the stamp expression that sets additional values for each copy, or null.
+     */
+    public Stamper(Node node, StampExpression stampExpression) {
+        if (node == null)
+            throw new IllegalArgumentException("The node cannot be null.");
+        this.node = node;
+        this.stampExpression = stampExpression;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    public StampExpression getStampExpression() {
+        return stampExpression;
+    }
+
+    /**
+     * Create the given number of copies.
+     *
+     * @param context the processing context
+     * @param count   the number of copies
+     * @param copier  creates each copy
+     * @return the copies, in copy order.
+     * @throws ProcessingError if an upstream node failed. If more copies fail, the error of the first one is thrown.
+     */
+    public List<Object> stamp(ProcessingContext context, int count, Copier copier) throws ProcessingError {
+        if (count <= 0) return new ArrayList<Object>(0);
+        List<Node> stampedNodes = null;
+        if (context.isParallel() && count > 1)
+            stampedNodes = getStampedNodes();
+        Object[] results;
+        if (stampedNodes == null) {
+            results = stampInPlace(context, count, copier);
+        } else {
+            results = stampParallel(context, count, copier, stampedNodes);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Create the given number of copies and combine them into one geometry.
+     * <p/>
+     * The copier should return a Geometry or a Path for each copy. Null copies are skipped.
+     *
+     * @param context the processing context
+     * @param count   the number of copies
+     * @param copier  creates each copy
+     * @return a geometry containing all copies, in copy order.
+     * @throws ProcessingError if an upstream node failed or if a copy is not a geometry.
+     */
+    public Geometry stampGeometry(ProcessingContext context, int count, Copier copier) throws ProcessingError {
+        Geometry geometry = new Geometry();
+        for (Object copy : stamp(context, count, copier)) {
+            if (copy == null) continue;
+            if (copy instanceof Geometry) {
+                geometry.extend((Geometry) copy);
+            } else if (copy instanceof Path) {
+                geometry.add((Path) copy);
+            } else {
+                throw new ProcessingError(node, "The copy " + copy + " is not a geometry or path.");
+            }
+        }
+        return geometry;
+    }
+
+    private void evaluateStampExpression(StampExpression stampExpression, ProcessingContext context, int index) throws ProcessingError {
+        if (stampExpression == null) return;
+        try {
+            stampExpression.evaluate(context);
+        } catch (ExpressionError e) {
+            throw new ProcessingError(node, "Error occurred while evaluating the stamp expression for copy " + index + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Create the copies one after another, re-evaluating the nodes in the network.
+     *
+     * @param context the processing context
+     * @param count   the number of copies
+     * @param copier  creates each copy
+     * @return the copies.
+     * @throws ProcessingError if an upstream node failed.
+     */
+    private Object[] stampInPlace(ProcessingContext context, int count, Copier copier) throws ProcessingError {
+        Object[] results = new Object[count];
+        for (int i = 0; i < count; i++) {
+            context.checkCancelled();
+            context.put(COPY_NUMBER_KEY, i);
+            evaluateStampExpression(stampExpression, context, i);
+            node.stampExpressions(context);
+            results[i] = copier.copy(i, node, context);
+        }
+        return results;
+    }
+
+    /**
+     * Get the upstream nodes that need to be evaluated for each copy: the nodes with stamp expressions, and all nodes
+     * downstream of them.
+     *
+     * @return the nodes in evaluation order, or null if the copies cannot be evaluated on detached nodes.
+     */
+    private List<Node> getStampedNodes() {
+        Node parent = node.getParent();
+        if (parent == null) return null;
+        EvaluationSchedule schedule = parent.getEvaluationSchedule();
+        EvaluationSchedule.Entry entry = schedule.getEntry(node);
+        if (entry == null) return null;
+        List<Node> upstreamNodes = schedule.getUpstreamNodes(entry);
+        Set<Node> stamped = new HashSet<Node>();
+        List<Node> stampedNodes = new ArrayList<Node>();
+        // Upstream nodes come before the nodes that depend on them.
+        for (Node n : upstreamNodes) {
+            boolean isStamped = n.hasStampExpression();
+            for (Port port : n.getPorts()) {
+                if (isStamped) break;
+                Connection conn = parent.getUpstreamConnection(port);
+                if (conn == null) continue;
+                for (Node outputNode : conn.getOutputNodes()) {
+                    if (stamped.contains(outputNode)) {
+                        isStamped = true;
+                        break;
+                    }
+                }
+            }
+            if (!isStamped) continue;
+            // Networks are evaluated through their children, which can't be detached.
+            if (n.hasChildren()) return null;
+            stamped.add(n);
+            stampedNodes.add(n);
+        }
+        // Expressions that refer to stamped nodes would read the values from the network.
+        for (Node n : upstreamNodes) {
+            for (Parameter p : n.getParameters()) {
+                if (!p.hasExpression()) continue;
+                for (Parameter dependency : p.getDependencies()) {
+                    if (stamped.contains(dependency.getNode()))
+                        return null;
+                }
+            }
+        }
+        return stampedNodes;
+    }
+
+    /**
+     * Create the copies on the executor of the processing context.
+     *
+     * @param context      the processing context
+     * @param count        the number of copies
+     * @param copier       creates each copy
+     * @param stampedNodes the nodes to evaluate for each copy
+     * @return the copies.
+     * @throws ProcessingError if an upstream node failed.
+     */
+    private Object[] stampParallel(ProcessingContext context, int count, Copier copier, List<Node> stampedNodes) throws ProcessingError {
+        // Bring the shared upstream nodes up-to-date. The copies only read their output.
+        Set<Node> stamped = new HashSet<Node>(stampedNodes);
+        Node parent = node.getParent();
+        EvaluationSchedule schedule = parent.getEvaluationSchedule();
+        for (Node n : schedule.getUpstreamNodes(schedule.getEntry(node))) {
+            if (!stamped.contains(n))
+                n.update(context);
+        }
+
+        StampRun run = new StampRun(context, count, copier, stampedNodes);
+        ExecutorService executor = context.getExecutor();
+        int workerCount = Math.min(count, Runtime.getRuntime().availableProcessors());
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            tasks.add(new FutureTask<Object>(new Worker(run), null));
+        }
+        // The calling thread takes the first worker itself.
+        for (int i = 1; i < tasks.size(); i++) {
+            executor.execute(tasks.get(i));
+        }
+        try {
+            for (FutureTask<Object> task : tasks) {
+                // Run tasks that no worker thread has picked up yet on this thread, to avoid a deadlock when the
+                // pool is busy. Running a task that has already started does nothing.
+                task.run();
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ProcessingError(node, "Interrupted while creating copies.", e);
+                } catch (ExecutionException e) {
+                    // Workers catch all errors, so this should never happen.
+                    throw new AssertionError(e.getCause());
+                }
+            }
+        } finally {
+            // The stamp expressions were evaluated with the values of the copies, but the values were not stored
+            // in the network. The next in-place stamp has to evaluate them again.
+            for (Node n : stampedNodes) {
+                for (Parameter p : n.getParameters()) {
+                    if (p.hasStampExpression())
+                        p.invalidateStampValues();
+                }
+            }
+        }
+        Throwable error = run.getError();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        }
+        return run.results;
+    }
+
+    /**
+     * The state shared by the workers of one parallel stamp operation.
+     */
+    private class StampRun {
+
+        private final ProcessingContext context;
+        private final int count;
+        private final Copier copier;
+        private final List<Node> stampedNodes;
+        private final Object[] results;
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private int errorIndex = Integer.MAX_VALUE;
+        private Throwable error;
+
+        private StampRun(ProcessingContext context, int count, Copier copier, List<Node> stampedNodes) {
+            this.context = context;
+            this.count = count;
+            this.copier = copier;
+            this.stampedNodes = stampedNodes;
+            this.results = new Object[count];
+        }
+
+        /**
+         * Get the index of the next copy to create.
+         *
+         * @return the index, or -1 if there are no more copies to create.
+         */
+        private int nextIndex() {
+            int index = nextIndex.getAndIncrement();
+            // Copies after a failed copy are not needed: the error of the first failed copy is thrown.
+            if (index >= count || index > getErrorIndex()) return -1;
+            return index;
+        }
+
+        private synchronized int getErrorIndex() {
+            return errorIndex;
+        }
+
+        private synchronized void setError(int index, Throwable t) {
+            if (index < errorIndex) {
+                errorIndex = index;
+                error = t;
+            }
+        }
+
+        private synchronized Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Creates copies until there are none left, using its own detached copies of the stamped nodes.
+     * <p/>
+     * Expressions remember their last error, so the worker also evaluates its own copies of the expressions. An
+     * error in one copy can then not be reported for a copy on another worker.
+     */
+    private class Worker implements Runnable {
+
+        private final StampRun run;
+        private final Node parent;
+        private final Node[] originals;
+        private final Map<Node, Node> detachedNodes = new HashMap<Node, Node>();
+        private final Map<Parameter, Expression> expressions = new HashMap<Parameter, Expression>();
+        private StampExpression workerStampExpression;
+        private Node detachedNode;
+
+        private Worker(StampRun run) {
+            this.run = run;
+            this.parent = node.getParent();
+            this.originals = run.stampedNodes.toArray(new Node[run.stampedNodes.size()]);
+        }
+
+        public void run() {
+            // Creating the detached nodes happens on the worker thread, so workers that don't get a copy don't pay
+            // for it.
+            int index = run.nextIndex();
+            if (index < 0) return;
+            for (Node original : originals) {
+                detachedNodes.put(original, original.createDetachedCopy());
+                for (Parameter p : original.getParameters()) {
+                    if (p.hasExpression())
+                        expressions.put(p, new Expression(p, p.getExpression()));
+                }
+            }
+            detachedNode = node.createDetachedCopy();
+            if (stampExpression != null)
+                workerStampExpression = new StampExpression(stampExpression);
+            while (index >= 0) {
+                try {
+                    run.results[index] = copy(index);
+                } catch (Throwable t) {
+                    run.setError(index, t);
+                }
+                index = run.nextIndex();
+            }
+        }
+
+        private Object copy(int index) throws ProcessingError {
+            run.context.checkCancelled();
+            ProcessingContext copyContext = run.context.fork();
+            copyContext.put(COPY_NUMBER_KEY, index);
+            evaluateStampExpression(workerStampExpression, copyContext, index);
+            for (Node original : originals) {
+                Node detached = detachedNodes.get(original);
+                setInputs(original, detached);
+                for (Parameter p : original.getParameters()) {
+                    if (!p.hasExpression()) continue;
+                    try {
+                        Object value = p.evaluateExpression(expressions.get(p), copyContext);
+                        detached.getParameter(p.getName()).setEvaluatedValue(value);
+                    } catch (Exception e) {
+                        throw new ProcessingError(original, "Error occurred while updating parameter " + p + " for copy " + index + ": " + e.getMessage(), e);
+                    }
+                }
+                try {
+                    detached.process(copyContext);
+                } catch (ProcessingError e) {
+                    // Report the error on the node in the network, not on the detached copy.
+                    if (e.getNode() != detached) throw e;
+                    throw new ProcessingError(original, e.getMessage(), e.getCause());
+                }
+            }
+            setInputs(node, detachedNode);
+            return run.copier.copy(index, detachedNode, copyContext);
+        }
+
+        /**
+         * Set the input port values of the detached node, using the detached upstream nodes where they exist.
+         *
+         * @param original the node in the network
+         * @param detached the detached copy of the node
+         */
+        private void setInputs(Node original, Node detached) {
+            for (Port port : original.getPorts()) {
+                Port detachedPort = detached.getPort(port.getName());
+                detachedPort.reset();
+                Connection conn = parent.getUpstreamConnection(port);
+                if (conn == null) {
+                    if (port.getCardinality() == Port.Cardinality.SINGLE) {
+                        detachedPort.setValue(port.getValue());
+                    } else {
+                        for (Object value : port.getValues()) {
+                            detachedPort.addValue(value);
+                        }
+                    }
+                } else if (port.getCardinality() == Port.Cardinality.SINGLE) {
+                    detachedPort.setValue(getOutputValue(conn.getOutputNode()));
+                } else {
+                    for (Node outputNode : conn.getOutputNodes()) {
+                        detachedPort.addValue(getOutputValue(outputNode));
+                    }
+                }
+            }
+        }
+
+        private Object getOutputValue(Node outputNode) {
+            Node detached = detachedNodes.get(outputNode);
+            return detached != null ? detached.getOutputValue() : outputNode.getOutputValue();
+        }
+    }
+
+}
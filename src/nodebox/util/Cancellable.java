@@ -0,0 +1,23 @@
+package nodebox.util;
+
+/**
+ * An operation that can be cancelled while it is running.
+ *
+ * @see Cancellation
+ */
+public interface Cancellable {
+
+    /**
+     * Check if the operation was cancelled.
+     *
+     * @return true if the operation should stop.
+     */
+    public boolean isCancelled();
+
+    /**
+     * Throw an exception if the operation was cancelled.
+     * The type of the exception depends on the operation.
+     */
+    public void checkCancelled();
+
+}
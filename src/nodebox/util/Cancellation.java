@@ -0,0 +1,50 @@
+package nodebox.util;
+
+/**
+ * Gives long loops access to the operation running on the current thread, so they can stop when it is cancelled.
+ * <p/>
+ * Code that does not know about the operation, such as the geometry classes, calls check() once in a while.
+ * If no operation is running on this thread, check() does nothing.
+ */
+public final class Cancellation {
+
+    private static final ThreadLocal<Cancellable> currentOperation = new ThreadLocal<Cancellable>();
+
+    private Cancellation() {
+    }
+
+    /**
+     * Set the operation running on the current thread.
+     *
+     * @param operation the operation, or null if no operation is running.
+     * @return the previous operation, to be restored when this operation is done.
+     */
+    public static Cancellable setCurrent(Cancellable operation) {
+        Cancellable previous = currentOperation.get();
+        if (operation == null) {
+            currentOperation.remove();
+        } else {
+            currentOperation.set(operation);
+        }
+        return previous;
+    }
+
+    /**
+     * Get the operation running on the current thread.
+     *
+     * @return the operation or null.
+     */
+    public static Cancellable getCurrent() {
+        return currentOperation.get();
+    }
+
+    /**
+     * Throw an exception if the operation running on the current thread was cancelled.
+     */
+    public static void check() {
+        Cancellable operation = currentOperation.get();
+        if (operation != null)
+            operation.checkCancelled();
+    }
+
+}
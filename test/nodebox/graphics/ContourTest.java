@@ -142,6 +142,27 @@ public class ContourTest extends GraphicsTestCase {
 //        assertEquals(new Point(25, 25), points[5]);
     }
 
+    /**
+     * makePoints walks the contour once. Check if it returns the same points as pointAt.
+     */
+    public void testMakePointsWithCurves() {
+        Contour c = new Contour();
+        c.addPoint(0, 0);
+        for (int i = 1; i <= 20; i++) {
+            c.addPoint(new Point(i * 10, 50, Point.CURVE_DATA));
+            c.addPoint(new Point(i * 10, -50, Point.CURVE_DATA));
+            c.addPoint(new Point(i * 10, 0, Point.CURVE_TO));
+            c.addPoint(i * 10, 20);
+        }
+        c.close();
+        Point[] points = c.makePoints(333);
+        assertEquals(333, points.length);
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(c.pointAt(1f / 333 * i), points[i]);
+        }
+        assertPointEquals(0, 0, points[0]);
+    }
+
     public void testMakePointsEmptyPath() {
         Contour c = new Contour();
         Point[] points = c.makePoints(10);
@@ -216,6 +237,60 @@ public class ContourTest extends GraphicsTestCase {
         assertEquals(100f, c.getLength());
     }
 
+    /**
+     * Points are only created when asked for. Check if the contour and its copies stay correct.
+     */
+    public void testPointStorage() {
+        Contour c = new Contour();
+        for (int i = 0; i < 100; i++) {
+            c.addPoint(i, i * 2);
+        }
+        c.addPoint(new Point(0, 0, Point.CURVE_DATA));
+        assertEquals(101, c.getPointCount());
+        Contour copy = c.clone();
+        Transform t = new Transform();
+        t.translate(10, 0);
+        copy.transform(t);
+        assertEquals(new Rect(0, 0, 99, 198), c.getBounds());
+        assertEquals(new Rect(10, 0, 99, 198), copy.getBounds());
+
+        // Changes to the points change the contour, but not its copies.
+        List<Point> points = c.getPoints();
+        assertEquals(101, points.size());
+        assertPointEquals(99, 198, points.get(99));
+        assertEquals(Point.CURVE_DATA, points.get(100).type);
+        assertSame(points, c.getPoints());
+        points.get(1).x = 50;
+        Contour copy2 = c.clone();
+        points.get(1).x = 60;
+        c.addPoint(200, 0);
+        assertEquals(102, c.getPointCount());
+        assertEquals(new Rect(0, 0, 200, 198), c.getBounds());
+        assertPointEquals(50, 2, copy2.getPoints().get(1));
+        assertEquals(101, copy2.getPointCount());
+        assertPointEquals(11, 2, copy.getPoints().get(1));
+        c.transform(t);
+        assertPointEquals(70, 2, points.get(1));
+    }
+
+    public void testBounds() {
+        Contour c = new Contour();
+        assertEquals(new Rect(), c.getBounds());
+        c.addPoint(-10, -20);
+        c.addPoint(-30, -5);
+        assertEquals(new Rect(-30, -20, 20, 15), c.getBounds());
+        // The bounds are cached.
+        assertSame(c.getBounds(), c.getBounds());
+        c.addPoint(10, 0);
+        assertEquals(new Rect(-30, -20, 40, 20), c.getBounds());
+        // Once the points are requested, changes to them are detected.
+        c.getPoints().get(0).y = -50;
+        assertEquals(new Rect(-30, -50, 40, 50), c.getBounds());
+        // Copies cache their bounds again.
+        Contour copy = c.clone();
+        assertSame(copy.getBounds(), copy.getBounds());
+    }
+
     private void assertRectPoints(IGeometry g, float x, float y, float width, float height) {
         assertEquals(4, g.getPointCount());
         List<Point> points = g.getPoints();
@@ -0,0 +1,118 @@
+package nodebox.graphics;
+
+/**
+ * Measures common operations on a geometry with many points.
+ * <p/>
+ * This is not a unit test; run it using the main method.
+ */
+public class GeometryBenchmark {
+
+    private static final int PATHS = 100;
+    private static final int CONTOURS_PER_PATH = 10;
+    private static final int POINTS_PER_CONTOUR = 1000;
+    private static final int ITERATIONS = 20;
+    private static final int CONTAINS_QUERIES = 10000;
+
+    public static void main(String[] args) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        Geometry g = createGeometry();
+        System.gc();
+        long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println(String.format("%-20s %9.1f MB", "heap", (usedAfter - usedBefore) / 1024.0 / 1024.0));
+
+        Geometry ellipses = new Geometry();
+        for (int i = 0; i < PATHS; i++) {
+            Path p = new Path();
+            for (int j = 0; j < POINTS_PER_CONTOUR; j++) {
+                p.ellipse(i, j, j % 100 + 1, i + 1);
+            }
+            ellipses.add(p);
+        }
+
+        final Transform t = new Transform();
+        t.rotate(30);
+        t.translate(10, 20);
+        for (int run = 0; run < 2; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                g.clone();
+            }
+            report("clone", start);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                t.map(g);
+            }
+            report("transform", start);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                g.invalidate();
+                g.getBounds();
+            }
+            report("bounds", start);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                g.getBounds();
+            }
+            report("cached bounds", start);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                g.invalidate();
+                for (Path p : g.getPaths()) {
+                    p.getGeneralPath();
+                }
+            }
+            report("general path", start);
+            Contour c = g.getPaths().get(0).getContours().get(0);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                c.invalidate();
+                c.makePoints(POINTS_PER_CONTOUR * 10);
+            }
+            report("make points", start);
+            Path p = g.getPaths().get(0);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                p.invalidate();
+                p.resampleByAmount(POINTS_PER_CONTOUR * 10, false);
+            }
+            report("resample", start);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                ellipses.invalidate();
+                ellipses.getLength();
+            }
+            report("curve length", start);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                ellipses.invalidate();
+                for (int j = 0; j < CONTAINS_QUERIES; j++) {
+                    ellipses.contains(j % PATHS, j % POINTS_PER_CONTOUR);
+                }
+            }
+            report("contains", start);
+        }
+    }
+
+    private static Geometry createGeometry() {
+        Geometry g = new Geometry();
+        for (int i = 0; i < PATHS; i++) {
+            Path p = new Path();
+            for (int j = 0; j < CONTOURS_PER_PATH; j++) {
+                p.moveto(i, j);
+                for (int k = 1; k < POINTS_PER_CONTOUR; k++) {
+                    p.lineto(i + k, j - k);
+                }
+            }
+            g.add(p);
+        }
+        return g;
+    }
+
+    private static void report(String name, long start) {
+        double ms = (System.nanoTime() - start) / (double) ITERATIONS / 1000000.0;
+        System.out.println(String.format("%-20s %9.1f ms", name, ms));
+    }
+
+}
@@ -66,6 +66,134 @@ public class GeometryTest extends GraphicsTestCase {
         assertEquals(Rect.centeredRect(30, 27, 60, 40), g.getBounds());
     }
 
+    /**
+     * Bounds are cached on every level. Check if changes through the geometry methods are detected.
+     */
+    public void testBoundsCache() {
+        Path p1 = new Path();
+        p1.rect(10, 20, 30, 40);
+        Geometry g = new Geometry();
+        g.add(p1);
+        assertEquals(Rect.centeredRect(10, 20, 30, 40), g.getBounds());
+        assertSame(g.getBounds(), g.getBounds());
+        Path p2 = new Path();
+        p2.rect(40, 20, 30, 40);
+        g.add(p2);
+        assertEquals(Rect.centeredRect((40 - 10) / 2 + 10, 20, 60, 40), g.getBounds());
+        g.transform(Transform.translated(5, 7));
+        assertEquals(Rect.centeredRect(30, 27, 60, 40), g.getBounds());
+        g.addPoint(100, 100);
+        assertEquals(new Rect(0, 7, 100, 93), g.getBounds());
+        // Changes to paths in the group are detected.
+        p1.rect(-100, 0, 10, 10);
+        assertEquals(new Rect(-105, -5, 205, 105), g.getBounds());
+        p1.getContours().get(0).addPoint(-200, 0);
+        assertEquals(new Rect(-200, -5, 300, 105), g.getBounds());
+    }
+
+    /**
+     * Test if the bounds follow changes to points requested from a contour in the group.
+     */
+    public void testBoundsLivePoints() {
+        Geometry g = new Geometry();
+        Path p = new Path();
+        p.rect(0, 0, 10, 10);
+        g.add(p);
+        assertEquals(new Rect(-5, -5, 10, 10), g.getBounds());
+        assertEquals(new Rect(-5, -5, 10, 10), p.getBounds());
+        assertTrue(g.contains(0, 0));
+        for (Point pt : g.getPaths().get(0).getContours().get(0).getPoints()) {
+            pt.x += 100;
+        }
+        assertEquals(new Rect(95, -5, 10, 10), g.getBounds());
+        assertEquals(new Rect(95, -5, 10, 10), p.getBounds());
+        assertEquals(new Rect(95, -5, 10, 10), p.getContours().get(0).getBounds());
+        assertFalse(g.contains(0, 0));
+        assertTrue(g.contains(100, 0));
+        // A contour in two paths can only report its changes to one of them. Neither path keeps its bounds.
+        Contour c = new Contour();
+        c.addPoint(0, 0);
+        c.addPoint(10, 10);
+        Path p1 = new Path(c);
+        Path p2 = new Path(c);
+        assertEquals(new Rect(0, 0, 10, 10), p1.getBounds());
+        assertEquals(new Rect(0, 0, 10, 10), p2.getBounds());
+        c.addPoint(20, 20);
+        assertEquals(new Rect(0, 0, 20, 20), p1.getBounds());
+        assertEquals(new Rect(0, 0, 20, 20), p2.getBounds());
+    }
+
+    public void testCopyPoints() {
+        Geometry g = new Geometry();
+        Path p = new Path();
+        p.rect(0, 0, 10, 10);
+        p.addPoint(20, 20);
+        g.add(p);
+        Point[] points = g.copyPoints();
+        assertEquals(5, points.length);
+        assertEquals(new Point(-5, -5), points[0]);
+        assertEquals(new Point(20, 20), points[4]);
+        assertEquals(new Point(5, 5), p.getContours().get(0).getPoint(2));
+        // Reading copies of the points keeps the cached values.
+        assertTrue(p.isCacheable());
+        points[0].x = 100;
+        assertEquals(new Rect(-5, -5, 25, 25), g.getBounds());
+        assertEquals(new Point(-5, -5), p.getContours().get(0).getPoint(0));
+        g.getPoints();
+        assertFalse(p.isCacheable());
+    }
+
+    public void testEquals() {
+        Geometry g1 = new Geometry();
+        Path p1 = new Path();
+        p1.rect(0, 0, 10, 10);
+        g1.add(p1);
+        Geometry g2 = g1.clone();
+        assertNotSame(g1, g2);
+        assertEquals(g1, g2);
+        assertEquals(g1.hashCode(), g2.hashCode());
+        // Live points compare the same way as packed points.
+        g2.getPoints();
+        assertEquals(g1, g2);
+        g2.getPaths().get(0).setFill(new Color(1, 0, 0));
+        assertFalse(g1.equals(g2));
+        g2 = g1.clone();
+        g2.getPoints().get(0).x = 1;
+        assertFalse(g1.equals(g2));
+        g2 = g1.clone();
+        g2.getPaths().get(0).getContours().get(0).setClosed(false);
+        assertFalse(g1.equals(g2));
+        // Zero and negative zero are equal, so they have the same hash code.
+        Contour c1 = new Contour();
+        c1.addPoint(0f, 0f);
+        Contour c2 = new Contour();
+        c2.addPoint(-0f, 0f);
+        assertEquals(c1, c2);
+        assertEquals(c1.hashCode(), c2.hashCode());
+    }
+
+    public void testContains() {
+        Geometry g = new Geometry();
+        assertFalse(g.contains(0, 0));
+        g.add(new Path());
+        for (int i = 0; i < 10; i++) {
+            Path p = new Path();
+            p.ellipse(i * 20, i * 10, 15, 15);
+            g.add(p);
+        }
+        assertTrue(g.contains(0, 0));
+        assertTrue(g.contains(new Point(185, 95)));
+        assertFalse(g.contains(10, 0));
+        assertFalse(g.contains(0, 100));
+        // Adding a path clears the index.
+        Path p = new Path();
+        p.rect(0, 100, 10, 10);
+        g.add(p);
+        assertTrue(g.contains(0, 100));
+        assertEquals(new Point(-5, 95), g.nearestPoint(new Point(-10, 90)));
+        assertEquals(2, g.pointsInRect(new Rect(-10, 90, 20, 10)).size());
+    }
+
     public void testColors() {
         Path p1 = new Path();
         Path p2 = new Path();
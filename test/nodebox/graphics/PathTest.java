@@ -101,6 +101,39 @@ public class PathTest extends GraphicsTestCase {
         assertEquals(300f, p.getLength());
     }
 
+    public void testCurveLength() {
+        Path p = new Path();
+        p.ellipse(0, 0, 200, 200);
+        assertEquals(Math.PI * 200, p.getLength(), 0.5);
+        // Straight curves are as long as their line.
+        p = new Path();
+        p.moveto(0, 0);
+        p.curveto(10, 0, 90, 0, 100, 0);
+        assertEquals(100f, p.getLength(), 0.001f);
+    }
+
+    public void testFlatten() {
+        Path p = new Path();
+        p.ellipse(0, 0, 200, 200);
+        Path flat = p.flattened();
+        assertEquals(p.getContours().size(), flat.getContours().size());
+        assertTrue(flat.getPointCount() > p.getPointCount());
+        for (Point pt : flat.getPoints()) {
+            assertEquals(Point.LINE_TO, pt.type);
+            assertEquals(100, Math.sqrt(pt.x * pt.x + pt.y * pt.y), 0.06);
+        }
+        assertEquals(p.getLength(), flat.getLength(), 0.1f);
+        // A smaller tolerance gives more points.
+        assertTrue(p.flattened(0.001f).getPointCount() > flat.getPointCount());
+        // Flatten the path itself.
+        p.flatten();
+        assertEquals(flat.getPoints(), p.getPoints());
+        // Lines are not changed.
+        Path rect = new Path();
+        rect.rect(0, 0, 100, 100);
+        assertEquals(rect.getPoints(), rect.flattened().getPoints());
+    }
+
     public void testPointAt() {
         Path p = new Path();
         p.line(0, 0, 50, 0);
@@ -132,6 +165,32 @@ public class PathTest extends GraphicsTestCase {
         assertPointEquals(100, 0, p.pointAt(1.0f));
     }
 
+    public void testPointAtEndOfLastContour() {
+        // With these lengths, the lengths of the contours don't add up exactly to the length of the path.
+        // The end of the path is still the end of the last contour, not its start.
+        Path p = new Path();
+        p.moveto(10, 81);
+        p.lineto(49, 64);
+        p.moveto(61, 85);
+        p.lineto(14, 81);
+        p.lineto(76, 37);
+        p.lineto(86, 99);
+        p.lineto(11, 92);
+        p.close();
+        p.moveto(95, 78);
+        p.lineto(59, 46);
+        assertPointEquals(59, 46, p.pointAt(1f));
+        Point[] points = p.makePoints(10, false);
+        assertPointEquals(10, 81, points[0]);
+        assertPointEquals(59, 46, points[9]);
+        List<Point> resampled = p.resampleByAmount(10, false).getPoints();
+        assertPointEquals(59, 46, resampled.get(9));
+        Geometry g = new Geometry();
+        g.add(p);
+        assertPointEquals(59, 46, g.pointAt(1f));
+        assertPointEquals(59, 46, g.makePoints(10, false)[9]);
+    }
+
     public void testContour() {
         final float SIDE = 50;
         Point[] points;
@@ -228,6 +287,94 @@ public class PathTest extends GraphicsTestCase {
         assertEquals(100f, p.getLength());
     }
 
+    public void testContains() {
+        Path p = new Path();
+        p.ellipse(0, 0, 100, 60);
+        // An open, self-intersecting contour.
+        p.moveto(100, 0);
+        p.lineto(180, 40);
+        p.lineto(180, 0);
+        p.lineto(100, 40);
+        // Two contours that wind in opposite directions.
+        p.rect(0, 0, 20, 20);
+        p.moveto(-10, -10);
+        p.lineto(-10, 10);
+        p.lineto(10, 10);
+        p.lineto(10, -10);
+        p.close();
+        p.moveto(200, 0);
+        p.curveto(250, -100, 300, 100, 350, 0);
+        p.curveto(300, 50, 250, 50, 200, 0);
+        java.awt.geom.GeneralPath gp = p.getGeneralPath();
+        for (float x = -60; x <= 360; x += 1.7f) {
+            for (float y = -60; y <= 60; y += 1.3f) {
+                assertEquals("Point " + x + ", " + y, gp.contains(x, y), p.contains(x, y));
+            }
+        }
+        // Points on the outline give the same result as well.
+        for (float x = -60; x <= 360; x += 0.5f) {
+            for (float y = -60; y <= 60; y += 0.5f) {
+                assertEquals("Point " + x + ", " + y, gp.contains(x, y), p.contains(x, y));
+            }
+        }
+        assertTrue(p.contains(new Point(30, 0)));
+        assertFalse(p.contains(400, 0));
+        assertFalse(new Path().contains(0, 0));
+        // The index is rebuilt when the path changes.
+        p.rect(400, 0, 10, 10);
+        assertTrue(p.contains(400, 0));
+        // Changes to the points of a contour are not reported, so the index is not kept once they are requested.
+        Path live = new Path();
+        live.rect(0, 0, 10, 10);
+        assertTrue(live.contains(0, 0));
+        for (Point pt : live.getContours().get(0).getPoints()) {
+            pt.x += 100;
+        }
+        assertFalse(live.contains(0, 0));
+        assertTrue(live.contains(100, 0));
+    }
+
+    public void testNearestPoint() {
+        Path p = new Path();
+        assertNull(p.nearestPoint(new Point(0, 0)));
+        p.rect(0, 0, 100, 100);
+        p.ellipse(200, 0, 50, 50);
+        assertEquals(new Point(50, 50), p.nearestPoint(new Point(60, 70)));
+        assertEquals(new Point(-50, -50), p.nearestPoint(new Point(-1000, -1000)));
+        java.util.List<Point> points = p.getPoints();
+        for (float x = -100; x <= 300; x += 7) {
+            for (float y = -100; y <= 100; y += 9) {
+                Point nearest = null;
+                double nearestDistance = Double.MAX_VALUE;
+                for (Point pt : points) {
+                    double dx = pt.x - (double) x;
+                    double dy = pt.y - (double) y;
+                    double distance = dx * dx + dy * dy;
+                    if (distance < nearestDistance) {
+                        nearest = pt;
+                        nearestDistance = distance;
+                    }
+                }
+                assertEquals(nearest, p.nearestPoint(new Point(x, y)));
+            }
+        }
+    }
+
+    public void testPointsInRect() {
+        Path p = new Path();
+        p.rect(0, 0, 100, 100);
+        p.rect(200, 0, 100, 100);
+        List<Point> points = p.pointsInRect(new Rect(-60, -60, 20, 200));
+        assertEquals(2, points.size());
+        assertEquals(new Point(-50, -50), points.get(0));
+        assertEquals(new Point(-50, 50), points.get(1));
+        // Changing the returned points does not change the path.
+        points.get(0).x = 0;
+        assertEquals(new Point(-50, -50), p.getPoints().get(0));
+        assertEquals(8, p.pointsInRect(new Rect(-50, -50, 300, 100)).size());
+        assertEquals(0, p.pointsInRect(new Rect(0, 0, 10, 10)).size());
+    }
+
     public void testNegativeBounds() {
         Path p1 = new Path();
         p1.rect(10, 20, 30, 40);
@@ -0,0 +1,93 @@
+package nodebox.node;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures the overhead of calling the code of trivial Java nodes.
+ * <p/>
+ * The node negates its input, like the negate node in TestNodes. The same code is called directly through a
+ * builtin, through reflection as JavaMethodWrapper used to do, and through JavaMethodWrapper. The last column
+ * measures a complete update of a node using JavaMethodWrapper.
+ * This is not a unit test; run it using the main method.
+ */
+public class CookDispatchBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 5000000;
+
+    public static void main(String[] args) throws Exception {
+        NodeLibraryManager manager = new NodeLibraryManager();
+        TestNodes testNodes = new TestNodes();
+        manager.add(testNodes);
+        NodeLibrary library = new NodeLibrary("benchmark");
+        library.getOutputCache().setEnabled(false);
+        Node number = manager.getNode("testlib.number").newInstance(library, "number1");
+        number.setValue("value", 42);
+        Node negate = manager.getNode("testlib.negate").newInstance(library, "negate1");
+        negate.getPort("value").connect(number);
+        negate.update();
+        final ProcessingContext context = new ProcessingContext();
+
+        final NodeCode builtin = negate.asCode("_code");
+        final Method method = CookDispatchBenchmark.class.getMethod("_negate", Node.class, ProcessingContext.class);
+        final JavaMethodWrapper wrapper = new JavaMethodWrapper(CookDispatchBenchmark.class, "_negate");
+
+        System.out.println(String.format("%-20s %12s", "dispatch", "time"));
+        print("builtin", measure(new Cook() {
+            public Object cook(Node node) throws Exception {
+                return builtin.cook(node, context);
+            }
+        }, negate));
+        print("reflection", measure(new Cook() {
+            public Object cook(Node node) throws Exception {
+                return method.invoke(null, node, context);
+            }
+        }, negate));
+        print("wrapper", measure(new Cook() {
+            public Object cook(Node node) throws Exception {
+                return wrapper.cook(node, context);
+            }
+        }, negate));
+        negate.setValue("_code", wrapper);
+        print("wrapper update", measure(new Cook() {
+            public Object cook(Node node) throws Exception {
+                node.markDirty();
+                node.update();
+                return node.getOutputValue();
+            }
+        }, negate));
+    }
+
+    public static Object _negate(Node node, ProcessingContext context) {
+        int value = (Integer) node.getPortValue("value");
+        return -value;
+    }
+
+    private interface Cook {
+        public Object cook(Node node) throws Exception;
+    }
+
+    private static void print(String name, double nanos) {
+        System.out.println(String.format("%-20s %9.1f ns", name, nanos));
+    }
+
+    /**
+     * Cook the node many times.
+     *
+     * @param cook calls the code of the node.
+     * @param node the node to cook.
+     * @return the average time per cook, in nanoseconds.
+     * @throws Exception if the code fails.
+     */
+    private static double measure(Cook cook, Node node) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            cook.cook(node);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            cook.cook(node);
+        }
+        return (System.nanoTime() - start) / (double) ITERATIONS;
+    }
+
+}
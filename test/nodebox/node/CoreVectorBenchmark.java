@@ -0,0 +1,104 @@
+package nodebox.node;
+
+import nodebox.client.PlatformUtils;
+
+import java.io.File;
+
+/**
+ * Measures how long the nodes in the core vector library take to cook, using the Python code and the Java
+ * implementations.
+ * <p/>
+ * The nodes are the ones used in CoreVectorTest. The wiggle node reads its parameters for every point, which makes
+ * it sensitive to the cost of accessing parameters through self. Afterwards, the example documents are measured.
+ * This is not a unit test; run it using the main method.
+ */
+public class CoreVectorBenchmark {
+
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) {
+        NodeLibraryManager manager = new NodeLibraryManager();
+        manager.addSearchPath(PlatformUtils.getApplicationScriptsDirectory());
+        manager.lookForLibraries();
+        NodeLibrary library = new NodeLibrary("benchmark");
+        // Otherwise the nodes would only cook once.
+        library.getOutputCache().setEnabled(false);
+        Node root = library.getRootNode();
+
+        Node generator = root.create(manager.getNode("corevector.generator"));
+        Node filter = root.create(manager.getNode("corevector.filter"));
+        filter.getPort("shape").connect(generator);
+        Node ellipse = root.create(manager.getNode("corevector.ellipse"));
+        Node resample = root.create(manager.getNode("corevector.resample"));
+        resample.getPort("shape").connect(ellipse);
+        resample.setValue("length", 1f);
+        Node wiggle = root.create(manager.getNode("corevector.wiggle"));
+        wiggle.getPort("shape").connect(resample);
+        Node copy = root.create(manager.getNode("corevector.copy"));
+        copy.getPort("shape").connect(resample);
+        copy.setValue("copies", 20);
+        copy.setValue("r", 5f);
+
+        // Cook the inputs once, so only the measured node cooks.
+        resample.update();
+        generator.update();
+
+        System.out.println(String.format("%-30s %12s %12s", "node", "python", "native"));
+        measure(library, generator);
+        measure(library, filter);
+        measure(library, ellipse);
+        measure(library, wiggle);
+        measure(library, copy);
+
+        File[] examples = new File("examples").listFiles();
+        if (examples == null) return;
+        for (File f : examples) {
+            if (!f.getName().endsWith(".ndbx")) continue;
+            NodeLibrary example = NodeLibrary.load(f, manager);
+            example.getOutputCache().setEnabled(false);
+            measure(example, example.getRootNode());
+        }
+    }
+
+    /**
+     * Measure the node using the Python code and the Java implementations, and print the results.
+     *
+     * @param library the library of the node
+     * @param node    the node to cook.
+     */
+    private static void measure(NodeLibrary library, Node node) {
+        library.setNativeCodeEnabled(false);
+        double python = measure(node);
+        library.setNativeCodeEnabled(true);
+        double nativeCode = measure(node);
+        System.out.println(String.format("%-30s %9.1f us %9.1f us", library.getName() + "." + node.getName(), python, nativeCode));
+    }
+
+    private static void markDirty(Node node) {
+        node.markDirty();
+        for (Node child : node.getChildren()) {
+            markDirty(child);
+        }
+    }
+
+    /**
+     * Cook the node many times.
+     *
+     * @param node the node to cook.
+     * @return the average time per cook, in microseconds.
+     */
+    private static double measure(Node node) {
+        for (int i = 0; i < WARMUP; i++) {
+            markDirty(node);
+            node.update();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            markDirty(node);
+            node.update();
+        }
+        return (System.nanoTime() - start) / (double) ITERATIONS / 1000.0;
+    }
+
+}
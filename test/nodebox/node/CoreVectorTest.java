@@ -3,6 +3,7 @@ package nodebox.node;
 import junit.framework.TestCase;
 import nodebox.client.PlatformUtils;
 import nodebox.graphics.Geometry;
+import nodebox.graphics.Path;
 import nodebox.graphics.Rect;
 import nodebox.graphics.Transform;
 
@@ -67,6 +68,122 @@ public class CoreVectorTest extends TestCase {
         assertEquals(Rect.centeredRect(0, 0, 100, 100), geo.getBounds());
     }
 
+    /**
+     * Test if the Java implementations are used for nodes that did not change their code.
+     */
+    public void testNativeCodeSelection() {
+        Node wiggle = createNode("wiggle");
+        NodeCode code = wiggle.asCode("_code");
+        assertTrue(code instanceof PythonCode);
+        assertTrue(NativeCode.find(wiggle, code) instanceof JavaMethodWrapper);
+        // Instances of the node also use the Java code.
+        Node wiggleInstance = wiggle.newInstance(library, "wiggleInstance");
+        assertTrue(NativeCode.find(wiggleInstance, code) instanceof JavaMethodWrapper);
+        // Nodes with their own code use that code.
+        PythonCode ownCode = new PythonCode("def cook(self):\n    return None");
+        wiggleInstance.setValue("_code", ownCode);
+        assertSame(ownCode, NativeCode.find(wiggleInstance, ownCode));
+        // Nodes without Java code keep their code.
+        Node generator = createNode("generator");
+        assertSame(generator.asCode("_code"), NativeCode.find(generator, generator.asCode("_code")));
+    }
+
+    /**
+     * Test the Java implementations of the nodes.
+     */
+    public void testNativeNodes() {
+        Node input = createInput();
+        Node wiggle = createNode("wiggle");
+        wiggle.getPort("shape").connect(input);
+        Geometry wiggled = updateNode(wiggle);
+        assertEquals(4, wiggled.getPointCount());
+        assertFalse(wiggled.getPoints().equals(((Geometry) input.getOutputValue()).getPoints()));
+        // The same seed gives the same output.
+        wiggle.markDirty();
+        assertEquals(wiggled.getPoints(), updateNode(wiggle).getPoints());
+
+        Node copy = createNode("copy");
+        copy.getPort("shape").connect(input);
+        copy.setValue("copies", 3);
+        copy.setValue("tx", 100f);
+        Geometry copies = updateNode(copy);
+        assertEquals(3, copies.size());
+        assertEquals(new Rect(-50, -50, 300, 100), copies.getBounds());
+
+        Node transform = createNode("transform");
+        transform.getPort("shape").connect(input);
+        transform.setValue("tx", 10f);
+        transform.setValue("sx", 50f);
+        assertEquals(new Rect(-15, -50, 50, 100), updateNode(transform).getBounds());
+    }
+
+    /**
+     * Test if the Java implementations give the same output as the Python code.
+     */
+    public void testNativeCodeOutput() {
+        // Switching between native and Python code should not return outputs cached for the other code.
+        library.getOutputCache().setEnabled(true);
+        Node input = createInput();
+        Node wiggle = createNode("wiggle");
+        wiggle.getPort("shape").connect(input);
+        wiggle.setValue("seed", 42);
+        Node resample = createNode("resample");
+        resample.getPort("shape").connect(input);
+        resample.setValue("method", "amount");
+        resample.setValue("points", 20);
+        Node scatter = createNode("scatter");
+        scatter.getPort("shape").connect(input);
+        Node transform = createNode("transform");
+        transform.getPort("shape").connect(input);
+        transform.setValue("order", "rst");
+        transform.setValue("r", 30f);
+        transform.setValue("sy", 150f);
+        Node copy = createNode("copy");
+        copy.getPort("shape").connect(input);
+        copy.setValue("copies", 5);
+        copy.setValue("r", 10f);
+        copy.setValue("sx", -10f);
+        Node color = createNode("color");
+        color.getPort("shape").connect(input);
+        color.setValue("strokeWidth", 2f);
+        Node[] nodes = {wiggle, resample, scatter, transform, copy, color};
+        for (Node n : nodes) {
+            Geometry nativeGeometry = updateNode(n);
+            library.setNativeCodeEnabled(false);
+            n.markDirty();
+            Geometry pythonGeometry = updateNode(n);
+            library.setNativeCodeEnabled(true);
+            assertNotSame(n.getName(), pythonGeometry, nativeGeometry);
+            assertEquals(n.getName(), pythonGeometry.getPoints(), nativeGeometry.getPoints());
+            assertEquals(n.getName(), pythonGeometry.size(), nativeGeometry.size());
+            for (int i = 0; i < pythonGeometry.size(); i++) {
+                Path pythonPath = pythonGeometry.getPaths().get(i);
+                Path nativePath = nativeGeometry.getPaths().get(i);
+                assertEquals(n.getName(), pythonPath.getFillColor(), nativePath.getFillColor());
+                assertEquals(n.getName(), pythonPath.getStrokeColor(), nativePath.getStrokeColor());
+                assertEquals(n.getName(), pythonPath.getStrokeWidth(), nativePath.getStrokeWidth());
+            }
+        }
+    }
+
+    /**
+     * Create a node that outputs a 100 by 100 rectangle, without using Python.
+     *
+     * @return the input node.
+     */
+    private Node createInput() {
+        Node input = Node.ROOT_NODE.newInstance(library, "input", Geometry.class);
+        input.setValue("_code", new JavaMethodWrapper(getClass(), "_rect"));
+        input.update();
+        return input;
+    }
+
+    public static Geometry _rect(Node node, ProcessingContext context) {
+        Path p = new Path();
+        p.rect(0, 0, 100, 100);
+        return p.asGeometry();
+    }
+
     // TODO: Test all core vector nodes.
 
 }
@@ -2,8 +2,10 @@ package nodebox.node;
 
 import junit.framework.TestCase;
 
-import java.util.List;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 public class DependencyGraphTest extends TestCase {
 
@@ -71,6 +73,46 @@ public class DependencyGraphTest extends TestCase {
         assertInvalidDependency(dg, 'D', 'A');
     }
 
+    public void testBulkLoad() {
+        DependencyGraph<Character, Object> dg;
+
+        // No cycles: A <- B <- C
+        dg = new DependencyGraph<Character, Object>();
+        dg.beginBulkLoad();
+        assertTrue(dg.isBulkLoading());
+        dg.addDependency('A', 'B');
+        dg.addDependency('B', 'C');
+        assertEquals(0, dg.endBulkLoad().size());
+        assertFalse(dg.isBulkLoading());
+        assertTrue(dg.hasDependency('A', 'B'));
+        assertTrue(dg.hasDependency('B', 'C'));
+        assertInvalidDependency(dg, 'C', 'A');
+
+        // The dependency that closes the cycle is removed: A <- B <- C <- A
+        dg = new DependencyGraph<Character, Object>();
+        dg.addDependency('D', 'A');
+        dg.beginBulkLoad();
+        dg.addDependency('A', 'B');
+        dg.addDependency('B', 'C');
+        dg.addDependency('C', 'A');
+        List<Character> rejected = dg.endBulkLoad();
+        assertEquals(1, rejected.size());
+        assertEquals('A', (char) rejected.get(0));
+        assertTrue(dg.hasDependency('D', 'A'));
+        assertTrue(dg.hasDependency('A', 'B'));
+        assertTrue(dg.hasDependency('B', 'C'));
+        assertFalse(dg.hasDependency('C', 'A'));
+
+        // Dependencies removed during the bulk load are not added again.
+        dg = new DependencyGraph<Character, Object>();
+        dg.beginBulkLoad();
+        dg.addDependency('A', 'B');
+        dg.addDependency('B', 'A');
+        dg.removeDependency('B', 'A');
+        assertEquals(0, dg.endBulkLoad().size());
+        assertFalse(dg.hasDependency('B', 'A'));
+    }
+
     public void testBreadthFirst() {
         // Because of the hashing function, we cannot predict the order of undependent nodes.
         // Therefore, we use our custom assertOneOf method to indicate "one of the following".
@@ -109,6 +151,60 @@ public class DependencyGraphTest extends TestCase {
         assertFalse(it.hasNext());
     }
 
+    public void testTopologicalOrder() {
+        DependencyGraph<Character, Object> dg;
+
+        // Diamond shape: A <- B <- D, A <- C <- D. Every node is returned once.
+        dg = new DependencyGraph<Character, Object>();
+        dg.addDependency('A', 'B');
+        dg.addDependency('A', 'C');
+        dg.addDependency('B', 'D');
+        dg.addDependency('C', 'D');
+        List<Character> order = dg.getTopologicalOrder();
+        assertEquals(4, order.size());
+        assertEquals('A', (char) order.get(0));
+        assertEquals('D', (char) order.get(3));
+        Iterator<Character> it = dg.getBreadthFirstIterator();
+        for (Character c : order) {
+            assertEquals(c, it.next());
+        }
+        assertFalse(it.hasNext());
+
+        // The order is updated when the edges change: A <- B <- D, A <- C, D <- C
+        dg.removeDependency('C', 'D');
+        dg.addDependency('D', 'C');
+        order = dg.getTopologicalOrder();
+        assertTrue(order.indexOf('D') < order.indexOf('C'));
+
+        // Changing the graph while iterating is an error.
+        it = dg.getBreadthFirstIterator();
+        it.next();
+        dg.addDependency('A', 'E');
+        try {
+            it.next();
+            fail("Should have thrown a ConcurrentModificationException.");
+        } catch (ConcurrentModificationException ignored) {
+        }
+    }
+
+    public void testReadOnlyViews() {
+        DependencyGraph<Character, Object> dg = new DependencyGraph<Character, Object>();
+        dg.addDependency('A', 'B');
+        Set<Character> dependents = dg.getDependents('A');
+        assertSame(dependents, dg.getDependents('A'));
+        try {
+            dependents.add('C');
+            fail("The set of dependents should be read-only.");
+        } catch (UnsupportedOperationException ignored) {
+        }
+        // The views reflect the current state of the graph.
+        dg.addDependency('A', 'C');
+        assertEquals(2, dependents.size());
+        assertTrue(dependents.contains('C'));
+        assertFalse(dependents.contains('Z'));
+        assertEquals(0, dg.getDependents('Z').size());
+    }
+
     public void testRemoveDependencies() {
         DependencyGraph<Character, Object> dg;
         dg = new DependencyGraph<Character, Object>();
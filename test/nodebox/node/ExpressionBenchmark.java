@@ -0,0 +1,68 @@
+package nodebox.node;
+
+/**
+ * Compares the speed of reflective and bytecode compiled expressions.
+ * <p/>
+ * The expressions are the ones used in ExpressionTest. This is not a unit test; run it using the main method.
+ */
+public class ExpressionBenchmark {
+
+    private static final String[] EXPRESSIONS = {
+            "1 + 2",
+            "v2",
+            "number1.value * 2 + FRAME",
+            "parent.number1.value > 3 ? 1 : 0",
+            "parent.pn + number1.value",
+            "math.sin(12)",
+            "int(math.sin(number1.value) * 100)",
+            "stamp(\"k\", number1.value) * 10",
+            "randint(number1.value, 0, 100)"
+    };
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    public static void main(String[] args) throws ExpressionError {
+        NodeLibraryManager manager = new NodeLibraryManager();
+        manager.add(new TestNodes());
+        NodeLibrary library = new NodeLibrary("benchmark");
+        Node net = manager.getNode("testlib.testnet").newInstance(library, "net");
+        net.addParameter("pn", Parameter.Type.INT, 33);
+        Node number1 = net.create(manager.getNode("testlib.number"));
+        number1.setValue("value", 7);
+        Node addDirect1 = net.create(manager.getNode("testlib.addDirect"));
+        addDirect1.setValue("v2", 12);
+        Parameter p = addDirect1.getParameter("v1");
+        ProcessingContext context = new ProcessingContext();
+        context.put("k", 3);
+
+        System.out.println(String.format("%-40s %12s %12s", "expression", "reflective", "bytecode"));
+        for (String source : EXPRESSIONS) {
+            library.setExpressionCompilerMode(Expression.CompilerMode.REFLECTIVE);
+            double reflective = measure(new Expression(p, source), context);
+            library.setExpressionCompilerMode(Expression.CompilerMode.BYTECODE);
+            double bytecode = measure(new Expression(p, source), context);
+            System.out.println(String.format("%-40s %9.1f ns %9.1f ns", source, reflective, bytecode));
+        }
+    }
+
+    /**
+     * Evaluate the expression many times.
+     *
+     * @param e       the expression
+     * @param context the processing context
+     * @return the average time per evaluation, in nanoseconds.
+     * @throws ExpressionError if the expression fails.
+     */
+    private static double measure(Expression e, ProcessingContext context) throws ExpressionError {
+        for (int i = 0; i < WARMUP; i++) {
+            e.evaluate(context);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            e.evaluate(context);
+        }
+        return (System.nanoTime() - start) / (double) ITERATIONS;
+    }
+
+}
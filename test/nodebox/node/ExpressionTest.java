@@ -22,6 +22,9 @@ import nodebox.graphics.Color;
 import nodebox.node.polygraph.Polygon;
 import nodebox.node.polygraph.Rectangle;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 public class ExpressionTest extends NodeTestCase {
@@ -302,6 +305,62 @@ public class ExpressionTest extends NodeTestCase {
         assertTrue(dependencies.contains(rect1.getParameter("x")));
     }
 
+    /**
+     * Test if dependencies are found without evaluating the expression.
+     */
+    public void testStaticDependencies() {
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Node number3 = net.create(numberNode);
+        Parameter pn = net.addParameter("pn", Parameter.Type.INT, 5);
+        Parameter pValue3 = number3.getParameter("value");
+        // Both branches are found, even though only one of them will be taken.
+        pValue3.setExpression("FRAME > 3 ? number1.value : parent.pn + math.max(number2.value, 1)");
+        Set<Parameter> dependencies = pValue3.getDependencies();
+        assertEquals(3, dependencies.size());
+        assertTrue(dependencies.contains(number1.getParameter("value")));
+        assertTrue(dependencies.contains(number2.getParameter("value")));
+        assertTrue(dependencies.contains(pn));
+        // Names in strings and function names are not dependencies.
+        pValue3.setExpression("stamp(\"number1\", number2.value)");
+        dependencies = pValue3.getDependencies();
+        assertEquals(1, dependencies.size());
+        assertTrue(dependencies.contains(number2.getParameter("value")));
+        assertTrue(pValue3.hasStampExpression());
+        // Setting the expression does not evaluate it, so the stamp value was not read yet.
+        assertTrue(pValue3.isStampOutdated(new ProcessingContext()));
+        // Dependencies on parameters that cause errors at runtime are also found.
+        pValue3.setExpression("number1.value / 0 + number2.value");
+        assertTrue(pValue3.getDependencies().contains(number1.getParameter("value")));
+        assertTrue(pValue3.getDependencies().contains(number2.getParameter("value")));
+    }
+
+    /**
+     * Test if reused resolvers and proxies see changes to the network.
+     */
+    public void testReuseResolvers() throws ExpressionError {
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Expression e = new Expression(number2.getParameter("value"), "number1.value + FRAME");
+        number1.setValue("value", 3);
+        assertEquals(4, e.evaluate());
+        number1.setValue("value", 5);
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.put("FRAME", 10);
+        assertEquals(15, e.evaluate(ctx));
+        // The proxy of a node is shared.
+        assertSame(number1.getAccessProxy(), net.getAccessProxy().get("number1"));
+        // Names are looked up again, so renaming the node breaks the expression.
+        number1.setName("other");
+        try {
+            e.evaluate();
+            fail("The node was renamed.");
+        } catch (ExpressionError ignored) {
+        }
+    }
+
     public void testStamp() {
         Polygon p;
 
@@ -337,6 +396,54 @@ public class ExpressionTest extends NodeTestCase {
         assertEquals(new Rectangle(0, 0, 50, 100), p.getBounds());
     }
 
+    /**
+     * Test if expressions can be evaluated on many threads at once, each with their own processing context.
+     *
+     * @throws Exception if a thread fails.
+     */
+    public void testConcurrentEvaluation() throws Exception {
+        Node n = numberNode.newInstance(testLibrary, "number");
+        final Expression stampExpression = new Expression(n.getParameter("value"), "stamp(\"cnum\", 0) * 10");
+        final Expression randomExpression = new Expression(n.getParameter("value"), "randint(stamp(\"cnum\", 0), 0, 1000)");
+        final int expectedRandom = randomExpression.asInt();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ProcessingContext ctx = new ProcessingContext();
+                    for (int i = 0; i < 500; i++) {
+                        int cnum = threadIndex * 1000 + i;
+                        ctx.put("cnum", cnum);
+                        try {
+                            Object value = stampExpression.evaluate(ctx);
+                            if (!Integer.valueOf(cnum * 10).equals(value))
+                                failures.add("Expected " + cnum * 10 + ", got " + value);
+                            ctx.put("cnum", 0);
+                            value = randomExpression.evaluate(ctx);
+                            if (!Integer.valueOf(expectedRandom).equals(value))
+                                failures.add("Expected random value " + expectedRandom + ", got " + value);
+                        } catch (ExpressionError e) {
+                            failures.add(e.toString());
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<String>(), failures);
+        // No state leaks out of the evaluation.
+        assertNull(ExpressionHelper.getCurrentContext());
+        assertNull(ExpressionHelper.getCurrentParameter());
+    }
+
     /**
      * Test the equals method on Expression.
      * Two expressions are equal if their expression strings are equal.
@@ -417,6 +524,146 @@ public class ExpressionTest extends NodeTestCase {
         assertExpressionEquals(1, pInt, "FRAME");
     }
 
+    /**
+     * Test if expressions compiled to bytecode give the same results as reflective expressions.
+     *
+     * @throws ExpressionError if the expression causes an error. This indicates a regression.
+     */
+    public void testBytecodeCompilation() throws ExpressionError {
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Parameter pValue2 = number2.getParameter("value");
+        number1.setValue("value", 7);
+        String[] expressions = {"1 + 2", "number1.value * 2 + FRAME", "parent.number1.value > 3 ? 1 : 0",
+                "int(math.sin(number1.value) * 100)", "stamp(\"k\", number1.value)", "randint(number1.value, 0, 100)"};
+        assertEquals(Expression.CompilerMode.REFLECTIVE, new Expression(pValue2, "1").getCompilerMode());
+        testLibrary.setExpressionCompilerMode(Expression.CompilerMode.BYTECODE);
+        assertEquals(Expression.CompilerMode.BYTECODE, new Expression(pValue2, "1").getCompilerMode());
+        for (String expression : expressions) {
+            testLibrary.setExpressionCompilerMode(Expression.CompilerMode.REFLECTIVE);
+            Object expected = new Expression(pValue2, expression).evaluate();
+            testLibrary.setExpressionCompilerMode(Expression.CompilerMode.BYTECODE);
+            Expression e = new Expression(pValue2, expression);
+            // The bytecode is generated on the first evaluation, and used afterwards.
+            assertEquals(expected, e.evaluate());
+            assertEquals(expected, e.evaluate());
+        }
+        // Values are not compiled into the bytecode.
+        Expression e = new Expression(pValue2, "number1.value * 2");
+        assertEquals(14, e.asInt());
+        number1.setValue("value", 8);
+        assertEquals(16, e.asInt());
+        assertEquals(16.0, e.asFloat());
+        // Parameters use the compiler mode of the library.
+        assertExpressionEquals(17, pValue2, "number1.value * 2 + FRAME");
+    }
+
+    /**
+     * Errors in a bytecode compiled expression are reported, and do not make the expression fall back to reflection.
+     */
+    public void testBytecodeEvaluationError() throws ExpressionError {
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Parameter pValue2 = number2.getParameter("value");
+        number1.setValue("value", 5);
+        testLibrary.setExpressionCompilerMode(Expression.CompilerMode.BYTECODE);
+        Expression e = new Expression(pValue2, "number1.value * 2");
+        assertEquals(10, e.asInt());
+        assertTrue(e.isBytecodeCompiled());
+        Expression bad = new Expression(pValue2, "number1.xxx * 2");
+        try {
+            bad.evaluate();
+            fail("Should have thrown an ExpressionError.");
+        } catch (ExpressionError ignored) {
+        }
+        assertTrue(bad.isBytecodeCompiled());
+        assertEquals(10, e.asInt());
+    }
+
+    /**
+     * Test if constant expressions are evaluated once.
+     *
+     * @throws ExpressionError if the expression causes an error. This indicates a regression.
+     */
+    public void testConstantExpressions() throws ExpressionError {
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Parameter pValue = number1.getParameter("value");
+        String[] constants = {"2*3.14", "math.sin(12)", "random(1, 2, 3) * 10", "int(3.5) + math.PI", "\"a\" + \"b\""};
+        for (String constant : constants) {
+            assertTrue(constant, new Expression(pValue, constant).isConstant());
+        }
+        String[] varying = {"FRAME", "value", "parent.number1.value", "stamp(\"k\", 1)", "math.random()", "xxx + 1",
+                "Math.random()", "new java.util.Random().nextInt()", "(new java.util.Random()).nextInt()",
+                "java.lang.Math.random()", "System.nanoTime()", "math.sin(12).toString()"};
+        for (String expression : varying) {
+            assertFalse(expression, new Expression(pValue, expression).isConstant());
+        }
+        // The result of a constant expression is kept.
+        Expression e = new Expression(pValue, "math.sin(12)");
+        assertSame(e.evaluate(), e.evaluate());
+        e = new Expression(pValue, "math.random()");
+        assertNotSame(e.evaluate(), e.evaluate());
+        e = new Expression(pValue, "Math.random()");
+        assertFalse(e.evaluate().equals(e.evaluate()));
+        e = new Expression(pValue, "new java.util.Random().nextInt()");
+        assertFalse(e.evaluate().equals(e.evaluate()));
+        // Parameters with constant expressions keep their value.
+        assertExpressionEquals(6, pValue, "int(2*3.14)");
+        pValue.markDirty();
+        pValue.update(new ProcessingContext());
+        assertEquals(6, pValue.getValue());
+        assertFalse(pValue.isDirty());
+    }
+
+    /**
+     * Test if expressions with the same source share their compiled expression.
+     */
+    public void testExpressionCache() {
+        CompiledExpressionCache cache = testLibrary.getExpressionCache();
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Node number3 = net.create(numberNode);
+        int size = cache.size();
+        number2.setExpression("value", "number1.value + 1");
+        number3.setExpression("value", "number1.value + 1");
+        assertEquals(size + 1, cache.size());
+        // The dependencies are resolved for each node.
+        assertTrue(number2.getParameter("value").dependsOn(number1.getParameter("value")));
+        assertTrue(number3.getParameter("value").dependsOn(number1.getParameter("value")));
+        number1.setValue("value", 10);
+        net.setRenderedChild(number3);
+        net.update();
+        assertEquals(11, number3.getValue("value"));
+        // Expressions that don't compile are not stored.
+        number2.setExpression("value", "****");
+        assertEquals(size + 1, cache.size());
+        // Each compiler mode has its own entries.
+        testLibrary.setExpressionCompilerMode(Expression.CompilerMode.BYTECODE);
+        number2.setExpression("value", "number1.value + 1");
+        assertEquals(size + 2, cache.size());
+    }
+
+    /**
+     * Test if the expression cache only keeps the most recently used entries.
+     */
+    public void testExpressionCacheLimit() {
+        CompiledExpressionCache cache = new CompiledExpressionCache(2);
+        Expression.CompilerMode mode = Expression.CompilerMode.REFLECTIVE;
+        CompiledExpressionCache.Entry one = new CompiledExpressionCache.Entry(null, null);
+        cache.put("1", mode, one);
+        cache.put("2", mode, new CompiledExpressionCache.Entry(null, null));
+        assertSame(one, cache.get("1", mode));
+        cache.put("3", mode, new CompiledExpressionCache.Entry(null, null));
+        assertEquals(2, cache.size());
+        assertSame(one, cache.get("1", mode));
+        assertNull(cache.get("2", mode));
+        assertNotNull(cache.get("3", mode));
+    }
+
     /**
      * A bit silly test to see if the random range is correct.
      */
@@ -0,0 +1,88 @@
+package nodebox.node;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+public class MethodInvokerTest extends TestCase {
+
+    private int counter;
+
+    public void testStaticMethod() throws Exception {
+        MethodInvoker invoker = MethodInvoker.forMethod(getClass().getMethod("join", String.class, String.class));
+        assertEquals("ab", invoker.invoke(null, "a", "b"));
+        // Invokers are shared.
+        assertSame(invoker, MethodInvoker.forMethod(getClass().getMethod("join", String.class, String.class)));
+    }
+
+    public void testInstanceMethod() throws Exception {
+        MethodInvoker invoker = MethodInvoker.forMethod(getClass().getMethod("increment"));
+        assertNull(invoker.invoke(this, null, null));
+        assertNull(invoker.invoke(this, null, null));
+        assertEquals(2, counter);
+        // Primitive return values are boxed.
+        assertEquals(2, MethodInvoker.forMethod(getClass().getMethod("getCounter")).invoke(this, null, null));
+        // Interface methods.
+        assertEquals(3, MethodInvoker.forMethod(CharSequence.class.getMethod("length")).invoke("abc", null, null));
+    }
+
+    /**
+     * Test if exceptions are wrapped in the same way as Method.invoke does.
+     */
+    public void testExceptions() throws Exception {
+        MethodInvoker invoker = MethodInvoker.forMethod(getClass().getMethod("throwError", String.class));
+        try {
+            invoker.invoke(null, "boom", null);
+            fail("Should have thrown an error.");
+        } catch (InvocationTargetException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+            assertEquals("boom", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Methods that can not be called from generated code are called using reflection.
+     */
+    public void testPrivateMethod() throws Exception {
+        Method m = getClass().getDeclaredMethod("secret", Integer.TYPE);
+        assertEquals(42, MethodInvoker.forMethod(m).invoke(null, 21, null));
+    }
+
+    public void testJavaMethodWrapper() {
+        JavaMethodWrapper wrapper = new JavaMethodWrapper(getClass(), "_crash");
+        try {
+            wrapper.cook(null, new ProcessingContext());
+            fail("Should have thrown an error.");
+        } catch (RuntimeException e) {
+            assertEquals("Invocation target exception", e.getMessage());
+            assertEquals(InvocationTargetException.class, e.getCause().getClass());
+            assertEquals(ArithmeticException.class, e.getCause().getCause().getClass());
+        }
+    }
+
+    public static String join(String a, String b) {
+        return a + b;
+    }
+
+    public static String throwError(String message) {
+        throw new IllegalStateException(message);
+    }
+
+    public void increment() {
+        counter++;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    private static int secret(int value) {
+        return value * 2;
+    }
+
+    public static Object _crash(Node node, ProcessingContext context) {
+        throw new ArithmeticException();
+    }
+
+}
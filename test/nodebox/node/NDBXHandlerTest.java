@@ -168,6 +168,28 @@ public class NDBXHandlerTest extends TestCase {
         assertEquals(Polygon.class, gamma.getDataClass());
     }
 
+    /**
+     * Test if cyclic expressions are detected when loading a file.
+     */
+    public void testCyclicExpressions() {
+        String xml = NDBX_HEADER
+                + "<node name=\"dot1\" prototype=\"testlib.dot\"><param name=\"x\"><expression>dot2.x</expression></param></node>"
+                + "<node name=\"dot2\" prototype=\"testlib.dot\"><param name=\"x\"><expression>dot1.x + 1</expression></param></node>"
+                + "<node name=\"dot3\" prototype=\"testlib.dot\"><param name=\"y\"><expression>dot1.x * 2</expression></param></node>"
+                + NDBX_FOOTER;
+        NodeLibrary library = parseXml(xml);
+        Parameter pX1 = library.get("dot1").getParameter("x");
+        Parameter pX2 = library.get("dot2").getParameter("x");
+        Parameter pY3 = library.get("dot3").getParameter("y");
+        // Only one of the expressions in the cycle is rejected. Which one depends on the order they were set.
+        assertTrue(pX1.hasExpressionError() ^ pX2.hasExpressionError());
+        Parameter rejected = pX1.hasExpressionError() ? pX1 : pX2;
+        assertTrue(rejected.getExpressionError().getMessage().contains("cyclic dependency"));
+        assertEquals(0, rejected.getDependencies().size());
+        assertFalse(pY3.hasExpressionError());
+        assertTrue(pY3.getDependencies().contains(pX1));
+    }
+
     //// Helper methods ////
 
     /**
@@ -2,6 +2,9 @@ package nodebox.node;
 
 import nodebox.graphics.Color;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * All tests that have to do with parent/child relationships between nodes.
  */
@@ -369,6 +372,229 @@ public class NetworkTest extends NodeTestCase {
         assertEquals(42, net.getOutputValue());
     }
 
+    /**
+     * Test if long chains of nodes can be processed without running out of stack space.
+     */
+    public void testLongChain() {
+        Node net = Node.ROOT_NODE.newInstance(testLibrary, "net", Integer.class);
+        Node number1 = net.create(numberNode);
+        number1.setValue("value", 7);
+        Node previous = number1;
+        for (int i = 0; i < 10000; i++) {
+            Node negate = net.create(negateNode, "negate" + i);
+            negate.getPort("value").connect(previous);
+            previous = negate;
+        }
+        previous.setRendered();
+        net.update();
+        assertEquals(7, net.getOutputValue());
+        number1.setValue("value", 8);
+        net.update();
+        assertEquals(8, net.getOutputValue());
+    }
+
+    /**
+     * Test if marking nodes dirty results in a single batch event.
+     */
+    public void testDirtyBatch() {
+        final List<List<Node>> batches = new ArrayList<List<Node>>();
+        testLibrary.addDirtyBatchListener(new DirtyBatchListener() {
+            public void nodesDirty(NodeLibrary source, List<Node> nodes) {
+                batches.add(nodes);
+            }
+        });
+        Node net = Node.ROOT_NODE.newInstance(testLibrary, "net", Integer.class);
+        Node number1 = net.create(numberNode);
+        Node multiAdd1 = net.create(multiAddNode);
+        for (int i = 0; i < 100; i++) {
+            Node negate = net.create(negateNode);
+            negate.getPort("value").connect(number1);
+            multiAdd1.getPort("values").connect(negate);
+        }
+        // The expression makes number2 depend on number1.
+        Node number2 = net.create(numberNode);
+        number2.setExpression("value", "number1.value * 2");
+        multiAdd1.setRendered();
+        net.update();
+        number2.update();
+        assertEquals(0, net.getOutputValue());
+        TestDataListener l = new TestDataListener();
+        multiAdd1.addDirtyListener(l);
+        batches.clear();
+        number1.setValue("value", 3);
+        assertEquals(1, batches.size());
+        List<Node> dirtyNodes = batches.get(0);
+        // number1, 100 negate nodes, multiAdd1, net and number2.
+        assertEquals(104, dirtyNodes.size());
+        assertEquals(number1, dirtyNodes.get(0));
+        assertTrue(dirtyNodes.contains(net));
+        assertTrue(dirtyNodes.contains(number2));
+        // Each node only fires one event, even though it has many dirty inputs.
+        assertEquals(1, l.dirtyCounter);
+        net.update();
+        number2.update();
+        assertEquals(-300, net.getOutputValue());
+        assertEquals(6, number2.getOutputValue());
+    }
+
+    /**
+     * Test if parameter events for dirty parameters are only fired after all nodes are marked dirty.
+     */
+    public void testParameterEventsAfterPropagation() {
+        final Node net = Node.ROOT_NODE.newInstance(testLibrary, "net", Integer.class);
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Node negate1 = net.create(negateNode);
+        negate1.getPort("value").connect(number2);
+        number2.setExpression("value", "number1.value * 2");
+        negate1.setRendered();
+        net.update();
+        final List<Boolean> downstreamDirty = new ArrayList<Boolean>();
+        number2.addParameterValueListener(new ParameterValueListener() {
+            public void valueChanged(Parameter source) {
+                downstreamDirty.add(net.isDirty());
+            }
+        });
+        number1.setValue("value", 3);
+        assertEquals(1, downstreamDirty.size());
+        assertTrue(downstreamDirty.get(0));
+        net.update();
+        assertEquals(-6, net.getOutputValue());
+    }
+
+    /**
+     * Test if changing the frame only marks the nodes that depend on the frame dirty.
+     */
+    public void testFrameChanged() {
+        Node net = Node.ROOT_NODE.newInstance(testLibrary, "net", Integer.class);
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Node number3 = net.create(numberNode);
+        Node negate1 = net.create(negateNode);
+        Node negate2 = net.create(negateNode);
+        negate1.getPort("value").connect(number1);
+        negate2.getPort("value").connect(number2);
+        number1.setExpression("value", "FRAME * 10");
+        number2.setExpression("value", "2 + 3");
+        // number3 doesn't read the frame itself, but depends on a parameter that does.
+        number3.setExpression("value", "number1.value + 1");
+        assertEquals(1, testLibrary.getFrameDependentParameters().size());
+        ProcessingContext ctx = new ProcessingContext();
+        negate1.update(ctx);
+        negate2.update(ctx);
+        number3.update(ctx);
+        assertEquals(-10, negate1.getOutputValue());
+        assertEquals(11, number3.getOutputValue());
+        ctx = new ProcessingContext();
+        ctx.put("FRAME", 2);
+        testLibrary.frameChanged();
+        assertTrue(number1.isDirty());
+        assertTrue(negate1.isDirty());
+        assertTrue(number3.isDirty());
+        assertFalse(number2.isDirty());
+        assertFalse(negate2.isDirty());
+        negate1.update(ctx);
+        number3.update(ctx);
+        assertEquals(-20, negate1.getOutputValue());
+        assertEquals(21, number3.getOutputValue());
+        // Nodes that no longer read the frame are not marked dirty.
+        number1.setExpression("value", "42");
+        assertTrue(testLibrary.getFrameDependentParameters().isEmpty());
+        number1.setExpression("value", "FRAME");
+        net.remove(number1);
+        assertTrue(testLibrary.getFrameDependentParameters().isEmpty());
+        net.add(number1);
+        assertEquals(1, testLibrary.getFrameDependentParameters().size());
+    }
+
+    /**
+     * Test if the nodes between a failing node and the rendered node fail as well.
+     */
+    public void testUpstreamError() {
+        Node net = Node.ROOT_NODE.newInstance(testLibrary, "net", Integer.class);
+        Node number1 = net.create(numberNode);
+        Node crash1 = net.create(crashNode);
+        Node negate1 = net.create(negateNode);
+        Node negate2 = net.create(negateNode);
+        crash1.getPort("value").connect(number1);
+        negate1.getPort("value").connect(crash1);
+        negate2.getPort("value").connect(negate1);
+        negate2.setRendered();
+        try {
+            net.update();
+            fail("Update should have thrown an error.");
+        } catch (ProcessingError e) {
+            assertEquals(crash1, e.getNode());
+        }
+        assertFalse(number1.hasError());
+        assertTrue(crash1.hasError());
+        // The error is only stored on the node that caused it.
+        assertFalse(negate1.hasError());
+        assertFalse(negate1.isDirty());
+        assertNull(negate1.getOutputValue());
+        assertFalse(negate2.isDirty());
+        assertNull(negate2.getOutputValue());
+        // Replacing the crashing node fixes the error.
+        negate1.getPort("value").connect(number1);
+        number1.setValue("value", 3);
+        net.update();
+        assertEquals(3, net.getOutputValue());
+    }
+
+    /**
+     * Test if a cancelled update leaves the unfinished nodes dirty.
+     */
+    public void testCancel() {
+        Node net = Node.ROOT_NODE.newInstance(testLibrary, "net", Integer.class);
+        Node number1 = net.create(numberNode);
+        Node negate1 = net.create(negateNode);
+        Node negate2 = net.create(negateNode);
+        negate1.getPort("value").connect(number1);
+        negate2.getPort("value").connect(negate1);
+        negate2.setRendered();
+        number1.setValue("value", 5);
+        final CancellationToken token = new CancellationToken();
+        // Negate1 cancels the update while it is processed.
+        negate1.setValue("_code", new NodeCode() {
+            public Object cook(Node node, ProcessingContext context) {
+                token.cancel();
+                return -((Integer) node.getPortValue("value"));
+            }
+
+            public String getSource() {
+                return "";
+            }
+
+            public String getType() {
+                return "java";
+            }
+        });
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.setCancellationToken(token);
+        try {
+            net.update(ctx);
+            fail("The update should have been cancelled.");
+        } catch (ProcessingCancelledError ignored) {
+        }
+        assertFalse(number1.isDirty());
+        assertFalse(negate1.isDirty());
+        assertTrue(negate2.isDirty());
+        assertFalse(negate2.hasError());
+        assertTrue(net.isDirty());
+        // A context that is past its deadline is cancelled before anything is processed.
+        ctx = new ProcessingContext();
+        ctx.setDeadline(1);
+        try {
+            net.update(ctx);
+            fail("The update should have run past its deadline.");
+        } catch (ProcessingCancelledError ignored) {
+        }
+        assertTrue(negate2.isDirty());
+        // A new update finishes the remaining work.
+        net.update();
+        assertEquals(5, net.getOutputValue());
+    }
+
     /**
      * Store the library in XML, then load it under the name "newLibrary".
      *
@@ -0,0 +1,240 @@
+package nodebox.node;
+
+import nodebox.graphics.Color;
+import nodebox.graphics.Geometry;
+import nodebox.graphics.Rect;
+
+public class NodeOutputCacheTest extends NodeTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testLibrary.getOutputCache().setEnabled(true);
+    }
+
+    /**
+     * Test if the cache is only used when it is enabled for the library.
+     */
+    public void testDisabledByDefault() {
+        assertFalse(new NodeLibrary("other").getOutputCache().isEnabled());
+    }
+
+    /**
+     * Test if a node reuses its output when its parameters return to a previous value.
+     */
+    public void testParameterChange() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node number1 = numberNode.newInstance(testLibrary, "number1");
+        number1.setValue("value", 5);
+        number1.update();
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        number1.setValue("value", 6);
+        number1.update();
+        assertEquals(6, number1.getOutputValue());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        number1.setValue("value", 5);
+        number1.update();
+        assertEquals(5, number1.getOutputValue());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+        // Context values are part of the key.
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.put("FRAME", 2);
+        number1.markDirty();
+        number1.update(ctx);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    /**
+     * Test if equal colors are found in the cache.
+     */
+    public void testColorParameter() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node node = Node.ROOT_NODE.newInstance(testLibrary, "colorNode");
+        node.addParameter("color", Parameter.Type.COLOR);
+        node.setValue("color", new Color(0.2, 0.4, 0.6));
+        node.update();
+        node.setValue("color", new Color(0.8, 0.4, 0.6));
+        node.update();
+        node.setValue("color", new Color(0.2, 0.4, 0.6));
+        node.update();
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * Test if downstream nodes are not cooked when the output of an upstream node didn't change.
+     */
+    public void testEarlyCutoff() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        Node multiply1 = net.create(multiplyNode);
+        Node negate1 = net.create(negateNode);
+        multiply1.getPort("v1").connect(number1);
+        multiply1.getPort("v2").connect(number2);
+        negate1.getPort("value").connect(multiply1);
+        negate1.setRendered();
+        number1.setValue("value", 3);
+        net.update();
+        assertEquals(0, net.getOutputValue());
+        cache.resetStatistics();
+        // The number changes, so number1 and multiply1 are cooked.
+        // The output of multiply1 stays zero, so negate1 can use its cached output.
+        number1.setValue("value", 4);
+        net.update();
+        assertEquals(0, net.getOutputValue());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        // Changes that affect the output are still propagated.
+        number2.setValue("value", 2);
+        net.update();
+        assertEquals(-8, net.getOutputValue());
+    }
+
+    /**
+     * Test if geometry is compared by its contents for the early cutoff.
+     */
+    public void testGeometryEarlyCutoff() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node rect1 = createRectNode(net);
+        Node clone1 = net.create(Node.ROOT_NODE, "clone1", Geometry.class);
+        clone1.addPort("shape");
+        clone1.setValue("_code", new PythonCode("def cook(self):\n    return self.shape.clone()"));
+        clone1.getPort("shape").connect(rect1);
+        clone1.update();
+        Object output = clone1.getOutputValue();
+        cache.resetStatistics();
+        // The rect node returns a new geometry that is equal to the previous one.
+        rect1.setValue("size", -10f);
+        clone1.update();
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(output, clone1.getOutputValue());
+        // Changes that affect the output are still propagated.
+        rect1.setValue("size", 20f);
+        clone1.update();
+        assertEquals(new Rect(-10, -10, 20, 20), ((Geometry) clone1.getOutputValue()).getBounds());
+    }
+
+    /**
+     * Test if nodes that change their input in place can't change the cached outputs.
+     */
+    public void testGeometryIsCopied() {
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node rect1 = createRectNode(net);
+        Node move1 = net.create(Node.ROOT_NODE, "move1", Geometry.class);
+        move1.addPort("shape");
+        move1.setValue("_code", new PythonCode("def cook(self):\n    self.shape.translate(100, 0)\n    return self.shape"));
+        move1.getPort("shape").connect(rect1);
+        move1.update();
+        rect1.setValue("size", 20f);
+        move1.update();
+        // Both nodes are found in the cache.
+        rect1.setValue("size", 10f);
+        move1.update();
+        assertEquals(new Rect(-5, -5, 10, 10), ((Geometry) rect1.getOutputValue()).getBounds());
+        assertEquals(new Rect(95, -5, 10, 10), ((Geometry) move1.getOutputValue()).getBounds());
+        assertNotSame(rect1.getOutputValue(), move1.getOutputValue());
+        assertEquals(2, testLibrary.getOutputCache().getHitCount());
+    }
+
+    private Node createRectNode(Node net) {
+        Node rect1 = net.create(Node.ROOT_NODE, "rect1", Geometry.class);
+        rect1.addParameter("size", Parameter.Type.FLOAT, 10f);
+        rect1.setValue("_code", new PythonCode("from nodebox.graphics import Geometry, Path\n" +
+                "def cook(self):\n" +
+                "    p = Path()\n" +
+                "    p.rect(0, 0, abs(self.size), abs(self.size))\n" +
+                "    g = Geometry()\n" +
+                "    g.add(p)\n" +
+                "    return g"));
+        return rect1;
+    }
+
+    public void testErrorsAreNotCached() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node crash1 = crashNode.newInstance(testLibrary, "crash1");
+        assertProcessingError(crash1, ArithmeticException.class);
+        assertEquals(0, cache.size());
+        crash1.markDirty();
+        assertProcessingError(crash1, ArithmeticException.class);
+        assertEquals(0, cache.getHitCount());
+    }
+
+    public void testDisabled() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        cache.setEnabled(false);
+        Node number1 = numberNode.newInstance(testLibrary, "number1");
+        number1.update();
+        number1.markDirty();
+        number1.update();
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+
+    public void testMaximumSize() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        cache.setMaximumSize(2);
+        Node number1 = numberNode.newInstance(testLibrary, "number1");
+        for (int i = 0; i < 5; i++) {
+            number1.setValue("value", i);
+            number1.update();
+        }
+        assertEquals(2, cache.size());
+        // The least recently used values are evicted.
+        number1.setValue("value", 0);
+        number1.update();
+        assertEquals(0, cache.getHitCount());
+        number1.setValue("value", 4);
+        number1.update();
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * Test if nodes whose code can read outside data are not cached.
+     */
+    public void testSideEffects() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node pure = Node.ROOT_NODE.newInstance(testLibrary, "pure", Integer.class);
+        pure.setValue("_code", new PythonCode("from math import floor\ndef cook(self):\n    return int(floor(2.5))"));
+        Node random = Node.ROOT_NODE.newInstance(testLibrary, "random", Double.class);
+        random.setValue("_code", new PythonCode("from random import random\ndef cook(self):\n    return random()"));
+        assertTrue(pure.isCacheable());
+        assertFalse(random.isCacheable());
+        random.update();
+        Object value = random.getOutputValue();
+        random.markDirty();
+        random.update();
+        assertNotSame(value, random.getOutputValue());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMissCount());
+        // Java code is not analyzed.
+        assertTrue(numberNode.newInstance(testLibrary, "number1").isCacheable());
+    }
+
+    /**
+     * Test if the outputs of removed nodes are removed from the cache.
+     */
+    public void testRemove() {
+        NodeOutputCache cache = testLibrary.getOutputCache();
+        Node net = testNetworkNode.newInstance(testLibrary, "net");
+        Node number1 = net.create(numberNode);
+        Node number2 = net.create(numberNode);
+        number1.update();
+        number2.update();
+        assertEquals(2, cache.size());
+        net.remove(number1);
+        assertEquals(1, cache.size());
+        number2.markDirty();
+        number2.update();
+        assertEquals(1, cache.getHitCount());
+    }
+
+}
@@ -580,6 +580,50 @@ public class NodeTest extends NodeTestCase {
         assertFalse(c.isDirty());
     }
 
+    /**
+     * Test that only nodes whose stamp values changed are marked dirty.
+     *
+     * @throws ExpressionError if the expression causes an error. This indicates a regression.
+     */
+    public void testStampValuesChanged() throws ExpressionError {
+        // Setup a graph where a <- b <- c.
+        Node a = Node.ROOT_NODE.newInstance(testLibrary, "a", Integer.class);
+        Node b = Node.ROOT_NODE.newInstance(testLibrary, "b", Integer.class);
+        Node c = Node.ROOT_NODE.newInstance(testLibrary, "c", Integer.class);
+        a.addParameter("a", Parameter.Type.INT);
+        b.addParameter("b", Parameter.Type.INT);
+        b.addPort("in").connect(a);
+        c.addPort("in").connect(b);
+        a.setExpression("a", "stamp(\"my_a\", 1)");
+        b.setExpression("b", "stamp(\"my_b\", 2)");
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.put("my_a", 10);
+        ctx.put("my_b", 20);
+        c.stampExpressions(ctx);
+        assertEquals(10, a.getValue("a"));
+        assertEquals(20, b.getValue("b"));
+        assertFalse(a.isDirty());
+        assertFalse(b.isDirty());
+        // The stamp values didn't change, so nothing needs to be evaluated.
+        c.stampDirty(ctx);
+        assertFalse(a.isDirty());
+        assertFalse(b.isDirty());
+        // Only the node that uses the changed value is marked dirty.
+        ctx.put("my_b", 21);
+        c.stampDirty(ctx);
+        assertFalse(a.isDirty());
+        assertTrue(b.isDirty());
+        c.stampExpressions(ctx);
+        assertEquals(21, b.getValue("b"));
+        ctx.put("my_a", 11);
+        c.stampExpressions(ctx);
+        assertEquals(11, a.getValue("a"));
+        // Marking without a context marks all stamped nodes.
+        c.stampDirty();
+        assertTrue(a.isDirty());
+        assertTrue(b.isDirty());
+    }
+
     //// Helper functions ////
 
     private void assertInvalidName(Node n, String newName, String reason) {
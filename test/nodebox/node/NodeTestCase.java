@@ -8,7 +8,7 @@ public class NodeTestCase extends TestCase {
     protected NodeLibraryManager manager;
     protected NodeLibrary testNodes, polygraphLibrary, testLibrary;
     protected Node numberNode, negateNode, addNode, addDirectNode, addConstantNode, multiplyNode, multiAddNode,
-            floatNegateNode, convertToUppercaseNode, crashNode, testNetworkNode,
+            floatNegateNode, convertToUppercaseNode, crashNode, stampCopyNode, testNetworkNode,
             polygonNode, rectNode, translateNode;
 
     @Override
@@ -30,6 +30,7 @@ public class NodeTestCase extends TestCase {
         floatNegateNode = manager.getNode("testlib.floatNegate");
         convertToUppercaseNode = manager.getNode("testlib.convertToUppercase");
         crashNode = manager.getNode("testlib.crash");
+        stampCopyNode = manager.getNode("testlib.stampCopy");
         testNetworkNode = manager.getNode("testlib.testnet");
         polygonNode = manager.getNode("polygraph.polygon");
         rectNode = manager.getNode("polygraph.rect");
@@ -0,0 +1,111 @@
+package nodebox.node;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+public class OutputRouterTest extends TestCase {
+
+    /**
+     * Test if output of threads printing at the same time ends up in their own context.
+     */
+    public void testConcurrentOutput() throws InterruptedException {
+        final ProcessingContext ctx1 = new ProcessingContext();
+        final ProcessingContext ctx2 = new ProcessingContext();
+        Thread t1 = new PrintThread(ctx1, "a");
+        Thread t2 = new PrintThread(ctx2, "b");
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        assertEquals(repeat("a\n", 100), ctx1.getOutput());
+        assertEquals(repeat("b\n", 100), ctx2.getOutput());
+        assertEquals(repeat("a!\n", 100), ctx1.getError());
+        assertEquals(repeat("b!\n", 100), ctx2.getError());
+        assertNull(OutputRouter.getCurrentContext());
+    }
+
+    /**
+     * Test if output is written to the fallback stream outside of a cook, and if contexts can be nested.
+     */
+    public void testFallback() {
+        ByteArrayOutputStream fallbackBytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(new OutputRouter(false, fallbackBytes), true);
+        out.print("x");
+        ProcessingContext outer = new ProcessingContext();
+        ProcessingContext inner = new ProcessingContext();
+        ProcessingContext previous = OutputRouter.setCurrentContext(outer);
+        try {
+            out.print("o1");
+            ProcessingContext previousInner = OutputRouter.setCurrentContext(inner);
+            try {
+                out.print("i");
+            } finally {
+                OutputRouter.setCurrentContext(previousInner);
+            }
+            out.print("o2");
+        } finally {
+            OutputRouter.setCurrentContext(previous);
+        }
+        out.print("y");
+        assertEquals("xy", fallbackBytes.toString());
+        assertEquals("o1o2", outer.getOutput());
+        assertEquals("i", inner.getOutput());
+    }
+
+    /**
+     * Test if the standard streams are only replaced while a thread is cooking.
+     */
+    public void testStreamsRestored() {
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        ProcessingContext context = new ProcessingContext();
+        ProcessingContext previous = OutputRouter.setCurrentContext(context);
+        try {
+            assertNotSame(originalOut, System.out);
+            assertNotSame(originalErr, System.err);
+            System.out.print("x");
+        } finally {
+            OutputRouter.setCurrentContext(previous);
+        }
+        assertSame(originalOut, System.out);
+        assertSame(originalErr, System.err);
+        assertEquals("x", context.getOutput());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static class PrintThread extends Thread {
+
+        private final ProcessingContext context;
+        private final String text;
+
+        private PrintThread(ProcessingContext context, String text) {
+            this.context = context;
+            this.text = text;
+        }
+
+        @Override
+        public void run() {
+            ProcessingContext previous = OutputRouter.setCurrentContext(context);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    System.out.print(text + "\n");
+                    System.err.print(text + "!\n");
+                    Thread.yield();
+                }
+            } finally {
+                OutputRouter.setCurrentContext(previous);
+            }
+        }
+
+    }
+
+}
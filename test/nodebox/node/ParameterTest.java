@@ -177,6 +177,48 @@ public class ParameterTest extends NodeTestCase {
         }
     }
 
+    /**
+     * Expressions on int and float parameters are evaluated through the typed entry points of the expression.
+     *
+     * @throws ExpressionError if the test is correct, never.
+     */
+    public void testNumericExpressions() throws ExpressionError {
+        Node n = Node.ROOT_NODE.newInstance(testLibrary, "node");
+        Parameter pInt = n.addParameter("int", Parameter.Type.INT);
+        pInt.setExpression("12.9");
+        pInt.update(new ProcessingContext());
+        assertEquals(12, pInt.getValue());
+        Parameter pFloat = n.addParameter("float", Parameter.Type.FLOAT);
+        pFloat.setExpression("1 + 2");
+        pFloat.update(new ProcessingContext());
+        assertEquals(3F, pFloat.getValue());
+        pFloat.setExpression("0.5 * 3");
+        pFloat.update(new ProcessingContext());
+        assertEquals(1.5F, pFloat.getValue());
+        // Hard bounds are checked on the converted value.
+        Parameter pBounded = n.addParameter("bounded", Parameter.Type.INT);
+        pBounded.setBoundingMethod(Parameter.BoundingMethod.HARD);
+        pBounded.setMinimumValue(0F);
+        pBounded.setMaximumValue(10F);
+        pBounded.setExpression("10.5");
+        pBounded.update(new ProcessingContext());
+        assertEquals(10, pBounded.getValue());
+        pBounded.setExpression("11");
+        try {
+            pBounded.update(new ProcessingContext());
+            fail("Should have caused an exception.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("too big"));
+        }
+        pFloat.setExpression("\"hello\"");
+        try {
+            pFloat.update(new ProcessingContext());
+            fail("Should have caused an exception.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("cannot be converted to float"));
+        }
+    }
+
     public void testAsString() {
         Node n = Node.ROOT_NODE.newInstance(testLibrary, "allControls");
         n.addParameter("int", Parameter.Type.INT);
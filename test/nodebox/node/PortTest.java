@@ -103,6 +103,9 @@ public class PortTest extends NodeTestCase {
         Node cloned = test.newInstance(testLibrary, "cloned");
         assertEquals(Port.Cardinality.SINGLE, cloned.getPort("single").getCardinality());
         assertEquals(Port.Cardinality.MULTIPLE, cloned.getPort("multiple").getCardinality());
+        // A port without values returns a new list that can be changed.
+        test.getPort("multiple").getValues().add("x");
+        assertEquals(0, test.getPort("multiple").getValues().size());
     }
 
     public void testAccessors() {
@@ -3,6 +3,8 @@ package nodebox.node;
 import junit.framework.TestCase;
 import nodebox.node.polygraph.Polygon;
 import nodebox.node.polygraph.Rectangle;
+import org.python.core.Py;
+import org.python.core.PyObject;
 
 public class PythonCodeTest extends TestCase {
 
@@ -52,6 +54,31 @@ public class PythonCodeTest extends TestCase {
         assertSnippetEquals(11, "FRAME + 10", null, new ProcessingContext());
     }
 
+    /**
+     * Test if the code is analyzed for names that read the frame.
+     */
+    public void testReadsFrame() {
+        assertTrue(readsFrame("def cook(self):\n    return FRAME * 2"));
+        assertTrue(readsFrame("def cook(self):\n    return context.getFrame()"));
+        assertTrue(readsFrame("def cook(self):\n    return globals()['FRAME']"));
+        assertTrue(readsFrame("from nodebox.node import OutputRouter\ndef cook(self):\n    return 1"));
+        assertTrue(readsFrame("def cook(self:\n"));
+        // Names in comments, strings and attributes don't read the frame.
+        assertFalse(readsFrame("def cook(self):\n    # FRAME\n    return 'FRAME'"));
+        assertFalse(readsFrame("def cook(self):\n    return self.FRAME"));
+        assertFalse(readsFrame("from nodebox.graphics import *\ndef cook(self):\n    return Color()"));
+        // Code parameters are only frame dependent if the code reads the frame.
+        Node node1 = Node.ROOT_NODE.newInstance(testLibrary, "node1");
+        node1.setValue("_code", new PythonCode("def cook(self):\n    return 'FRAME'"));
+        assertTrue(testLibrary.getFrameDependentParameters().isEmpty());
+        node1.setValue("_code", new PythonCode("def cook(self):\n    return context.getFrame()"));
+        assertEquals(1, testLibrary.getFrameDependentParameters().size());
+    }
+
+    private boolean readsFrame(String source) {
+        return new PythonCode(source).readsFrame();
+    }
+
     /**
      * Test for errors when cooking code.
      */
@@ -73,6 +100,89 @@ public class PythonCodeTest extends TestCase {
         assertSnippetEquals(42, "self.alpha", node1);
     }
 
+    /**
+     * Test if code objects with the same source share the compiled code.
+     */
+    public void testSharedCompiledCode() {
+        String source = snippetToCode("42");
+        assertSame(PythonCode.getCompiledCode(source), PythonCode.getCompiledCode(new String(source)));
+        assertNotSame(PythonCode.getCompiledCode(source), PythonCode.getCompiledCode(snippetToCode("43")));
+    }
+
+    /**
+     * Test if code cooking in several threads at once sees the globals of its own context.
+     */
+    public void testConcurrentGlobals() throws InterruptedException {
+        final PythonCode code = new PythonCode("def frame():\n    return FRAME\n" +
+                "def cook(self):\n    f = FRAME\n    for i in range(100): pass\n" +
+                "    return [f, frame(), context.getFrame()]");
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int frame = t + 1;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ProcessingContext context = new ProcessingContext();
+                    context.put("FRAME", frame);
+                    for (int i = 0; i < 200; i++) {
+                        java.util.List result = (java.util.List) code.cook(null, context);
+                        for (Object o : result) {
+                            if (((Number) o).intValue() != frame) failed[0] = true;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertFalse(failed[0]);
+    }
+
+    /**
+     * Test if printed output goes to the context, and if the Python streams are put back afterwards.
+     */
+    public void testOutput() {
+        PythonCode code = new PythonCode("def cook(self):\n    print 'hello'\n    return 1");
+        ProcessingContext context = new ProcessingContext();
+        code.cook(null, context);
+        PyObject stdout = Py.getSystemState().stdout;
+        context = new ProcessingContext();
+        code.cook(null, context);
+        assertEquals("hello\n", context.getOutput());
+        assertSame(stdout, Py.getSystemState().stdout);
+    }
+
+    /**
+     * Test if the self wrapper only converts values again when they change.
+     */
+    public void testSelfWrapperAttributes() {
+        Node node1 = Node.ROOT_NODE.newInstance(testLibrary, "node1");
+        node1.addParameter("alpha", Parameter.Type.INT, 42);
+        node1.addPort("polygon");
+        PythonCode code = new PythonCode(snippetToCode("self.alpha"));
+        PythonCode.SelfWrapper self = code.new SelfWrapper(node1);
+        assertNotNull(self.__findattr_ex__("alpha"));
+        PyObject alpha = self.__findattr_ex__("alpha");
+        assertSame(alpha, self.__findattr_ex__("alpha"));
+        node1.setValue("alpha", 43);
+        assertNotSame(alpha, self.__findattr_ex__("alpha"));
+        assertSame(self.__findattr_ex__("polygon"), self.__findattr_ex__("polygon"));
+        // Ports without values return a new list every time.
+        node1.addPort("values", Port.Cardinality.MULTIPLE);
+        assertSame(self.__findattr_ex__("values"), self.__findattr_ex__("values"));
+        assertSame(self.__findattr_ex__("node"), self.__findattr_ex__("node"));
+        try {
+            self.__findattr_ex__("beta");
+            fail("Should have thrown an error.");
+        } catch (RuntimeException ignored) {
+        }
+    }
+
     //// Custom assertions ////
 
     /**
@@ -0,0 +1,142 @@
+package nodebox.node;
+
+import java.util.List;
+
+public class StamperTest extends NodeTestCase {
+
+    private Node net, number1, number2, negate1, add1, negate2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Setup a network where number1 <- negate1 <- add1 <- negate2, and number2 <- add1.
+        // Only number1 has a stamp expression.
+        net = testNetworkNode.newInstance(testLibrary, "net");
+        number1 = net.create(numberNode);
+        number2 = net.create(numberNode);
+        negate1 = net.create(negateNode);
+        add1 = net.create(addNode);
+        negate2 = net.create(negateNode);
+        negate1.getPort("value").connect(number1);
+        add1.getPort("v1").connect(negate1);
+        add1.getPort("v2").connect(number2);
+        negate2.getPort("value").connect(add1);
+        number1.setExpression("value", "stamp(\"CNUM\", 0) * 10");
+        number2.setValue("value", 3);
+        negate2.update();
+    }
+
+    public void testForkedContext() {
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.put("a", 1);
+        ProcessingContext child = ctx.fork();
+        assertEquals(1, child.get("a"));
+        assertEquals(1, child.getFrame());
+        child.put("a", 2);
+        assertEquals(2, child.get("a"));
+        assertEquals(1, ctx.get("a"));
+        ctx.put("b", 3);
+        assertNull(child.get("b"));
+        assertSame(ctx.getOutputStream(), child.getOutputStream());
+    }
+
+    public void testStampInPlace() {
+        ProcessingContext ctx = new ProcessingContext();
+        List<Object> copies = new Stamper(negate2, null).stamp(ctx, 5, new PortCopier());
+        assertCopies(copies, 5);
+        // The nodes in the network were evaluated for the last copy.
+        assertEquals(40, number1.getValue("value"));
+    }
+
+    public void testStampParallel() {
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.setParallel(true);
+        List<Object> copies = new Stamper(negate2, null).stamp(ctx, 100, new PortCopier());
+        assertCopies(copies, 100);
+        // The nodes in the network were not changed.
+        assertEquals(0, number1.getValue("value"));
+        assertEquals(3, add1.getOutputValue());
+        // The next in-place stamp evaluates the expressions again.
+        ProcessingContext serialContext = new ProcessingContext();
+        assertCopies(new Stamper(negate2, null).stamp(serialContext, 3, new PortCopier()), 3);
+    }
+
+    public void testStampExpression() {
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.setParallel(true);
+        number1.setExpression("value", "stamp(\"offset\", 0)");
+        negate2.addParameter("stamp", Parameter.Type.STRING, "offset=CNUM * 2");
+        StampExpression stampExpression = new StampExpression(negate2, "stamp");
+        List<Object> copies = new Stamper(negate2, stampExpression).stamp(ctx, 4, new PortCopier());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(-i * 2 + 3, copies.get(i));
+        }
+    }
+
+    public void testParallelError() {
+        Node crash1 = net.create(crashNode);
+        crash1.getPort("value").connect(number1);
+        add1.getPort("v1").connect(crash1);
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.setParallel(true);
+        try {
+            new Stamper(negate2, null).stamp(ctx, 10, new PortCopier());
+            fail("The crash node should have failed.");
+        } catch (ProcessingError e) {
+            assertEquals(crash1, e.getNode());
+            assertEquals(ArithmeticException.class, e.getCause().getClass());
+        }
+    }
+
+    /**
+     * Test if an expression that fails for one copy only reports that copy.
+     */
+    public void testParallelExpressionError() {
+        number1.setExpression("value", "stamp(\"CNUM\", 0) == 150 ? \"a\".charAt(5) : stamp(\"CNUM\", 0) * 10");
+        for (int i = 0; i < 10; i++) {
+            ProcessingContext ctx = new ProcessingContext();
+            ctx.setParallel(true);
+            try {
+                new Stamper(negate2, null).stamp(ctx, 300, new PortCopier());
+                fail("The expression should have failed for copy 150.");
+            } catch (ProcessingError e) {
+                assertEquals(number1, e.getNode());
+                assertTrue(e.getMessage(), e.getMessage().contains("for copy 150: Cannot evaluate expression"));
+            }
+        }
+        // The expression in the network was not changed by the failed copy.
+        assertFalse(number1.getParameter("value").hasExpressionError());
+    }
+
+    public void testStampExpressionError() {
+        ProcessingContext ctx = new ProcessingContext();
+        ctx.setParallel(true);
+        number1.setExpression("value", "stamp(\"offset\", 0)");
+        negate2.addParameter("stamp", Parameter.Type.STRING, "offset=CNUM == 3 ? \"a\".charAt(5) : CNUM");
+        StampExpression stampExpression = new StampExpression(negate2, "stamp");
+        try {
+            new Stamper(negate2, stampExpression).stamp(ctx, 100, new PortCopier());
+            fail("The stamp expression should have failed for copy 3.");
+        } catch (ProcessingError e) {
+            assertEquals(negate2, e.getNode());
+            assertTrue(e.getMessage(), e.getMessage().contains("stamp expression for copy 3: Cannot evaluate expression"));
+        }
+    }
+
+    private void assertCopies(List<Object> copies, int count) {
+        assertEquals(count, copies.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(-i * 10 + 3, copies.get(i));
+        }
+    }
+
+    /**
+     * Returns the value on the input port of the stamping node.
+     */
+    private static class PortCopier implements Stamper.Copier {
+        public Object copy(int index, Node node, ProcessingContext context) {
+            return node.getPortValue("value");
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ public class TestNodes extends NodeLibrary {
         addBuiltin(new FloatNegate());
         addBuiltin(new ConvertToUppercase());
         addBuiltin(new Crash());
+        addBuiltin(new StampCopy());
         addBuiltin(new TestNetwork());
     }
 
@@ -169,6 +170,30 @@ public class TestNodes extends NodeLibrary {
         }
     }
 
+    /**
+     * Evaluates the upstream nodes once for every copy, in place, like the copy node does.
+     * The output combines the values of all copies.
+     */
+    public class StampCopy extends Builtin {
+        protected Node createInstance() {
+            Node n = Node.ROOT_NODE.newInstance(TestNodes.this, "stampCopy", Integer.class);
+            n.addPort("value");
+            n.addParameter("copies", Parameter.Type.INT, 1);
+            return n;
+        }
+
+        public Object cook(Node node, ProcessingContext context) {
+            int copies = node.asInt("copies");
+            int result = 0;
+            for (int i = 0; i < copies; i++) {
+                context.put(Stamper.COPY_NUMBER_KEY, i);
+                node.stampExpressions(context);
+                result = result * 31 + (Integer) node.getPortValue("value");
+            }
+            return result;
+        }
+    }
+
     public class TestNetwork extends Builtin {
         protected Node createInstance() {
             return Node.ROOT_NODE.newInstance(TestNodes.this, "testnet", Integer.class);